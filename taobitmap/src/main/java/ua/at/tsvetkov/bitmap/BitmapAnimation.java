@@ -0,0 +1,1004 @@
+/*******************************************************************************
+ * Copyright (c) 2014 Alexandr Tsvetkov.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the The BSD 3-Clause License
+ * which accompanies this distribution, and is available at
+ * http://opensource.org/licenses/BSD-3-Clause
+ *
+ * Contributors:
+ *     Alexandr Tsvetkov - initial API and implementation
+ *
+ * Project:
+ *     TAO Bitmap Utils
+ *
+ * File name:
+ *     BitmapAnimation.java
+ *
+ * License agreement:
+ *
+ * 1. This code is published AS IS. Author is not responsible for any damage that can be
+ *    caused by any application that uses this code.
+ * 2. Author does not give a garantee, that this code is error free.
+ * 3. This code can be used in NON-COMMERCIAL applications AS IS without any special
+ *    permission from author.
+ * 4. This code can be modified without any special permission from author IF AND ONLY IF
+ *    this license agreement will remain unchanged.
+ * 5. SPECIAL PERMISSION for this code usage in COMMERCIAL application SHOULD be obtained
+ *    from author.
+ ******************************************************************************/
+package ua.at.tsvetkov.bitmap;
+
+import java.io.BufferedInputStream;
+import java.io.EOFException;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+import ua.at.tsvetkov.util.Log;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.RectF;
+import android.os.Build;
+
+/**
+ * Streaming decoder of animated GIF and WebP images. Frames are decoded one at a time while they are read from the stream, composed on
+ * one canvas and written to two bitmaps from the {@link BitmapPool} in turn, so the memory does not depend on the count of frames. The
+ * frame returned by {@link #next()} is not changed while the following frame is decoded. Scale, crop and flips of the output are applied
+ * to every frame, see {@link BitmapTransformer#transformAnimation()}. Other images are returned as one frame. Not thread safe.
+ *
+ * @author A.Tsvetkov 2014 http://tsvetkov.at.ua mailto:al@ukr.net
+ */
+public class BitmapAnimation implements Iterator<BitmapAnimation.Frame> {
+
+   /** Browsers show GIF frames with shorter delay with the default one */
+   private static final int     MIN_DELAY          = 20;
+   private static final int     DEFAULT_DELAY      = 100;
+   private static final int     MAX_CODES          = 4096;
+   private static final int     HEADER_SIZE        = 30;
+   private static final int     MAX_PROBE_SIZE     = 1024 * 1024;
+   private static final int     ANMF_HEADER_SIZE   = 16;
+   private static final int     ANIM_SIZE          = 6;
+   private static final int     MAX_CHUNK_SIZE     = 64 * 1024 * 1024;
+
+   private static final int     TYPE_GIF           = 1;
+   private static final int     TYPE_WEBP          = 2;
+   private static final int     TYPE_STILL         = 3;
+
+   private static final int     DISPOSE_NONE       = 0;
+   private static final int     DISPOSE_BACKGROUND = 2;
+   private static final int     DISPOSE_PREVIOUS   = 3;
+
+   private final InputStream    in;
+   private final int            type;
+   private final BitmapPool     pool;
+   private int                  imageWidth;
+   private int                  imageHeight;
+   private int                  canvasWidth;
+   private int                  canvasHeight;
+   private int                  loopCount          = 1;
+   private int[]                canvas;
+   private int[]                previous;
+
+   // Output
+   private float                scaledWidth;
+   private float                scaledHeight;
+   private RectF                crop;
+   private boolean              isFlipHorizontal;
+   private boolean              isFlipVertical;
+   private int                  outWidth;
+   private int                  outHeight;
+   private int[]                mapX;
+   private int[]                mapY;
+   private int[]                out;
+   private final BitmapHandle[] buffers            = new BitmapHandle[2];
+   private final Frame[]        frames             = new Frame[2];
+   private int                  frameIndex         = 0;
+   private long                 timestamp          = 0;
+
+   // State between the frames
+   private boolean              isPending          = false;
+   private boolean              isFinished         = false;
+   private int                  disposal           = DISPOSE_NONE;
+   private int                  delay              = 0;
+   private int                  lastDisposal       = DISPOSE_NONE;
+   private int                  lastX;
+   private int                  lastY;
+   private int                  lastWidth;
+   private int                  lastHeight;
+
+   // GIF
+   private final int[]          globalColors       = new int[256];
+   private final int[]          localColors        = new int[256];
+   private boolean              isTransparent      = false;
+   private int                  transparentIndex;
+   private short[]              prefix;
+   private byte[]               suffix;
+   private byte[]               pixelStack;
+   private byte[]               indices;
+   private final byte[]         block              = new byte[256];
+
+   // WebP and still images
+   private byte[]               chunk;
+   private int                  chunkSize;
+   private byte[]               image;
+   private int[]                framePixels;
+   private Bitmap               decoded;
+
+   /**
+    * Frame of the animation. The bitmap is owned by the animation and is overwritten by the frame after the next one.
+    */
+   public static final class Frame {
+
+      private final Bitmap bitmap;
+      private int          index;
+      private int          duration;
+      private long         timestamp;
+
+      private Frame(Bitmap bitmap) {
+         this.bitmap = bitmap;
+      }
+
+      public Bitmap getBitmap() {
+         return bitmap;
+      }
+
+      public int getIndex() {
+         return index;
+      }
+
+      /**
+       * Return how long the frame is shown in ms
+       * 
+       * @return
+       */
+      public int getDuration() {
+         return duration;
+      }
+
+      /**
+       * Return time of the frame from the start of the animation in ms
+       * 
+       * @return
+       */
+      public long getTimestamp() {
+         return timestamp;
+      }
+
+   }
+
+   private BitmapAnimation(InputStream in, int type, BitmapPool pool) {
+      this.in = in;
+      this.type = type;
+      this.pool = pool;
+   }
+
+   /**
+    * Open the animation and read its header. The stream is closed by {@link #close()}. Animated WebP needs Android 4.0, and Android 4.2 if
+    * it has alpha, because the frames are decoded by {@link BitmapFactory}.
+    * 
+    * @param stream
+    * @param pool pool of the frame bitmaps or null for the shared pool
+    * @return animation or null if the stream can't be read or the format is not supported
+    */
+   public static BitmapAnimation open(InputStream stream, BitmapPool pool) {
+      InputStream in = stream instanceof BufferedInputStream ? stream : new BufferedInputStream(stream);
+      BitmapAnimation animation = null;
+      try {
+         byte[] header = new byte[HEADER_SIZE];
+         in.mark(HEADER_SIZE);
+         int length = readAtMost(in, header);
+         in.reset();
+         int type = TYPE_STILL;
+         if (length >= 6 && header[0] == 'G' && header[1] == 'I' && header[2] == 'F') {
+            type = TYPE_GIF;
+         } else if (length == HEADER_SIZE && isFourCC(header, 0, "RIFF") && isFourCC(header, 8, "WEBP") && isFourCC(header, 12, "VP8X")
+               && (header[20] & 0x02) != 0) {
+            type = TYPE_WEBP;
+            checkWebpSupport(header[20]);
+         }
+         animation = new BitmapAnimation(in, type, pool != null ? pool : BitmapPool.getInstance());
+         animation.readHeader();
+         animation.setOutput(animation.imageWidth, animation.imageHeight, null, false, false);
+         return animation;
+      } catch (Exception e) {
+         Log.e("Can't open animation", e);
+         if (animation != null) {
+            animation.close();
+         } else {
+            try {
+               in.close();
+            } catch (IOException ex) {
+               Log.e(ex);
+            }
+         }
+         return null;
+      }
+   }
+
+   /**
+    * Set the output of the frames. The canvas is scaled to the size, cropped and flipped. Must be called before the first frame. Still
+    * images are decoded with the sample size for this size.
+    * 
+    * @param width width of the scaled canvas
+    * @param height height of the scaled canvas
+    * @param crop crop area in the scaled canvas or null
+    * @param isFlipHorizontal
+    * @param isFlipVertical
+    */
+   public void setOutput(float width, float height, RectF crop, boolean isFlipHorizontal, boolean isFlipVertical) {
+      if (frameIndex > 0) {
+         throw new IllegalStateException("Output can't be changed after the first frame");
+      }
+      if (width <= 0 || height <= 0) {
+         throw new IllegalArgumentException("Wrong bitmap size parameters.");
+      }
+      this.scaledWidth = width;
+      this.scaledHeight = height;
+      this.crop = crop != null ? new RectF(crop) : null;
+      this.isFlipHorizontal = isFlipHorizontal;
+      this.isFlipVertical = isFlipVertical;
+      outWidth = Math.max(1, (int) (crop != null ? crop.width() : width));
+      outHeight = Math.max(1, (int) (crop != null ? crop.height() : height));
+      createMaps();
+   }
+
+   public int getWidth() {
+      return outWidth;
+   }
+
+   public int getHeight() {
+      return outHeight;
+   }
+
+   public int getCanvasWidth() {
+      return imageWidth;
+   }
+
+   public int getCanvasHeight() {
+      return imageHeight;
+   }
+
+   /**
+    * Return loop count of the animation from the file, 0 is infinite
+    * 
+    * @return
+    */
+   public int getLoopCount() {
+      return loopCount;
+   }
+
+   @Override
+   public boolean hasNext() {
+      if (isPending) {
+         return true;
+      }
+      if (isFinished) {
+         return false;
+      }
+      try {
+         isPending = advance();
+      } catch (Exception e) {
+         // Also broken chunks of damaged files
+         Log.e("Can't read animation", e);
+      } catch (OutOfMemoryError e) {
+         Log.e("Can't read animation", e);
+      }
+      if (!isPending) {
+         isFinished = true;
+      }
+      return isPending;
+   }
+
+   /**
+    * Decode the next frame
+    * 
+    * @return frame or null if the frame can't be decoded
+    */
+   @Override
+   public Frame next() {
+      if (!hasNext()) {
+         throw new NoSuchElementException();
+      }
+      isPending = false;
+      try {
+         int duration;
+         if (type == TYPE_GIF) {
+            duration = decodeGifFrame();
+         } else if (type == TYPE_WEBP) {
+            duration = decodeWebpFrame();
+         } else {
+            decodeStill();
+            duration = 0;
+            isFinished = true;
+         }
+         return output(duration);
+      } catch (Exception e) {
+         Log.e("Can't decode animation frame " + frameIndex, e);
+         isFinished = true;
+         return null;
+      } catch (OutOfMemoryError e) {
+         Log.e("Can't decode animation frame " + frameIndex, e);
+         isFinished = true;
+         return null;
+      }
+   }
+
+   @Override
+   public void remove() {
+      throw new UnsupportedOperationException();
+   }
+
+   /**
+    * Close the stream and put the frame bitmaps to the pool
+    */
+   public void close() {
+      isFinished = true;
+      isPending = false;
+      try {
+         in.close();
+      } catch (IOException e) {
+         Log.e(e);
+      }
+      for (int i = 0; i < buffers.length; i++) {
+         if (buffers[i] != null) {
+            buffers[i].release();
+            buffers[i] = null;
+            frames[i] = null;
+         }
+      }
+      if (decoded != null) {
+         decoded.recycle();
+         decoded = null;
+      }
+   }
+
+   // ************************* Private methods ******************************
+
+   private void readHeader() throws IOException {
+      if (type == TYPE_GIF) {
+         readFully(block, 0, 13);
+         canvasWidth = readShort(block, 6);
+         canvasHeight = readShort(block, 8);
+         int packed = block[10] & 0xFF;
+         if ((packed & 0x80) != 0) {
+            readColors(globalColors, 2 << (packed & 0x07));
+         }
+      } else if (type == TYPE_WEBP) {
+         readFully(block, 0, HEADER_SIZE);
+         canvasWidth = 1 + readInt24(block, 24);
+         canvasHeight = 1 + readInt24(block, 27);
+      } else {
+         // Only the bounds are read here, the image is decoded as one frame with the sample size of the output
+         BitmapFactory.Options options = new BitmapFactory.Options();
+         options.inJustDecodeBounds = true;
+         in.mark(MAX_PROBE_SIZE);
+         BitmapFactory.decodeStream(new ProbeInputStream(in), null, options);
+         in.reset();
+         if (options.outWidth <= 0 || options.outHeight <= 0) {
+            throw new IOException("Unknown image format");
+         }
+         imageWidth = options.outWidth;
+         imageHeight = options.outHeight;
+         canvasWidth = imageWidth;
+         canvasHeight = imageHeight;
+         isPending = true;
+         return;
+      }
+      if (canvasWidth <= 0 || canvasHeight <= 0) {
+         throw new IOException("Wrong animation size " + canvasWidth + "x" + canvasHeight);
+      }
+      imageWidth = canvasWidth;
+      imageHeight = canvasHeight;
+      canvas = new int[canvasWidth * canvasHeight];
+   }
+
+   /**
+    * Map output pixels to the canvas pixels. The canvas of a still image is smaller than the image if it was decoded with a sample size.
+    */
+   private void createMaps() {
+      float left = crop != null ? crop.left : 0;
+      float top = crop != null ? crop.top : 0;
+      mapX = createMap(outWidth, left, canvasWidth / scaledWidth, canvasWidth, isFlipHorizontal);
+      mapY = createMap(outHeight, top, canvasHeight / scaledHeight, canvasHeight, isFlipVertical);
+      if (isIdentity(mapX, canvasWidth) && isIdentity(mapY, canvasHeight)) {
+         mapX = null;
+         mapY = null;
+         out = null;
+      } else if (out == null || out.length != outWidth * outHeight) {
+         out = new int[outWidth * outHeight];
+      }
+   }
+
+   /**
+    * Decode the still image with the sample size of the output and map the output to the decoded pixels
+    */
+   private void decodeStill() throws IOException {
+      BitmapFactory.Options options = new BitmapFactory.Options();
+      options.outWidth = imageWidth;
+      options.outHeight = imageHeight;
+      options.inSampleSize = BitmapCaсheIO.calculateInSampleSize(options, scaledWidth, scaledHeight);
+      options.inPreferredConfig = Bitmap.Config.ARGB_8888;
+      decoded = BitmapFactory.decodeStream(in, null, options);
+      if (decoded == null) {
+         throw new IOException("Unknown image format");
+      }
+      canvasWidth = decoded.getWidth();
+      canvasHeight = decoded.getHeight();
+      canvas = new int[canvasWidth * canvasHeight];
+      decoded.getPixels(canvas, 0, canvasWidth, 0, 0, canvasWidth, canvasHeight);
+      decoded.recycle();
+      decoded = null;
+      createMaps();
+   }
+
+   /**
+    * Read the stream up to the next frame. Return false at the end of the animation.
+    */
+   private boolean advance() throws IOException {
+      if (type == TYPE_GIF) {
+         while (true) {
+            int code = in.read();
+            if (code == 0x2C) {
+               return true;
+            } else if (code == 0x21) {
+               readGifExtension();
+            } else if (code != 0) {
+               // Trailer, end of stream or garbage after the last frame
+               return false;
+            }
+         }
+      } else if (type == TYPE_WEBP) {
+         while (true) {
+            if (readAtMost(in, block, 8) < 8) {
+               return false;
+            }
+            int size = readInt32(block, 4);
+            if (size < 0) {
+               return false;
+            }
+            int padded = size + (size & 1);
+            if (isFourCC(block, 0, "ANMF")) {
+               // The size is not trusted, a frame can't be bigger than the limit
+               if (size < ANMF_HEADER_SIZE || size > MAX_CHUNK_SIZE) {
+                  throw new IOException("Wrong ANMF chunk size " + size);
+               }
+               if (chunk == null || chunk.length < padded) {
+                  chunk = new byte[padded];
+               }
+               readFully(chunk, 0, padded);
+               chunkSize = size;
+               return true;
+            }
+            if (isFourCC(block, 0, "ANIM")) {
+               if (size < ANIM_SIZE) {
+                  throw new IOException("Wrong ANIM chunk size " + size);
+               }
+               readFully(block, 0, ANIM_SIZE);
+               loopCount = readShort(block, 4);
+               skipFully(padded - ANIM_SIZE);
+            } else {
+               skipFully(padded);
+            }
+         }
+      }
+      return false;
+   }
+
+   private void readGifExtension() throws IOException {
+      int label = readByte();
+      if (label == 0xF9) { // Graphic control
+         int size = readByte();
+         readFully(block, 0, size);
+         if (size >= 4) {
+            int packed = block[0] & 0xFF;
+            disposal = (packed >> 2) & 0x07;
+            isTransparent = (packed & 0x01) != 0;
+            delay = readShort(block, 1) * 10;
+            transparentIndex = block[3] & 0xFF;
+         }
+      } else if (label == 0xFF) { // Application
+         int size = readByte();
+         readFully(block, 0, size);
+         if (size == 11 && new String(block, 0, 11, "US-ASCII").equals("NETSCAPE2.0")) {
+            int length;
+            while ((length = readByte()) > 0) {
+               readFully(block, 0, length);
+               if (block[0] == 1 && length >= 3) {
+                  loopCount = readShort(block, 1);
+               }
+            }
+            return;
+         }
+      }
+      skipBlocks();
+   }
+
+   private int decodeGifFrame() throws IOException {
+      readFully(block, 0, 9);
+      int x = readShort(block, 0);
+      int y = readShort(block, 2);
+      int width = readShort(block, 4);
+      int height = readShort(block, 6);
+      int packed = block[8] & 0xFF;
+      int[] colors = globalColors;
+      if ((packed & 0x80) != 0) {
+         readColors(localColors, 2 << (packed & 0x07));
+         colors = localColors;
+      }
+      dispose();
+      if (disposal == DISPOSE_PREVIOUS) {
+         if (previous == null) {
+            previous = new int[canvas.length];
+         }
+         System.arraycopy(canvas, 0, previous, 0, canvas.length);
+      }
+      int count = decodeLzw(width * height);
+      boolean isInterlaced = (packed & 0x40) != 0;
+      int pass = 0;
+      int step = 8;
+      int line = 0;
+      int right = Math.min(x + width, canvasWidth);
+      for (int i = 0; i < height && i * width < count; i++) {
+         int row = i;
+         if (isInterlaced) {
+            while (line >= height && pass < 3) {
+               pass++;
+               line = 8 >> pass;
+               step = line << 1;
+            }
+            row = line;
+            line += step;
+         }
+         int dy = y + row;
+         if (dy >= canvasHeight) {
+            continue;
+         }
+         int index = i * width;
+         int end = Math.min(index + right - x, count);
+         for (int offset = dy * canvasWidth + x; index < end; index++, offset++) {
+            int color = indices[index] & 0xFF;
+            if (!isTransparent || color != transparentIndex) {
+               canvas[offset] = colors[color];
+            }
+         }
+      }
+      int duration = delay < MIN_DELAY ? DEFAULT_DELAY : delay;
+      setLastArea(disposal, x, y, width, height);
+      // Graphic control is valid for one frame
+      disposal = DISPOSE_NONE;
+      isTransparent = false;
+      delay = 0;
+      return duration;
+   }
+
+   /**
+    * Decode LZW data of the frame to indices. Return count of decoded pixels.
+    */
+   private int decodeLzw(int count) throws IOException {
+      if (prefix == null) {
+         prefix = new short[MAX_CODES];
+         suffix = new byte[MAX_CODES];
+         pixelStack = new byte[MAX_CODES + 1];
+      }
+      if (indices == null || indices.length < count) {
+         indices = new byte[count];
+      }
+      int dataSize = readByte();
+      if (dataSize < 1 || dataSize > 11) {
+         throw new IOException("Wrong LZW code size " + dataSize);
+      }
+      int clear = 1 << dataSize;
+      int end = clear + 1;
+      int available = clear + 2;
+      int codeSize = dataSize + 1;
+      int codeMask = (1 << codeSize) - 1;
+      for (int code = 0; code < clear; code++) {
+         prefix[code] = 0;
+         suffix[code] = (byte) code;
+      }
+      int oldCode = -1;
+      int first = 0;
+      int top = 0;
+      int datum = 0;
+      int bits = 0;
+      int blockSize = 0;
+      int blockPosition = 0;
+      boolean isTerminated = false;
+      int pixels = 0;
+      while (pixels < count) {
+         if (top == 0) {
+            if (bits < codeSize) {
+               if (blockPosition == blockSize) {
+                  blockSize = readByte();
+                  if (blockSize == 0) {
+                     isTerminated = true;
+                     break;
+                  }
+                  readFully(block, 0, blockSize);
+                  blockPosition = 0;
+               }
+               datum += (block[blockPosition++] & 0xFF) << bits;
+               bits += 8;
+               continue;
+            }
+            int code = datum & codeMask;
+            datum >>= codeSize;
+            bits -= codeSize;
+            if (code == clear) {
+               codeSize = dataSize + 1;
+               codeMask = (1 << codeSize) - 1;
+               available = clear + 2;
+               oldCode = -1;
+               continue;
+            }
+            if (code > available || code == end) {
+               break;
+            }
+            if (oldCode == -1) {
+               indices[pixels++] = suffix[code];
+               oldCode = code;
+               first = code;
+               continue;
+            }
+            int inCode = code;
+            if (code == available) {
+               pixelStack[top++] = (byte) first;
+               code = oldCode;
+            }
+            while (code > clear) {
+               pixelStack[top++] = suffix[code];
+               code = prefix[code];
+            }
+            first = suffix[code] & 0xFF;
+            pixelStack[top++] = (byte) first;
+            if (available < MAX_CODES) {
+               prefix[available] = (short) oldCode;
+               suffix[available] = (byte) first;
+               available++;
+               if ((available & codeMask) == 0 && available < MAX_CODES) {
+                  codeSize++;
+                  codeMask += available;
+               }
+            }
+            oldCode = inCode;
+         }
+         top--;
+         indices[pixels++] = pixelStack[top];
+      }
+      if (!isTerminated) {
+         skipBlocks();
+      }
+      return pixels;
+   }
+
+   /**
+    * Throw the exception if BitmapFactory of this Android version can't decode frames of the animated WebP with given VP8X flags
+    */
+   private static void checkWebpSupport(int flags) throws IOException {
+      if (Build.VERSION.SDK_INT < Build.VERSION_CODES.ICE_CREAM_SANDWICH) {
+         throw new IOException("Animated WebP is not supported on API " + Build.VERSION.SDK_INT);
+      }
+      if ((flags & 0x10) != 0 && Build.VERSION.SDK_INT < Build.VERSION_CODES.JELLY_BEAN_MR1) {
+         throw new IOException("Animated WebP with alpha is not supported on API " + Build.VERSION.SDK_INT);
+      }
+   }
+
+   private int decodeWebpFrame() throws IOException {
+      // The frame can't start outside of the canvas
+      int x = Math.min(2 * readInt24(chunk, 0), canvasWidth);
+      int y = Math.min(2 * readInt24(chunk, 3), canvasHeight);
+      int width = 1 + readInt24(chunk, 6);
+      int height = 1 + readInt24(chunk, 9);
+      int duration = readInt24(chunk, 12);
+      int flags = chunk[15];
+      boolean isBlend = (flags & 0x02) == 0;
+      // Frame data as standalone WebP, alpha needs the extended header
+      boolean isAlpha = false;
+      for (int offset = 16; offset + 8 <= chunkSize;) {
+         if (isFourCC(chunk, offset, "ALPH")) {
+            isAlpha = true;
+         }
+         int size = readInt32(chunk, offset + 4);
+         if (size < 0) {
+            break;
+         }
+         offset += 8 + size + (size & 1);
+      }
+      int dataSize = chunkSize - 16;
+      int length = 12 + (isAlpha ? 18 : 0) + dataSize;
+      if (image == null || image.length < length) {
+         image = new byte[length];
+      }
+      writeFourCC(image, 0, "RIFF");
+      writeInt32(image, 4, length - 8);
+      writeFourCC(image, 8, "WEBP");
+      int position = 12;
+      if (isAlpha) {
+         writeFourCC(image, 12, "VP8X");
+         writeInt32(image, 16, 10);
+         image[20] = 0x10;
+         image[21] = 0;
+         image[22] = 0;
+         image[23] = 0;
+         writeInt24(image, 24, width - 1);
+         writeInt24(image, 27, height - 1);
+         position = 30;
+      }
+      System.arraycopy(chunk, 16, image, position, dataSize);
+
+      BitmapFactory.Options options = new BitmapFactory.Options();
+      options.inPreferredConfig = Bitmap.Config.ARGB_8888;
+      Bitmap frame = null;
+      // Before KitKat inBitmap is supported only for JPEG and PNG, so every frame is a new bitmap there
+      if (decoded != null && Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT) {
+         options.inMutable = true;
+         options.inBitmap = decoded;
+         try {
+            frame = BitmapFactory.decodeByteArray(image, 0, length, options);
+         } catch (IllegalArgumentException e) {
+            // The previous frame is too small to be reused
+            options.inBitmap = null;
+         }
+      }
+      if (frame == null) {
+         frame = BitmapFactory.decodeByteArray(image, 0, length, options);
+      }
+      if (frame == null) {
+         throw new IOException("Can't decode WebP frame " + frameIndex);
+      }
+      if (decoded != null && decoded != frame) {
+         decoded.recycle();
+      }
+      decoded = frame;
+      width = Math.min(width, frame.getWidth());
+      height = Math.min(height, frame.getHeight());
+      if (framePixels == null || framePixels.length < width * height) {
+         framePixels = new int[width * height];
+      }
+      // Not premultiplied colors, the same as the canvas, see blend()
+      frame.getPixels(framePixels, 0, width, 0, 0, width, height);
+
+      dispose();
+      int right = Math.min(x + width, canvasWidth);
+      int bottom = Math.min(y + height, canvasHeight);
+      for (int row = y; row < bottom; row++) {
+         int index = (row - y) * width;
+         for (int offset = row * canvasWidth + x, end = row * canvasWidth + right; offset < end; offset++, index++) {
+            int color = framePixels[index];
+            canvas[offset] = isBlend ? blend(color, canvas[offset]) : color;
+         }
+      }
+      setLastArea((flags & 0x01) != 0 ? DISPOSE_BACKGROUND : DISPOSE_NONE, x, y, right - x, bottom - y);
+      return duration;
+   }
+
+   private Frame output(int duration) {
+      int buffer = frameIndex & 1;
+      if (buffers[buffer] == null) {
+         buffers[buffer] = pool.obtain(outWidth, outHeight, Bitmap.Config.ARGB_8888);
+         frames[buffer] = new Frame(buffers[buffer].get());
+      }
+      Frame frame = frames[buffer];
+      if (out == null) {
+         frame.bitmap.setPixels(canvas, 0, canvasWidth, 0, 0, outWidth, outHeight);
+      } else {
+         int index = 0;
+         for (int y = 0; y < outHeight; y++) {
+            int row = mapY[y] * canvasWidth;
+            for (int x = 0; x < outWidth; x++) {
+               out[index++] = canvas[row + mapX[x]];
+            }
+         }
+         frame.bitmap.setPixels(out, 0, outWidth, 0, 0, outWidth, outHeight);
+      }
+      frame.index = frameIndex++;
+      frame.duration = duration;
+      frame.timestamp = timestamp;
+      timestamp = timestamp + duration;
+      return frame;
+   }
+
+   private void setLastArea(int disposal, int x, int y, int width, int height) {
+      lastDisposal = disposal;
+      lastX = x;
+      lastY = y;
+      lastWidth = width;
+      lastHeight = height;
+   }
+
+   /**
+    * Dispose the area of the previous frame before drawing of the next one
+    */
+   private void dispose() {
+      if (lastDisposal != DISPOSE_BACKGROUND && (lastDisposal != DISPOSE_PREVIOUS || previous == null)) {
+         return;
+      }
+      int right = Math.min(lastX + lastWidth, canvasWidth);
+      int bottom = Math.min(lastY + lastHeight, canvasHeight);
+      for (int row = lastY; row < bottom; row++) {
+         int from = row * canvasWidth + lastX;
+         int to = row * canvasWidth + right;
+         if (lastDisposal == DISPOSE_PREVIOUS) {
+            System.arraycopy(previous, from, canvas, from, to - from);
+         } else {
+            for (int offset = from; offset < to; offset++) {
+               canvas[offset] = 0;
+            }
+         }
+      }
+      lastDisposal = DISPOSE_NONE;
+   }
+
+   /**
+    * Alpha blending of not premultiplied colors
+    */
+   private static int blend(int src, int dst) {
+      int srcAlpha = src >>> 24;
+      if (srcAlpha == 0xFF) {
+         return src;
+      }
+      if (srcAlpha == 0) {
+         return dst;
+      }
+      int dstAlpha = (dst >>> 24) * (0xFF - srcAlpha) / 0xFF;
+      int alpha = srcAlpha + dstAlpha;
+      int r = (((src >> 16) & 0xFF) * srcAlpha + ((dst >> 16) & 0xFF) * dstAlpha) / alpha;
+      int g = (((src >> 8) & 0xFF) * srcAlpha + ((dst >> 8) & 0xFF) * dstAlpha) / alpha;
+      int b = ((src & 0xFF) * srcAlpha + (dst & 0xFF) * dstAlpha) / alpha;
+      return (alpha << 24) | (r << 16) | (g << 8) | b;
+   }
+
+   /**
+    * Stream for the bounds probe of still images. BitmapFactory must not move the mark of the animation stream.
+    */
+   private static final class ProbeInputStream extends FilterInputStream {
+
+      private ProbeInputStream(InputStream in) {
+         super(in);
+      }
+
+      @Override
+      public boolean markSupported() {
+         return false;
+      }
+
+      @Override
+      public void mark(int readlimit) {
+         // Not supported
+      }
+
+      @Override
+      public void reset() throws IOException {
+         throw new IOException("Mark is not supported");
+      }
+
+      @Override
+      public void close() {
+         // The animation stream is closed by the animation
+      }
+
+   }
+
+   private static int[] createMap(int size, float offset, float scale, int limit, boolean isFlip) {
+      int[] map = new int[size];
+      for (int i = 0; i < size; i++) {
+         int position = isFlip ? size - 1 - i : i;
+         map[i] = Math.max(0, Math.min(limit - 1, (int) ((offset + position + 0.5f) * scale)));
+      }
+      return map;
+   }
+
+   private static boolean isIdentity(int[] map, int size) {
+      if (map.length != size) {
+         return false;
+      }
+      for (int i = 0; i < size; i++) {
+         if (map[i] != i) {
+            return false;
+         }
+      }
+      return true;
+   }
+
+   private void readColors(int[] colors, int count) throws IOException {
+      byte[] rgb = new byte[count * 3];
+      readFully(rgb, 0, rgb.length);
+      for (int i = 0; i < colors.length; i++) {
+         colors[i] = i < count ? 0xFF000000 | (rgb[i * 3] & 0xFF) << 16 | (rgb[i * 3 + 1] & 0xFF) << 8 | (rgb[i * 3 + 2] & 0xFF) : 0xFF000000;
+      }
+   }
+
+   private void skipBlocks() throws IOException {
+      int length;
+      while ((length = readByte()) > 0) {
+         skipFully(length);
+      }
+   }
+
+   private int readByte() throws IOException {
+      int value = in.read();
+      if (value < 0) {
+         throw new EOFException();
+      }
+      return value;
+   }
+
+   private void readFully(byte[] buffer, int offset, int length) throws IOException {
+      while (length > 0) {
+         int count = in.read(buffer, offset, length);
+         if (count < 0) {
+            throw new EOFException();
+         }
+         offset += count;
+         length -= count;
+      }
+   }
+
+   private void skipFully(long length) throws IOException {
+      while (length > 0) {
+         long count = in.skip(length);
+         if (count <= 0) {
+            readByte();
+            count = 1;
+         }
+         length -= count;
+      }
+   }
+
+   private static int readAtMost(InputStream in, byte[] buffer) throws IOException {
+      return readAtMost(in, buffer, buffer.length);
+   }
+
+   private static int readAtMost(InputStream in, byte[] buffer, int length) throws IOException {
+      int total = 0;
+      while (total < length) {
+         int count = in.read(buffer, total, length - total);
+         if (count < 0) {
+            break;
+         }
+         total += count;
+      }
+      return total;
+   }
+
+   private static boolean isFourCC(byte[] data, int offset, String fourCC) {
+      for (int i = 0; i < 4; i++) {
+         if (data[offset + i] != fourCC.charAt(i)) {
+            return false;
+         }
+      }
+      return true;
+   }
+
+   private static void writeFourCC(byte[] data, int offset, String fourCC) {
+      for (int i = 0; i < 4; i++) {
+         data[offset + i] = (byte) fourCC.charAt(i);
+      }
+   }
+
+   private static int readShort(byte[] data, int offset) {
+      return (data[offset] & 0xFF) | (data[offset + 1] & 0xFF) << 8;
+   }
+
+   private static int readInt24(byte[] data, int offset) {
+      return readShort(data, offset) | (data[offset + 2] & 0xFF) << 16;
+   }
+
+   private static int readInt32(byte[] data, int offset) {
+      return readInt24(data, offset) | (data[offset + 3] & 0xFF) << 24;
+   }
+
+   private static void writeInt24(byte[] data, int offset, int value) {
+      data[offset] = (byte) value;
+      data[offset + 1] = (byte) (value >> 8);
+      data[offset + 2] = (byte) (value >> 16);
+   }
+
+   private static void writeInt32(byte[] data, int offset, int value) {
+      writeInt24(data, offset, value);
+      data[offset + 3] = (byte) (value >> 24);
+   }
+
+}
@@ -0,0 +1,554 @@
+/*******************************************************************************
+ * Copyright (c) 2014 Alexandr Tsvetkov.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the The BSD 3-Clause License
+ * which accompanies this distribution, and is available at
+ * http://opensource.org/licenses/BSD-3-Clause
+ *
+ * Contributors:
+ *     Alexandr Tsvetkov - initial API and implementation
+ *
+ * Project:
+ *     TAO Bitmap Utils
+ *
+ * File name:
+ *     BitmapAtlas.java
+ *
+ * License agreement:
+ *
+ * 1. This code is published AS IS. Author is not responsible for any damage that can be
+ *    caused by any application that uses this code.
+ * 2. Author does not give a garantee, that this code is error free.
+ * 3. This code can be used in NON-COMMERCIAL applications AS IS without any special
+ *    permission from author.
+ * 4. This code can be modified without any special permission from author IF AND ONLY IF
+ *    this license agreement will remain unchanged.
+ * 5. SPECIAL PERMISSION for this code usage in COMMERCIAL application SHOULD be obtained
+ *    from author.
+ ******************************************************************************/
+package ua.at.tsvetkov.bitmap;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import ua.at.tsvetkov.io.FileIO;
+import ua.at.tsvetkov.util.Log;
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.Paint;
+import android.graphics.PorterDuff;
+import android.graphics.Rect;
+import android.graphics.RectF;
+
+/**
+ * Texture atlas: many small bitmaps packed into a few large pages, so they are drawn from a few bitmaps with less overhead. Free space of
+ * the page is tracked as the list of maximal free rectangles (MaxRects), a new bitmap takes the free rectangle with the best short side
+ * fit. Bitmaps may be added and removed at any time, the least recently used ones are evicted when all pages are full. Pages are taken
+ * from the {@link BitmapPool}. The atlas can be saved to the cache directory and loaded back. Thread safe.
+ *
+ * @author A.Tsvetkov 2014 http://tsvetkov.at.ua mailto:al@ukr.net
+ */
+public class BitmapAtlas {
+
+   public static final int           DEFAULT_PAGE_SIZE = 1024;
+   /** Gap around every bitmap filled with its edge pixels, so filtering does not take pixels of neighbours or transparent ones */
+   private static final int          PADDING           = 1;
+   private static final int          MAGIC             = 0x54414F41; // "TAOA"
+   private static final int          VERSION           = 1;
+
+   private final int                 pageSize;
+   private final int                 maxPages;
+   private final BitmapPool          pool;
+   private final List<Page>          pages             = new ArrayList<Page>();
+   private final Map<String, Region> regions           = new LinkedHashMap<String, Region>(16, 0.75f, true);
+   private final Canvas              canvas            = new Canvas();
+   private final Paint               paint             = new Paint(Paint.FILTER_BITMAP_FLAG);
+   private final Rect                src               = new Rect();
+   private final Rect                dst               = new Rect();
+
+   /**
+    * Page of the atlas with its free rectangles
+    */
+   private static final class Page {
+
+      private final BitmapHandle handle;
+      private final List<Rect>   free  = new ArrayList<Rect>();
+      private int                count = 0;
+
+      private Page(BitmapHandle handle, int size) {
+         this.handle = handle;
+         free.add(new Rect(0, 0, size, size));
+      }
+
+   }
+
+   /**
+    * Place of the bitmap in the atlas. It is valid until the bitmap is removed or evicted.
+    */
+   public static final class Region {
+
+      private final String key;
+      private final Page   page;
+      private final int    pageIndex;
+      private final Rect   bounds;
+      private final Rect   allocated;
+      private boolean      isRemoved;
+
+      private Region(String key, Page page, int pageIndex, Rect bounds) {
+         this.key = key;
+         this.page = page;
+         this.pageIndex = pageIndex;
+         this.bounds = bounds;
+         this.allocated = new Rect(bounds.left - PADDING, bounds.top - PADDING, bounds.right + PADDING, bounds.bottom + PADDING);
+      }
+
+      public String getKey() {
+         return key;
+      }
+
+      /**
+       * @return the page bitmap, owned by the atlas
+       */
+      public Bitmap getPage() {
+         return page.handle.get();
+      }
+
+      public int getPageIndex() {
+         return pageIndex;
+      }
+
+      /**
+       * @return area of the bitmap in the page
+       */
+      public Rect getBounds() {
+         return bounds;
+      }
+
+      public int getWidth() {
+         return bounds.width();
+      }
+
+      public int getHeight() {
+         return bounds.height();
+      }
+
+      /**
+       * Return false if the bitmap was removed from the atlas
+       *
+       * @return
+       */
+      public boolean isValid() {
+         return !isRemoved;
+      }
+
+      /**
+       * Draw the bitmap
+       *
+       * @param canvas
+       * @param dst
+       * @param paint
+       */
+      public void draw(Canvas canvas, RectF dst, Paint paint) {
+         canvas.drawBitmap(page.handle.get(), bounds, dst, paint);
+      }
+
+   }
+
+   /**
+    * Create the atlas
+    *
+    * @param pageSize size of the page side
+    * @param maxPages max count of pages, least recently used bitmaps are evicted when they are full
+    * @param pool pool of pages or null for the shared pool
+    */
+   public BitmapAtlas(int pageSize, int maxPages, BitmapPool pool) {
+      if (pageSize <= 2 * PADDING || maxPages <= 0) {
+         throw new IllegalArgumentException("Wrong atlas size parameters.");
+      }
+      this.pageSize = pageSize;
+      this.maxPages = maxPages;
+      this.pool = pool != null ? pool : BitmapPool.getInstance();
+   }
+
+   /**
+    * Create the atlas with pages of {@link #DEFAULT_PAGE_SIZE} and without limit of pages
+    */
+   public BitmapAtlas() {
+      this(DEFAULT_PAGE_SIZE, Integer.MAX_VALUE, null);
+   }
+
+   /**
+    * Copy the bitmap to the atlas. The bitmap with the same key is replaced.
+    *
+    * @param key
+    * @param bitmap
+    * @return region or null if the bitmap is larger than the page
+    */
+   public synchronized Region put(String key, Bitmap bitmap) {
+      remove(key);
+      int width = bitmap.getWidth() + 2 * PADDING;
+      int height = bitmap.getHeight() + 2 * PADDING;
+      if (width > pageSize || height > pageSize) {
+         Log.w("Bitmap " + bitmap.getWidth() + "x" + bitmap.getHeight() + " is larger than the atlas page " + pageSize);
+         return null;
+      }
+      Region region = allocate(key, width, height);
+      while (region == null && !regions.isEmpty()) {
+         // All pages are full, evict the least recently used bitmaps
+         remove(regions.keySet().iterator().next());
+         region = allocate(key, width, height);
+      }
+      if (region == null) {
+         return null;
+      }
+      canvas.setBitmap(region.page.handle.get());
+      canvas.drawBitmap(bitmap, null, region.bounds, paint);
+      extrude(bitmap, region.bounds);
+      regions.put(key, region);
+      return region;
+   }
+
+   /**
+    * Transform the bitmap and copy the result to the atlas
+    *
+    * @param key
+    * @param transformer
+    * @return region or null if the transformation failed or the result is larger than the page
+    */
+   public Region put(String key, BitmapTransformer transformer) {
+      BitmapHandle handle = transformer.transformHandle();
+      if (handle == null) {
+         return null;
+      }
+      try {
+         return put(key, handle.get());
+      } finally {
+         handle.release();
+      }
+   }
+
+   /**
+    * Return the region of the bitmap or null
+    *
+    * @param key
+    * @return
+    */
+   public synchronized Region get(String key) {
+      return regions.get(key);
+   }
+
+   /**
+    * Remove the bitmap from the atlas, its space is reused
+    *
+    * @param key
+    */
+   public synchronized void remove(String key) {
+      Region region = regions.remove(key);
+      if (region == null) {
+         return;
+      }
+      region.isRemoved = true;
+      Page page = region.page;
+      canvas.setBitmap(page.handle.get());
+      canvas.save();
+      canvas.clipRect(region.allocated);
+      canvas.drawColor(Color.TRANSPARENT, PorterDuff.Mode.CLEAR);
+      canvas.restore();
+      page.count--;
+      // Rebuild maximal free rectangles, adding of the freed one only would fragment the page
+      page.free.clear();
+      page.free.add(new Rect(0, 0, pageSize, pageSize));
+      if (page.count > 0) {
+         for (Region other : regions.values()) {
+            if (other.page == page) {
+               occupy(page.free, other.allocated);
+            }
+         }
+      }
+   }
+
+   /**
+    * Remove all bitmaps and put the pages to the pool
+    */
+   public synchronized void clear() {
+      for (Region region : regions.values()) {
+         region.isRemoved = true;
+      }
+      regions.clear();
+      for (Page page : pages) {
+         page.handle.release();
+      }
+      pages.clear();
+   }
+
+   /**
+    * Return count of bitmaps in the atlas
+    *
+    * @return
+    */
+   public synchronized int getCount() {
+      return regions.size();
+   }
+
+   public synchronized int getPagesCount() {
+      return pages.size();
+   }
+
+   /**
+    * Return the page bitmap, owned by the atlas
+    *
+    * @param index
+    * @return
+    */
+   public synchronized Bitmap getPage(int index) {
+      return pages.get(index).handle.get();
+   }
+
+   public int getPageSize() {
+      return pageSize;
+   }
+
+   /**
+    * Save the atlas to the cache directory, see {@link FileIO#getCacheFileName(String)}. The page files are registered in the
+    * {@link BitmapCacheIndex}.
+    *
+    * @param name
+    * @return true if success
+    */
+   public synchronized boolean save(String name) {
+      for (int i = 0; i < pages.size(); i++) {
+         String pageFileName = getPageFileName(name, i);
+         if (!BitmapRawFile.save(pages.get(i).handle.get(), pageFileName, true)) {
+            return false;
+         }
+         BitmapCacheIndex.getInstance().put(pageFileName, new File(pageFileName).length(), pageSize, pageSize, null);
+      }
+      String fileName = FileIO.getCacheFileName(name + ".atlas");
+      DataOutputStream out = null;
+      try {
+         out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(fileName)));
+         out.writeInt(MAGIC);
+         out.writeInt(VERSION);
+         out.writeInt(pageSize);
+         out.writeInt(pages.size());
+         out.writeInt(regions.size());
+         // From the least recently used, so the order is restored on load
+         for (Region region : regions.values()) {
+            out.writeUTF(region.key);
+            out.writeInt(region.pageIndex);
+            out.writeInt(region.bounds.left);
+            out.writeInt(region.bounds.top);
+            out.writeInt(region.bounds.right);
+            out.writeInt(region.bounds.bottom);
+         }
+         out.close();
+         out = null;
+         return true;
+      } catch (IOException e) {
+         Log.e("Can't save atlas " + fileName, e);
+         return false;
+      } finally {
+         if (out != null) {
+            try {
+               out.close();
+            } catch (IOException e) {
+               Log.e(e);
+            }
+         }
+      }
+   }
+
+   /**
+    * Load the atlas saved by {@link #save(String)}
+    *
+    * @param name
+    * @param maxPages
+    * @param pool pool of pages or null for the shared pool
+    * @return atlas or null if it is not saved or damaged
+    */
+   public static BitmapAtlas load(String name, int maxPages, BitmapPool pool) {
+      File file = new File(FileIO.getCacheFileName(name + ".atlas"));
+      if (!file.exists()) {
+         return null;
+      }
+      BitmapAtlas atlas = null;
+      DataInputStream in = null;
+      try {
+         in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+         if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+            Log.w("Unknown atlas format " + file);
+            return null;
+         }
+         atlas = new BitmapAtlas(in.readInt(), maxPages, pool);
+         int pagesCount = in.readInt();
+         for (int i = 0; i < pagesCount; i++) {
+            Bitmap bitmap = BitmapRawFile.load(getPageFileName(name, i));
+            if (bitmap == null || bitmap.getWidth() != atlas.pageSize || bitmap.getHeight() != atlas.pageSize || !bitmap.isMutable()) {
+               Log.w("Damaged atlas page " + getPageFileName(name, i));
+               atlas.clear();
+               return null;
+            }
+            atlas.pages.add(new Page(BitmapHandle.obtain(bitmap, atlas.pool), atlas.pageSize));
+         }
+         int count = in.readInt();
+         for (int i = 0; i < count; i++) {
+            String key = in.readUTF();
+            int pageIndex = in.readInt();
+            Rect bounds = new Rect(in.readInt(), in.readInt(), in.readInt(), in.readInt());
+            Page page = atlas.pages.get(pageIndex);
+            Region region = new Region(key, page, pageIndex, bounds);
+            occupy(page.free, region.allocated);
+            page.count++;
+            atlas.regions.put(key, region);
+         }
+         return atlas;
+      } catch (Exception e) {
+         Log.e("Can't load atlas " + file, e);
+         if (atlas != null) {
+            atlas.clear();
+         }
+         return null;
+      } finally {
+         if (in != null) {
+            try {
+               in.close();
+            } catch (IOException e) {
+               Log.e(e);
+            }
+         }
+      }
+   }
+
+   // ************************* Private methods ******************************
+
+   private Region allocate(String key, int width, int height) {
+      for (int i = 0; i < pages.size(); i++) {
+         Region region = allocate(key, i, width, height);
+         if (region != null) {
+            return region;
+         }
+      }
+      if (pages.size() >= maxPages) {
+         return null;
+      }
+      pages.add(new Page(pool.obtain(pageSize, pageSize, Bitmap.Config.ARGB_8888), pageSize));
+      return allocate(key, pages.size() - 1, width, height);
+   }
+
+   /**
+    * Best short side fit
+    */
+   private Region allocate(String key, int pageIndex, int width, int height) {
+      Page page = pages.get(pageIndex);
+      Rect best = null;
+      int bestShort = Integer.MAX_VALUE;
+      int bestLong = Integer.MAX_VALUE;
+      for (Rect rect : page.free) {
+         int dx = rect.width() - width;
+         int dy = rect.height() - height;
+         if (dx < 0 || dy < 0) {
+            continue;
+         }
+         int shortSide = Math.min(dx, dy);
+         int longSide = Math.max(dx, dy);
+         if (shortSide < bestShort || (shortSide == bestShort && longSide < bestLong)) {
+            best = rect;
+            bestShort = shortSide;
+            bestLong = longSide;
+         }
+      }
+      if (best == null) {
+         return null;
+      }
+      Rect allocated = new Rect(best.left, best.top, best.left + width, best.top + height);
+      occupy(page.free, allocated);
+      page.count++;
+      return new Region(key, page, pageIndex, new Rect(allocated.left + PADDING, allocated.top + PADDING, allocated.right - PADDING,
+            allocated.bottom - PADDING));
+   }
+
+   /**
+    * Split free rectangles which intersect the used area and drop the ones contained in others
+    */
+   private static void occupy(List<Rect> free, Rect used) {
+      List<Rect> parts = new ArrayList<Rect>();
+      for (Iterator<Rect> iterator = free.iterator(); iterator.hasNext();) {
+         Rect rect = iterator.next();
+         if (!Rect.intersects(rect, used)) {
+            continue;
+         }
+         iterator.remove();
+         if (used.left > rect.left) {
+            parts.add(new Rect(rect.left, rect.top, used.left, rect.bottom));
+         }
+         if (used.right < rect.right) {
+            parts.add(new Rect(used.right, rect.top, rect.right, rect.bottom));
+         }
+         if (used.top > rect.top) {
+            parts.add(new Rect(rect.left, rect.top, rect.right, used.top));
+         }
+         if (used.bottom < rect.bottom) {
+            parts.add(new Rect(rect.left, used.bottom, rect.right, rect.bottom));
+         }
+      }
+      free.addAll(parts);
+      prune(free);
+   }
+
+   private static void prune(List<Rect> free) {
+      for (int i = 0; i < free.size(); i++) {
+         Rect a = free.get(i);
+         for (int j = i + 1; j < free.size(); j++) {
+            Rect b = free.get(j);
+            if (a.contains(b)) {
+               free.remove(j);
+               j--;
+            } else if (b.contains(a)) {
+               free.remove(i);
+               i--;
+               break;
+            }
+         }
+      }
+   }
+
+   /**
+    * Stretch the edge rows and columns of the bitmap, drawn to the bounds on the current page, over the padding around it
+    */
+   private void extrude(Bitmap bitmap, Rect bounds) {
+      int width = bitmap.getWidth();
+      int height = bitmap.getHeight();
+      for (int i = -1; i <= 1; i++) {
+         for (int j = -1; j <= 1; j++) {
+            if (i == 0 && j == 0) {
+               continue;
+            }
+            // One pixel wide edge or corner of the bitmap and the part of the padding beside it
+            src.set(i > 0 ? width - 1 : 0, j > 0 ? height - 1 : 0, i < 0 ? 1 : width, j < 0 ? 1 : height);
+            int left = i < 0 ? bounds.left - PADDING : (i > 0 ? bounds.right : bounds.left);
+            int top = j < 0 ? bounds.top - PADDING : (j > 0 ? bounds.bottom : bounds.top);
+            int right = i < 0 ? bounds.left : (i > 0 ? bounds.right + PADDING : bounds.right);
+            int bottom = j < 0 ? bounds.top : (j > 0 ? bounds.bottom + PADDING : bounds.bottom);
+            dst.set(left, top, right, bottom);
+            canvas.drawBitmap(bitmap, src, dst, null);
+         }
+      }
+   }
+
+   private static String getPageFileName(String name, int index) {
+      return FileIO.getCacheFileName(name + "_atlas_" + index + ".raw");
+   }
+
+}
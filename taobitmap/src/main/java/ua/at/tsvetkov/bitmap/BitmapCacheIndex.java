@@ -0,0 +1,550 @@
+/*******************************************************************************
+ * Copyright (c) 2014 Alexandr Tsvetkov.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the The BSD 3-Clause License
+ * which accompanies this distribution, and is available at
+ * http://opensource.org/licenses/BSD-3-Clause
+ *
+ * Contributors:
+ *     Alexandr Tsvetkov - initial API and implementation
+ *
+ * Project:
+ *     TAO Bitmap Utils
+ *
+ * File name:
+ *     BitmapCacheIndex.java
+ *
+ * License agreement:
+ *
+ * 1. This code is published AS IS. Author is not responsible for any damage that can be
+ *    caused by any application that uses this code.
+ * 2. Author does not give a garantee, that this code is error free.
+ * 3. This code can be used in NON-COMMERCIAL applications AS IS without any special
+ *    permission from author.
+ * 4. This code can be modified without any special permission from author IF AND ONLY IF
+ *    this license agreement will remain unchanged.
+ * 5. SPECIAL PERMISSION for this code usage in COMMERCIAL application SHOULD be obtained
+ *    from author.
+ ******************************************************************************/
+package ua.at.tsvetkov.bitmap;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+import ua.at.tsvetkov.io.FileIO;
+import ua.at.tsvetkov.util.Log;
+import android.graphics.BitmapFactory;
+
+/**
+ * Persistent index of the cache directory of {@link BitmapCaсheIO}. For every cache file it keeps the file size, image dimensions, MIME
+ * type, the last access time and the perceptual hash, see {@link BitmapHashIndex}, so after the application start it is known what is cached
+ * without file system calls and bounds decodes.
+ * <p>
+ * The index is an append-only log of records, every record is protected by CRC32. The log is replayed on the first use; a record which was
+ * torn by a crash is dropped with the rest of the log tail. The log is compacted when it contains much more records than entries.
+ *
+ * @author A.Tsvetkov 2014 http://tsvetkov.at.ua mailto:al@ukr.net
+ */
+public class BitmapCacheIndex {
+
+   public static final String       INDEX_FILE_NAME = "bitmap_cache.idx";
+
+   private static final int         MAGIC           = 0x54414F49; // "TAOI"
+   private static final int         VERSION         = 1;
+   private static final int         HEADER_SIZE     = 8;
+   private static final int         OP_PUT          = 1;
+   private static final int         OP_TOUCH        = 2;
+   private static final int         OP_REMOVE       = 3;
+   private static final int         MAX_RECORD_SIZE = 64 * 1024;
+   private static final int         COMPACT_RATIO   = 4;
+   private static final int         COMPACT_MIN     = 256;
+   /** The access time is logged not more often than this, in ms */
+   private static final long        TOUCH_INTERVAL  = 60 * 1000;
+
+   private static BitmapCacheIndex  instance;
+
+   private final String             fileName;
+   private final Map<String, Entry> entries         = new HashMap<String, Entry>();
+   private DataOutputStream         out;
+   private int                      recordsCount;
+   private long                     totalBytes;
+
+   /**
+    * Cache file description
+    */
+   public static final class Entry {
+
+      private final String key;
+      private long         size;
+      private int          width;
+      private int          height;
+      private String       mimeType;
+      private long         lastAccess;
+      private long         loggedAccess;
+      private boolean      isHashed;
+      private long         hash;
+
+      private Entry(String key) {
+         this.key = key;
+      }
+
+      public String getKey() {
+         return key;
+      }
+
+      /**
+       * @return file size in bytes
+       */
+      public long getSize() {
+         return size;
+      }
+
+      public int getWidth() {
+         return width;
+      }
+
+      public int getHeight() {
+         return height;
+      }
+
+      public String getMimeType() {
+         return mimeType;
+      }
+
+      /**
+       * @return time of the last access, see {@link System#currentTimeMillis()}
+       */
+      public long getLastAccess() {
+         return lastAccess;
+      }
+
+      /**
+       * @return true if the perceptual hash of the image is known
+       */
+      public boolean isHashed() {
+         return isHashed;
+      }
+
+      /**
+       * @return perceptual hash of the image, see {@link BitmapHashIndex}
+       */
+      public long getHash() {
+         return hash;
+      }
+
+   }
+
+   /**
+    * Create the index which is stored in the given file. The log is replayed immediately.
+    *
+    * @param fileName
+    */
+   public BitmapCacheIndex(String fileName) {
+      this.fileName = fileName;
+      load();
+   }
+
+   /**
+    * Return the index of {@link BitmapCaсheIO} cache directory
+    *
+    * @return
+    */
+   public static synchronized BitmapCacheIndex getInstance() {
+      if (instance == null) {
+         instance = new BitmapCacheIndex(FileIO.getCacheFileName(INDEX_FILE_NAME));
+      }
+      return instance;
+   }
+
+   /**
+    * Return the cache file description or null if the file is not cached.
+    *
+    * @param key cache file name
+    * @return
+    */
+   public synchronized Entry get(String key) {
+      return entries.get(key);
+   }
+
+   /**
+    * Return true if the file is cached
+    *
+    * @param key cache file name
+    * @return
+    */
+   public synchronized boolean contains(String key) {
+      return entries.containsKey(key);
+   }
+
+   /**
+    * Add the cache file to the index
+    *
+    * @param key cache file name
+    * @param size file size in bytes
+    * @param width image width
+    * @param height image height
+    * @param mimeType image MIME type or null
+    */
+   public synchronized void put(String key, long size, int width, int height, String mimeType) {
+      Entry entry = entries.get(key);
+      if (entry == null) {
+         entry = new Entry(key);
+         entries.put(key, entry);
+      } else {
+         totalBytes = totalBytes - entry.size;
+      }
+      entry.size = size;
+      entry.width = width;
+      entry.height = height;
+      entry.mimeType = mimeType;
+      entry.lastAccess = System.currentTimeMillis();
+      totalBytes = totalBytes + size;
+      append(OP_PUT, entry);
+   }
+
+   /**
+    * Add the cache file with given content to the index, the image bounds are read from the data.
+    *
+    * @param key cache file name
+    * @param data
+    */
+   public void put(String key, byte[] data) {
+      BitmapFactory.Options options = new BitmapFactory.Options();
+      options.inJustDecodeBounds = true;
+      BitmapFactory.decodeByteArray(data, 0, data.length, options);
+      put(key, data.length, options.outWidth, options.outHeight, options.outMimeType);
+   }
+
+   /**
+    * Set the perceptual hash of the cache file
+    *
+    * @param key cache file name
+    * @param hash
+    */
+   public synchronized void setHash(String key, long hash) {
+      Entry entry = entries.get(key);
+      if (entry == null || (entry.isHashed && entry.hash == hash)) {
+         return;
+      }
+      entry.isHashed = true;
+      entry.hash = hash;
+      append(OP_PUT, entry);
+   }
+
+   /**
+    * Update the last access time of the cache file
+    *
+    * @param key cache file name
+    */
+   public synchronized void touch(String key) {
+      Entry entry = entries.get(key);
+      if (entry == null) {
+         return;
+      }
+      entry.lastAccess = System.currentTimeMillis();
+      if (entry.lastAccess - entry.loggedAccess >= TOUCH_INTERVAL) {
+         append(OP_TOUCH, entry);
+      }
+   }
+
+   /**
+    * Remove the cache file from the index. The file itself is not deleted.
+    *
+    * @param key cache file name
+    */
+   public synchronized void remove(String key) {
+      Entry entry = entries.remove(key);
+      if (entry != null) {
+         totalBytes = totalBytes - entry.size;
+         append(OP_REMOVE, entry);
+      }
+   }
+
+   /**
+    * Return count of cached files
+    *
+    * @return
+    */
+   public synchronized int getCount() {
+      return entries.size();
+   }
+
+   /**
+    * Return total size of cached files in bytes
+    *
+    * @return
+    */
+   public synchronized long getTotalBytes() {
+      return totalBytes;
+   }
+
+   /**
+    * Return all entries, the least recently used first. Useful for the cache trimming.
+    *
+    * @return
+    */
+   public synchronized List<Entry> getEntries() {
+      List<Entry> list = new ArrayList<Entry>(entries.values());
+      Collections.sort(list, new Comparator<Entry>() {
+
+         @Override
+         public int compare(Entry lhs, Entry rhs) {
+            return lhs.lastAccess < rhs.lastAccess ? -1 : (lhs.lastAccess == rhs.lastAccess ? 0 : 1);
+         }
+      });
+      return list;
+   }
+
+   /**
+    * Remove entries of the files which don't exist anymore. It makes a file system call for every entry, so call it in background.
+    *
+    * @return count of removed entries
+    */
+   public int verify() {
+      int count = 0;
+      for (Entry entry : getEntries()) {
+         if (!new File(entry.key).exists()) {
+            remove(entry.key);
+            count++;
+         }
+      }
+      return count;
+   }
+
+   /**
+    * Rewrite the log with one record per entry
+    */
+   public synchronized void compact() {
+      closeLog();
+      String tmpFileName = fileName + ".tmp";
+      DataOutputStream tmp = null;
+      try {
+         tmp = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmpFileName)));
+         tmp.writeInt(MAGIC);
+         tmp.writeInt(VERSION);
+         for (Entry entry : entries.values()) {
+            writeRecord(tmp, OP_PUT, entry);
+         }
+         tmp.close();
+         tmp = null;
+         if (!new File(tmpFileName).renameTo(new File(fileName))) {
+            Log.e("Can't rename cache index " + tmpFileName);
+            return;
+         }
+         recordsCount = entries.size();
+      } catch (IOException e) {
+         Log.e("Can't compact cache index " + fileName, e);
+      } finally {
+         if (tmp != null) {
+            try {
+               tmp.close();
+            } catch (IOException e) {
+               Log.e(e);
+            }
+         }
+      }
+   }
+
+   /**
+    * Close the log file. It is reopened on the next change.
+    */
+   public synchronized void close() {
+      closeLog();
+   }
+
+   // ************************* Private methods ******************************
+
+   /**
+    * Replay the log and cut the torn tail
+    */
+   private void load() {
+      File file = new File(fileName);
+      if (!file.exists()) {
+         return;
+      }
+      long validLength = 0;
+      DataInputStream in = null;
+      try {
+         in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 32 * 1024));
+         if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+            Log.w("Unknown cache index format, it is dropped " + fileName);
+            in.close();
+            in = null;
+            file.delete();
+            return;
+         }
+         validLength = HEADER_SIZE;
+         CRC32 crc = new CRC32();
+         byte[] body = new byte[256];
+         while (true) {
+            int length = in.readInt();
+            long checksum = in.readInt() & 0xFFFFFFFFL;
+            if (length <= 0 || length > MAX_RECORD_SIZE) {
+               break;
+            }
+            if (body.length < length) {
+               body = new byte[length];
+            }
+            in.readFully(body, 0, length);
+            crc.reset();
+            crc.update(body, 0, length);
+            if (crc.getValue() != checksum) {
+               break;
+            }
+            replay(new DataInputStream(new ByteArrayInputStream(body, 0, length)));
+            recordsCount++;
+            validLength = validLength + 8 + length;
+         }
+      } catch (EOFException e) {
+         // End of the log
+      } catch (IOException e) {
+         Log.e("Can't read cache index " + fileName, e);
+      } finally {
+         if (in != null) {
+            try {
+               in.close();
+            } catch (IOException e) {
+               Log.e(e);
+            }
+         }
+      }
+      if (validLength < file.length()) {
+         Log.w("Cache index tail is damaged, " + (file.length() - validLength) + " bytes are dropped");
+         truncate(file, validLength);
+      }
+   }
+
+   private void replay(DataInputStream in) throws IOException {
+      int op = in.readByte();
+      String key = in.readUTF();
+      long size = in.readLong();
+      int width = in.readInt();
+      int height = in.readInt();
+      long lastAccess = in.readLong();
+      String mimeType = in.readUTF();
+      boolean isHashed = in.readBoolean();
+      long hash = isHashed ? in.readLong() : 0;
+      Entry entry = entries.get(key);
+      if (op == OP_REMOVE) {
+         if (entry != null) {
+            entries.remove(key);
+            totalBytes = totalBytes - entry.size;
+         }
+         return;
+      }
+      if (entry == null) {
+         if (op != OP_PUT) {
+            return;
+         }
+         entry = new Entry(key);
+         entries.put(key, entry);
+      } else {
+         totalBytes = totalBytes - entry.size;
+      }
+      entry.size = size;
+      entry.width = width;
+      entry.height = height;
+      entry.mimeType = mimeType.length() == 0 ? null : mimeType;
+      entry.lastAccess = lastAccess;
+      entry.loggedAccess = lastAccess;
+      if (isHashed) {
+         entry.isHashed = true;
+         entry.hash = hash;
+      }
+      totalBytes = totalBytes + size;
+   }
+
+   private void truncate(File file, long length) {
+      RandomAccessFile raf = null;
+      try {
+         raf = new RandomAccessFile(file, "rw");
+         raf.setLength(length);
+      } catch (IOException e) {
+         Log.e("Can't truncate cache index " + fileName, e);
+      } finally {
+         if (raf != null) {
+            try {
+               raf.close();
+            } catch (IOException e) {
+               Log.e(e);
+            }
+         }
+      }
+   }
+
+   private void append(int op, Entry entry) {
+      try {
+         if (out == null) {
+            File file = new File(fileName);
+            boolean isNew = !file.exists() || file.length() < HEADER_SIZE;
+            out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file, !isNew)));
+            if (isNew) {
+               out.writeInt(MAGIC);
+               out.writeInt(VERSION);
+               recordsCount = 0;
+            }
+         }
+         writeRecord(out, op, entry);
+         out.flush();
+         entry.loggedAccess = entry.lastAccess;
+         recordsCount++;
+      } catch (IOException e) {
+         Log.e("Can't write cache index " + fileName, e);
+         closeLog();
+      }
+      if (recordsCount > COMPACT_MIN && recordsCount > entries.size() * COMPACT_RATIO) {
+         compact();
+      }
+   }
+
+   private static void writeRecord(DataOutputStream stream, int op, Entry entry) throws IOException {
+      ByteArrayOutputStream buffer = new ByteArrayOutputStream(64 + entry.key.length());
+      DataOutputStream body = new DataOutputStream(buffer);
+      body.writeByte(op);
+      body.writeUTF(entry.key);
+      body.writeLong(entry.size);
+      body.writeInt(entry.width);
+      body.writeInt(entry.height);
+      body.writeLong(entry.lastAccess);
+      body.writeUTF(entry.mimeType == null ? "" : entry.mimeType);
+      body.writeBoolean(entry.isHashed);
+      if (entry.isHashed) {
+         body.writeLong(entry.hash);
+      }
+      byte[] data = buffer.toByteArray();
+      CRC32 crc = new CRC32();
+      crc.update(data, 0, data.length);
+      stream.writeInt(data.length);
+      stream.writeInt((int) crc.getValue());
+      stream.write(data);
+   }
+
+   private void closeLog() {
+      if (out != null) {
+         try {
+            out.close();
+         } catch (IOException e) {
+            Log.e("Can't close cache index " + fileName, e);
+         }
+         out = null;
+      }
+   }
+
+}
@@ -30,8 +30,15 @@ package ua.at.tsvetkov.bitmap;
 
 import java.io.File;
 import java.io.FileInputStream;
+import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
+import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.DigestInputStream;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 
 import ua.at.tsvetkov.application.AppConfig;
 import ua.at.tsvetkov.io.FileIO;
@@ -47,10 +54,31 @@ import android.graphics.BitmapFactory;
  */
 public class BitmapCaсheIO {
 
+   /**
+    * Thumbnail proportions may differ from the image not more than by 1/50
+    */
+   private static final int                   MAX_THUMBNAIL_DISTORTION = 50;
+
+   private static volatile BitmapEncodedCache encodedCache;
+
    private BitmapCaсheIO() {
 
    }
 
+   /**
+    * Set the memory tier of encoded cache files, see {@link BitmapEncodedCache}. Written cache files are put to the tier and cache files
+    * are decoded from it before the cache directory is accessed. Null disables the tier, it is disabled by default.
+    * 
+    * @param cache
+    */
+   public static void setEncodedCache(BitmapEncodedCache cache) {
+      encodedCache = cache;
+   }
+
+   public static BitmapEncodedCache getEncodedCache() {
+      return encodedCache;
+   }
+
    /**
     * Create cached resized bitmap with NEAREST size from byte array. Cache file placed in cache directory, see
     * {@link FileIO#getCacheFileName(String str)}
@@ -75,6 +103,10 @@ public class BitmapCaсheIO {
     * @return
     */
    public static Bitmap createSampledCaсhedBitmap(String caсhedFileName, byte[] data, float reqWidth, float reqHeight) {
+      Bitmap bitmap = decodeEncoded(caсhedFileName, reqWidth, reqHeight, null, false);
+      if (bitmap != null) {
+         return bitmap;
+      }
       if (saveCaсheFile(caсhedFileName, data)) {
          return decodeSampledBitmapFromFile(caсhedFileName, reqWidth, reqHeight);
       } else {
@@ -124,83 +156,265 @@ public class BitmapCaсheIO {
    }
 
    /**
-    * Copy source file to cache file placed in cache directory, see {@link FileIO#getCacheFileName(String str)}
+    * Copy source stream to cache file placed in cache directory, see {@link FileIO#getCacheFileName(String str)}. The file is named by the
+    * MD5 of the copied data, so the same image from any source lands in the same cache file. The stream is closed.
     * 
     * @param in
     * @return cache file name or null
     */
    public static String copyToCaсheFile(InputStream in) {
+      File tmpFile = createTempCacheFile();
+      FileOutputStream out = null;
       try {
-         File file = new File(getCachedFileName(new byte[] { 7, 7, 7, 7, 7, 7, 7 })); // Stub file name
-         FileOutputStream fOut = new FileOutputStream(file);
+         MessageDigest digest = MessageDigest.getInstance("MD5");
+         in = new DigestInputStream(in, digest);
+         out = new FileOutputStream(tmpFile);
          byte[] buffer = new byte[1024 * 8];
-         int bytesRead = -1;
+         int bytesRead;
          while ((bytesRead = in.read(buffer)) != -1) {
-            fOut.write(buffer, 0, bytesRead);
+            out.write(buffer, 0, bytesRead);
          }
-         fOut.flush();
-         fOut.close();
-         in.close();
-         buffer = null;
-         String caсhedFileName = Md5.getHashString(file.getName());
-         if (!file.renameTo(new File(caсhedFileName))) {
-            Log.e("Can't rename cache file" + file.getName());
-            return null;
-         }
-         return caсhedFileName;
+         out.close();
+         out = null;
+         return storeCacheFile(tmpFile, digest);
       } catch (Exception e) {
          Log.e("Can't create cache file from InputStream", e);
+         tmpFile.delete();
          return null;
+      } finally {
+         close(in, out);
+      }
+   }
+
+   /**
+    * Decode Base64-encoded data to cache file placed in cache directory, see {@link FileIO#getCacheFileName(String str)}. The data is
+    * decoded and hashed chunk by chunk while it is written, so memory use does not depend on the data size.
+    * 
+    * @param encoded Base64-encoded data
+    * @return cache file name or null
+    */
+   public static String copyEncodedToCacheFile(CharSequence encoded) {
+      File tmpFile = createTempCacheFile();
+      InputStream in = null;
+      FileOutputStream out = null;
+      try {
+         MessageDigest digest = MessageDigest.getInstance("MD5");
+         in = new DigestInputStream(CharSequenceInputStream.openBase64(encoded), digest);
+         out = new FileOutputStream(tmpFile);
+         byte[] buffer = new byte[1024 * 8];
+         int bytesRead;
+         while ((bytesRead = in.read(buffer)) != -1) {
+            out.write(buffer, 0, bytesRead);
+         }
+         out.close();
+         out = null;
+         return storeCacheFile(tmpFile, digest);
+      } catch (Exception e) {
+         Log.e("Can't create cache file from encoded data", e);
+         tmpFile.delete();
+         return null;
+      } finally {
+         close(in, out);
       }
    }
 
    /**
     * Compress bitmap to cache file placed in cache directory, see {@link FileIO#getCacheFileName(String str)}. If compressing was success then
-    * bitmap will recicle.
+    * bitmap will recicle. Use {@link #copyToCaсheFile(BitmapHandle)} for shared bitmaps.
     * 
     * @param bitmap
     * @return cache file name or null
     */
    public static String copyToCaсheFile(Bitmap bitmap) {
-      File file = new File(getCachedFileName(new byte[] { 7, 7, 7, 7, 7, 7, 7 })); // Stub file name
+      String caсhedFileName = compressToCacheFile(bitmap);
+      if (caсhedFileName != null) {
+         bitmap.recycle();
+      }
+      return caсhedFileName;
+   }
+
+   /**
+    * Compress bitmap to cache file placed in cache directory, see {@link FileIO#getCacheFileName(String str)}. The bitmap is not recycled and
+    * the reference of the caller is not released.
+    * 
+    * @param handle
+    * @return cache file name or null
+    */
+   public static String copyToCaсheFile(BitmapHandle handle) {
+      return compressToCacheFile(handle.get());
+   }
+
+   /**
+    * Compress the bitmap to PNG, the cache file is named by the MD5 of the compressed data
+    */
+   private static String compressToCacheFile(Bitmap bitmap) {
+      File tmpFile = createTempCacheFile();
+      OutputStream out = null;
       try {
-         bitmap.compress(Bitmap.CompressFormat.PNG, 0, new FileOutputStream(file));
-         String caсhedFileName = Md5.getHashString(file.getName());
-         if (!file.renameTo(new File(caсhedFileName))) {
-            Log.e("Can't rename cache file" + file.getName());
+         MessageDigest digest = MessageDigest.getInstance("MD5");
+         out = new DigestOutputStream(new FileOutputStream(tmpFile), digest);
+         if (!bitmap.compress(Bitmap.CompressFormat.PNG, 0, out)) {
+            Log.e("Can't compress bitmap to file");
+            tmpFile.delete();
             return null;
          }
-         bitmap.recycle();
-         return caсhedFileName;
+         out.close();
+         out = null;
+         return storeCacheFile(tmpFile, digest);
       } catch (Exception e) {
          Log.e("Can't compress bitmap to file", e);
+         tmpFile.delete();
+         return null;
+      } finally {
+         close(null, out);
+      }
+   }
+
+   private static File createTempCacheFile() {
+      return new File(FileIO.getCacheFileName(Thread.currentThread().getId() + "_" + System.nanoTime() + ".tmp"));
+   }
+
+   /**
+    * Rename the written temporary file to the cache file named by the MD5 digest of its data and register it. If the cache file is already
+    * in the {@link BitmapCacheIndex} the temporary file is deleted. No file system check is made: a file with the same name has the same
+    * content, so the rename just replaces a file which is not indexed.
+    */
+   private static String storeCacheFile(File tmpFile, MessageDigest digest) {
+      String caсhedFileName = getCachedFileName(digest, ".bin");
+      File file = new File(caсhedFileName);
+      if (BitmapCacheIndex.getInstance().contains(caсhedFileName)) {
+         tmpFile.delete();
+         BitmapCacheIndex.getInstance().touch(caсhedFileName);
+         hashOnIngest(caсhedFileName);
+         return caсhedFileName;
+      }
+      if (!tmpFile.renameTo(file)) {
+         Log.e("Can't rename cache file " + tmpFile.getName());
+         tmpFile.delete();
          return null;
       }
+      putCacheEntry(caсhedFileName);
+      hashOnIngest(caсhedFileName);
+      return caсhedFileName;
+   }
+
+   private static void close(InputStream in, OutputStream out) {
+      try {
+         if (in != null) {
+            in.close();
+         }
+         if (out != null) {
+            out.close();
+         }
+      } catch (IOException e) {
+         Log.e(e);
+      }
    }
 
    /**
-    * Create cache file from data if file is not present
+    * Create cache file from data if file is not present. The file system is checked only if the file is not in the
+    * {@link BitmapCacheIndex}. The data is also put to the encoded cache tier, see
+    * {@link #setEncodedCache(BitmapEncodedCache)}.
     * 
     * @param caсhedFileName
     * @param data
     * @return true if success
     */
    public static boolean saveCaсheFile(String caсhedFileName, byte[] data) {
-      File file = new File(caсhedFileName);
-      if (!file.exists()) {
-         try {
-            FileOutputStream fOut = new FileOutputStream(file);
-            fOut.write(data, 0, data.length);
-            fOut.flush();
-            fOut.close();
-         } catch (Exception e) {
-            Log.w("Can't create cache file " + caсhedFileName, e);
-            return false;
+      BitmapCacheIndex index = BitmapCacheIndex.getInstance();
+      if (index.contains(caсhedFileName)) {
+         index.touch(caсhedFileName);
+      } else {
+         File file = new File(caсhedFileName);
+         if (!file.exists()) {
+            try {
+               FileOutputStream fOut = new FileOutputStream(file);
+               fOut.write(data, 0, data.length);
+               fOut.flush();
+               fOut.close();
+            } catch (Exception e) {
+               Log.w("Can't create cache file " + caсhedFileName, e);
+               return false;
+            }
          }
+         index.put(caсhedFileName, data);
       }
+      BitmapEncodedCache cache = encodedCache;
+      if (cache != null && !cache.contains(caсhedFileName)) {
+         cache.put(caсhedFileName, data);
+      }
+      hashOnIngest(caсhedFileName);
       return true;
    }
 
+   /**
+    * Hash the cache file for {@link BitmapHashIndex} if it is enabled and the file is not hashed yet, also when the file was cached before
+    * the hashing was enabled. Only files named by the content are hashed, the data of other files may change under the same name.
+    */
+   private static void hashOnIngest(String caсhedFileName) {
+      if (BitmapHashIndex.isHashOnIngest() && isContentKey(caсhedFileName)) {
+         BitmapHashIndex index = BitmapHashIndex.getInstance();
+         if (index.getHash(caсhedFileName) == null) {
+            index.put(caсhedFileName);
+         }
+      }
+   }
+
+   /**
+    * Register the new cache file in the {@link BitmapCacheIndex}, the image bounds are read from the file header.
+    */
+   private static void putCacheEntry(String caсhedFileName) {
+      BitmapFactory.Options options = new BitmapFactory.Options();
+      options.inJustDecodeBounds = true;
+      BitmapFactory.decodeFile(caсhedFileName, options);
+      BitmapCacheIndex.getInstance().put(caсhedFileName, new File(caсhedFileName).length(), options.outWidth, options.outHeight, options.outMimeType);
+   }
+
+   /**
+    * Save bitmap pixels to raw cache file, see {@link BitmapRawFile}. The file name is generated from the key, which must describe the
+    * source and all transformations of the bitmap. The file is registered in the {@link BitmapCacheIndex}.
+    * 
+    * @param key
+    * @param bitmap
+    * @param isCompressed compress pixels with fast LZ4 codec
+    * @return cache file name or null
+    */
+   public static String saveRawCacheFile(String key, Bitmap bitmap, boolean isCompressed) {
+      String caсhedFileName = getRawCacheFileName(key);
+      if (BitmapRawFile.save(bitmap, caсhedFileName, isCompressed)) {
+         BitmapCacheIndex.getInstance().put(caсhedFileName, new File(caсhedFileName).length(), bitmap.getWidth(), bitmap.getHeight(), null);
+         return caсhedFileName;
+      } else {
+         return null;
+      }
+   }
+
+   /**
+    * Load bitmap from raw cache file, see {@link #saveRawCacheFile(String, Bitmap, boolean)}.
+    * 
+    * @param key
+    * @return bitmap or null if the file is absent
+    */
+   public static Bitmap loadRawCacheFile(String key) {
+      String caсhedFileName = getRawCacheFileName(key);
+      Bitmap bitmap = BitmapRawFile.load(caсhedFileName);
+      if (bitmap != null) {
+         BitmapCacheIndex.getInstance().touch(caсhedFileName);
+      }
+      return bitmap;
+   }
+
+   /**
+    * Return the description of the cache file from the persistent {@link BitmapCacheIndex} or null if the file is not cached. No file
+    * system calls are made.
+    * 
+    * @param caсhedFileName
+    * @return
+    */
+   public static BitmapCacheIndex.Entry getCacheEntry(String caсhedFileName) {
+      return BitmapCacheIndex.getInstance().get(caсhedFileName);
+   }
+
    /**
     * Read cache file
     * 
@@ -208,26 +422,26 @@ public class BitmapCaсheIO {
     * @return data
     */
    public static byte[] readDataFile(String fileName) {
-      File file = new File(fileName);
-      byte[] data = new byte[(int) file.length()];
-      byte[] buffer = new byte[1024];
-      if (file.exists()) {
-         try {
-            FileInputStream fIn = new FileInputStream(file);
-            int count = 0;
-            int pos = 0;
-            while ((count = fIn.read(buffer)) > 0) {
-               for (int i = 0; i < count; i++) {
-                  data[pos++] = buffer[i];
-               }
-            }
-            fIn.close();
-         } catch (Exception e) {
-            Log.w("Can't read cache file " + fileName, e);
-            return null;
+      FileInputStream fIn;
+      try {
+         fIn = new FileInputStream(fileName);
+      } catch (FileNotFoundException e) {
+         return new byte[0];
+      }
+      try {
+         byte[] data = new byte[(int) fIn.getChannel().size()];
+         int count = 0;
+         int pos = 0;
+         while (pos < data.length && (count = fIn.read(data, pos, data.length - pos)) > 0) {
+            pos = pos + count;
          }
+         return data;
+      } catch (Exception e) {
+         Log.w("Can't read cache file " + fileName, e);
+         return null;
+      } finally {
+         close(fIn, null);
       }
-      return data;
    }
 
    /**
@@ -251,19 +465,131 @@ public class BitmapCaсheIO {
     * @return
     */
    public static Bitmap decodeSampledBitmapFromFile(String pathName, float reqWidth, float reqHeight, BitmapFactory.Options options) {
+      return decodeSampledBitmapFromFile(pathName, reqWidth, reqHeight, options, false);
+   }
+
+   /**
+    * Return resized bitmap with NEAREST size. If isUseThumbnail is true and the JPEG file has an embedded EXIF thumbnail which is not
+    * smaller than requested size, the thumbnail is decoded instead of the image. The file is decoded from the encoded cache tier if it is
+    * set, see {@link #setEncodedCache(BitmapEncodedCache)}; a file of the cache directory is read to the tier on a miss.
+    * 
+    * @param pathName
+    * @param reqWidth
+    * @param reqHeight
+    * @param options
+    * @param isUseThumbnail
+    * @return
+    */
+   public static Bitmap decodeSampledBitmapFromFile(String pathName, float reqWidth, float reqHeight, BitmapFactory.Options options, boolean isUseThumbnail) {
+      // The thumbnail is cheaper than reading the whole file to the tier
+      Bitmap bitmap = decodeEncoded(pathName, reqWidth, reqHeight, options, !isUseThumbnail);
+      if (bitmap != null) {
+         return bitmap;
+      }
       // First decode with inJustDecodeBounds=true to check dimensions
       if (options == null) {
          options = new BitmapFactory.Options();
       }
       options.inJustDecodeBounds = true;
       BitmapFactory.decodeFile(pathName, options);
+      // The probe is done, also the thumbnail must not leave the options in the bounds mode
+      options.inJustDecodeBounds = false;
+      if (isUseThumbnail) {
+         Bitmap thumbnail = decodeThumbnail(pathName, options, reqWidth, reqHeight);
+         if (thumbnail != null) {
+            return thumbnail;
+         }
+      }
+      return decodeSampledBitmapFromProbedFile(pathName, options, reqWidth, reqHeight);
+   }
 
+   /**
+    * Return the embedded EXIF thumbnail of JPEG file if it is not smaller than requested size, or null. Only the file header is read.
+    * 
+    * @param pathName
+    * @param reqWidth
+    * @param reqHeight
+    * @return
+    */
+   public static Bitmap decodeThumbnailFromFile(String pathName, float reqWidth, float reqHeight) {
+      BitmapFactory.Options options = new BitmapFactory.Options();
+      options.inJustDecodeBounds = true;
+      BitmapFactory.decodeFile(pathName, options);
+      return decodeThumbnail(pathName, options, reqWidth, reqHeight);
+   }
+
+   /**
+    * Return resized bitmap with NEAREST size. Options must already contain the image bounds, so the bounds probe is not repeated.
+    * 
+    * @param pathName
+    * @param options options with outWidth, outHeight and outMimeType
+    * @param reqWidth
+    * @param reqHeight
+    * @return
+    */
+   static Bitmap decodeSampledBitmapFromProbedFile(String pathName, BitmapFactory.Options options, float reqWidth, float reqHeight) {
       // Calculate inSampleSize
       options.inSampleSize = calculateInSampleSize(options, reqWidth, reqHeight);
 
+      // Adapt inSampleSize and config to the memory budget
+      BitmapMemoryBudget budget = BitmapMemoryBudget.getInstance();
+      BitmapFactory.Options decodeOptions = budget.adjustOptions(options);
+      long bytes = BitmapMemoryBudget.estimateBytes(decodeOptions);
+
       // Decode bitmap with inSampleSize set
+      decodeOptions.inJustDecodeBounds = false;
+      budget.reserve(bytes);
+      try {
+         return BitmapFactory.decodeFile(pathName, decodeOptions);
+      } finally {
+         budget.release(bytes);
+      }
+   }
+
+   /**
+    * Decode the file from the encoded cache tier, or return null if the tier is not set or doesn't contain the file. If isReadOnMiss is true
+    * a file of the cache directory is read to the tier on a miss.
+    */
+   private static Bitmap decodeEncoded(String caсhedFileName, float reqWidth, float reqHeight, BitmapFactory.Options options, boolean isReadOnMiss) {
+      BitmapEncodedCache cache = encodedCache;
+      if (cache == null) {
+         return null;
+      }
+      if (!cache.contains(caсhedFileName) && (!isReadOnMiss || !isCacheFile(caсhedFileName) || !cache.putFile(caсhedFileName, caсhedFileName))) {
+         return null;
+      }
+      Bitmap bitmap = cache.decode(caсhedFileName, reqWidth, reqHeight, options);
+      if (bitmap != null) {
+         BitmapCacheIndex.getInstance().touch(caсhedFileName);
+      }
+      return bitmap;
+   }
+
+   /**
+    * Decode the EXIF thumbnail if it is big enough and has the proportions of the image (some cameras add black bars to the thumbnail).
+    */
+   static Bitmap decodeThumbnail(String pathName, BitmapFactory.Options imageOptions, float reqWidth, float reqHeight) {
+      if (imageOptions.outWidth <= 0 || imageOptions.outHeight <= 0 || reqWidth > imageOptions.outWidth || reqHeight > imageOptions.outHeight) {
+         return null;
+      }
+      byte[] thumbnail = BitmapExif.read(pathName).getThumbnail();
+      if (thumbnail == null) {
+         return null;
+      }
+      BitmapFactory.Options options = new BitmapFactory.Options();
+      options.inJustDecodeBounds = true;
+      BitmapFactory.decodeByteArray(thumbnail, 0, thumbnail.length, options);
+      if (options.outWidth < reqWidth || options.outHeight < reqHeight) {
+         return null;
+      }
+      long difference = Math.abs((long) options.outWidth * imageOptions.outHeight - (long) options.outHeight * imageOptions.outWidth);
+      if (difference * MAX_THUMBNAIL_DISTORTION > (long) options.outWidth * imageOptions.outHeight) {
+         return null;
+      }
+      options.inSampleSize = calculateInSampleSize(options, reqWidth, reqHeight);
+      options.inPreferredConfig = imageOptions.inPreferredConfig;
       options.inJustDecodeBounds = false;
-      return BitmapFactory.decodeFile(pathName, options);
+      return BitmapFactory.decodeByteArray(thumbnail, 0, thumbnail.length, options);
    }
 
    /**
@@ -296,7 +622,17 @@ public class BitmapCaсheIO {
    }
 
    /**
-    * Generate file name ({@link Md5} string and ".bin" extension) in to the directory on the primary external filesystem (that is somewhere
+    * Generate raw cache file name ({@link Md5} string of the key and ".raw" extension) in the cache directory.
+    * 
+    * @param key
+    * @return
+    */
+   static String getRawCacheFileName(String key) {
+      return FileIO.getCacheFileName(Md5.getHashString(key) + ".raw");
+   }
+
+   /**
+    * Generate file name (MD5 hex string of the data and ".bin" extension) in to the directory on the primary external filesystem (that is somewhere
     * on {@link FileIO#getCacheFileName(String str)} where the application can place cache files it owns. These files are internal to the
     * application, and not typically visible to the user as media.
     * 
@@ -308,15 +644,68 @@ public class BitmapCaсheIO {
    }
 
    /**
-    * Generate file name ({@link Md5} string and your extension) in to the directory on the primary external filesystem (that is somewhere
-    * on {@link FileIO#getCacheFileName(String str)} where the application can place cache files it owns. These files are internal to the
-    * application, and not typically visible to the user as media.
+    * Generate file name (MD5 hex string of the data and your extension) in to the directory on the primary external filesystem (that is
+    * somewhere on {@link FileIO#getCacheFileName(String str)} where the application can place cache files it owns. These files are internal
+    * to the application, and not typically visible to the user as media.
     * 
     * @param data
     * @return
     */
    static String getCachedFileName(byte[] data, String extension) {
-      return FileIO.getCacheFileName(Md5.getHashString(data) + extension);
+      try {
+         MessageDigest digest = MessageDigest.getInstance("MD5");
+         digest.update(data);
+         return getCachedFileName(digest, extension);
+      } catch (NoSuchAlgorithmException e) {
+         throw new IllegalStateException("MD5 is not supported", e);
+      }
+   }
+
+   /**
+    * Generate file name from the MD5 digest of data which was streamed through it. The same data gives the same name as
+    * {@link #getCachedFileName(byte[], String)}, so byte array, Base64 and stream sources share the cache file.
+    * 
+    * @param digest
+    * @param extension
+    * @return
+    */
+   static String getCachedFileName(MessageDigest digest, String extension) {
+      return FileIO.getCacheFileName(toHex(digest.digest()) + extension);
+   }
+
+   /**
+    * Return true if the cache file is named by the MD5 of its data, see {@link #getCachedFileName(byte[])}
+    * 
+    * @param caсhedFileName
+    * @return
+    */
+   static boolean isContentKey(String caсhedFileName) {
+      String name = new File(caсhedFileName).getName();
+      if (name.length() != 36 || !name.endsWith(".bin")) {
+         return false;
+      }
+      for (int i = 0; i < 32; i++) {
+         char c = name.charAt(i);
+         if ((c < '0' || c > '9') && (c < 'a' || c > 'f')) {
+            return false;
+         }
+      }
+      return isCacheFile(caсhedFileName);
+   }
+
+   /**
+    * Return true if the file is placed in the cache directory
+    */
+   static boolean isCacheFile(String fileName) {
+      return FileIO.getCacheFileName(new File(fileName).getName()).equals(fileName);
+   }
+
+   private static String toHex(byte[] bytes) {
+      StringBuilder result = new StringBuilder(bytes.length * 2);
+      for (byte b : bytes) {
+         result.append(Character.forDigit((b >> 4) & 0x0F, 16)).append(Character.forDigit(b & 0x0F, 16));
+      }
+      return result.toString();
    }
 
 }
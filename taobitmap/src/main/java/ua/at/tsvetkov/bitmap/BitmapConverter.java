@@ -85,6 +85,41 @@ public class BitmapConverter {
       }
    }
 
+   /**
+    * Create snapshot session of the view, which reuses the bitmap and redraws only the dirty region. Use it instead of
+    * {@link #createBitmapFromView(View)} for live previews.
+    * 
+    * @param view
+    * @param scale scale of the snapshot, 0 < scale <= 1
+    * @return
+    */
+   public static BitmapSnapshot createSnapshotSession(View view, float scale) {
+      return new BitmapSnapshot(view, scale);
+   }
+
+   /**
+    * Create compositor which applies the same mask to many bitmaps without allocations. Use it instead of
+    * {@link #createShapedBitmap(Bitmap, Bitmap)} for batches.
+    * 
+    * @param mask
+    * @param width
+    * @param height
+    * @return
+    */
+   public static BitmapMaskCompositor createMaskCompositor(Bitmap mask, int width, int height) {
+      return new BitmapMaskCompositor(mask, width, height, null);
+   }
+
+   /**
+    * Create texture atlas which packs many small bitmaps, for example shaped icons, into a few large pages.
+    * 
+    * @param pageSize size of the page side
+    * @return
+    */
+   public static BitmapAtlas createAtlas(int pageSize) {
+      return new BitmapAtlas(pageSize, Integer.MAX_VALUE, null);
+   }
+
    /**
     * Combine bitmap with mask and create shaped bitmap
     * 
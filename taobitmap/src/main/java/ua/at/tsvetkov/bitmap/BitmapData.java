@@ -5,6 +5,7 @@ package ua.at.tsvetkov.bitmap;
 
 import ua.at.tsvetkov.io.FileIO;
 import ua.at.tsvetkov.util.Log;
+import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
 import android.graphics.PointF;
 
@@ -51,4 +52,33 @@ public class BitmapData {
       }
    }
 
+   /**
+    * Return the size of bitmap pixels in bytes.
+    * 
+    * @param bitmap
+    * @return
+    */
+   public static int getBitmapBytes(Bitmap bitmap) {
+      if (bitmap == null || bitmap.isRecycled()) {
+         return 0;
+      }
+      return bitmap.getRowBytes() * bitmap.getHeight();
+   }
+
+   /**
+    * Return bytes per pixel for bitmap config. Null config is decoded as ARGB_8888.
+    * 
+    * @param config
+    * @return
+    */
+   public static int getBytesPerPixel(Bitmap.Config config) {
+      if (config == Bitmap.Config.ALPHA_8) {
+         return 1;
+      } else if (config == Bitmap.Config.RGB_565 || config == Bitmap.Config.ARGB_4444) {
+         return 2;
+      } else {
+         return 4;
+      }
+   }
+
 }
@@ -0,0 +1,322 @@
+/*******************************************************************************
+ * Copyright (c) 2014 Alexandr Tsvetkov.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the The BSD 3-Clause License
+ * which accompanies this distribution, and is available at
+ * http://opensource.org/licenses/BSD-3-Clause
+ *
+ * Contributors:
+ *     Alexandr Tsvetkov - initial API and implementation
+ *
+ * Project:
+ *     TAO Bitmap Utils
+ *
+ * File name:
+ *     BitmapEncodedCache.java
+ *
+ * License agreement:
+ *
+ * 1. This code is published AS IS. Author is not responsible for any damage that can be
+ *    caused by any application that uses this code.
+ * 2. Author does not give a garantee, that this code is error free.
+ * 3. This code can be used in NON-COMMERCIAL applications AS IS without any special
+ *    permission from author.
+ * 4. This code can be modified without any special permission from author IF AND ONLY IF
+ *    this license agreement will remain unchanged.
+ * 5. SPECIAL PERMISSION for this code usage in COMMERCIAL application SHOULD be obtained
+ *    from author.
+ ******************************************************************************/
+package ua.at.tsvetkov.bitmap;
+
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+import ua.at.tsvetkov.util.Log;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.support.v4.util.LruCache;
+
+/**
+ * LRU memory cache for encoded images (JPEG, PNG, WebP), bounded in bytes. It is the second tier after {@link BitmapMemoryCache}: the
+ * encoded image is many times smaller than the decoded bitmap, so the cache holds much more entries in the same memory. The data is kept
+ * in direct buffers and is decoded without any disk access. On Dalvik and ART direct buffers are allocated on the java heap, so the
+ * cache is accounted in the {@link BitmapMemoryBudget} and is shrinked on its trim-memory signals. Set it as the tier of cache files with
+ * {@link BitmapCaсheIO#setEncodedCache(BitmapEncodedCache)}.
+ *
+ * @author A.Tsvetkov 2014 http://tsvetkov.at.ua mailto:al@ukr.net
+ */
+public class BitmapEncodedCache implements BitmapMemoryBudget.Cache {
+
+   private final int                          maxBytes;
+   private final LruCache<String, ByteBuffer> cache;
+
+   /**
+    * Create the cache and add it to the global {@link BitmapMemoryBudget}
+    *
+    * @param maxBytes
+    */
+   public BitmapEncodedCache(int maxBytes) {
+      if (maxBytes <= 0) {
+         throw new IllegalArgumentException("Wrong cache size.");
+      }
+      this.maxBytes = maxBytes;
+      cache = new LruCache<String, ByteBuffer>(maxBytes) {
+
+         @Override
+         protected int sizeOf(String key, ByteBuffer data) {
+            return data.capacity();
+         }
+
+      };
+      BitmapMemoryBudget.getInstance().addCache(this);
+   }
+
+   /**
+    * Create the cache with 1/4 of the maximum heap size
+    */
+   public BitmapEncodedCache() {
+      this((int) (Runtime.getRuntime().maxMemory() / 4));
+   }
+
+   /**
+    * Put encoded image to the cache. The data is copied.
+    *
+    * @param key
+    * @param data
+    */
+   public void put(String key, byte[] data) {
+      if (data == null) {
+         return;
+      }
+      put(key, data, 0, data.length);
+   }
+
+   /**
+    * Put encoded image to the cache. The data is copied.
+    *
+    * @param key
+    * @param data
+    * @param offset
+    * @param length
+    */
+   public void put(String key, byte[] data, int offset, int length) {
+      if (key == null || data == null || length <= 0 || length > maxBytes) {
+         return;
+      }
+      ByteBuffer buffer = ByteBuffer.allocateDirect(length);
+      buffer.put(data, offset, length);
+      buffer.flip();
+      cache.put(key, buffer);
+   }
+
+   /**
+    * Put the content of the file to the cache.
+    *
+    * @param key
+    * @param fileName
+    * @return true if success
+    */
+   public boolean putFile(String key, String fileName) {
+      byte[] data = BitmapCaсheIO.readDataFile(fileName);
+      if (data == null || data.length == 0) {
+         return false;
+      }
+      put(key, data);
+      return true;
+   }
+
+   /**
+    * Return true if the cache contains the image
+    *
+    * @param key
+    * @return
+    */
+   public boolean contains(String key) {
+      return cache.get(key) != null;
+   }
+
+   /**
+    * Return read only view of cached encoded image or null
+    *
+    * @param key
+    * @return
+    */
+   public ByteBuffer get(String key) {
+      ByteBuffer data = cache.get(key);
+      return data == null ? null : data.asReadOnlyBuffer();
+   }
+
+   /**
+    * Return copy of cached encoded image or null
+    *
+    * @param key
+    * @return
+    */
+   public byte[] getBytes(String key) {
+      ByteBuffer data = get(key);
+      if (data == null) {
+         return null;
+      }
+      byte[] result = new byte[data.remaining()];
+      data.get(result);
+      return result;
+   }
+
+   /**
+    * Return stream of cached encoded image or null
+    *
+    * @param key
+    * @return
+    */
+   public InputStream getInputStream(String key) {
+      ByteBuffer data = get(key);
+      return data == null ? null : new ByteBufferInputStream(data);
+   }
+
+   /**
+    * Decode cached image with NEAREST size, the same as {@link BitmapCaсheIO#decodeSampledBitmapFromFile(String, float, float)}.
+    *
+    * @param key
+    * @param reqWidth
+    * @param reqHeight
+    * @return bitmap or null if the image is not cached
+    */
+   public Bitmap decode(String key, float reqWidth, float reqHeight) {
+      return decode(key, reqWidth, reqHeight, null);
+   }
+
+   /**
+    * Decode cached image with NEAREST size, the same as {@link BitmapCaсheIO#decodeSampledBitmapFromFile(String, float, float)}.
+    *
+    * @param key
+    * @param reqWidth
+    * @param reqHeight
+    * @param options
+    * @return bitmap or null if the image is not cached
+    */
+   public Bitmap decode(String key, float reqWidth, float reqHeight, BitmapFactory.Options options) {
+      ByteBuffer data = get(key);
+      if (data == null) {
+         return null;
+      }
+      if (options == null) {
+         options = new BitmapFactory.Options();
+      }
+      options.inJustDecodeBounds = true;
+      BitmapFactory.decodeStream(new ByteBufferInputStream(data.duplicate()), null, options);
+      if (options.outWidth <= 0 || options.outHeight <= 0) {
+         Log.w("Can't decode cached image " + key);
+         return null;
+      }
+      options.inSampleSize = BitmapCaсheIO.calculateInSampleSize(options, reqWidth, reqHeight);
+
+      BitmapMemoryBudget budget = BitmapMemoryBudget.getInstance();
+      options.inJustDecodeBounds = false;
+      BitmapFactory.Options decodeOptions = budget.adjustOptions(options);
+      long bytes = BitmapMemoryBudget.estimateBytes(decodeOptions);
+      budget.reserve(bytes);
+      try {
+         return BitmapFactory.decodeStream(new ByteBufferInputStream(data), null, decodeOptions);
+      } finally {
+         budget.release(bytes);
+      }
+   }
+
+   /**
+    * Remove image from the cache
+    *
+    * @param key
+    */
+   public void remove(String key) {
+      cache.remove(key);
+   }
+
+   /**
+    * Remove all images from the cache
+    */
+   public void clear() {
+      cache.evictAll();
+   }
+
+   /**
+    * Return count of bytes of cached images.
+    *
+    * @return
+    */
+   public int getCachedBytes() {
+      return cache.size();
+   }
+
+   @Override
+   public long getSizeBytes() {
+      return cache.size();
+   }
+
+   @Override
+   public void trimToFraction(float fraction) {
+      if (fraction <= 0) {
+         cache.evictAll();
+      } else if (fraction < 1) {
+         cache.trimToSize((int) (maxBytes * fraction));
+      }
+   }
+
+   /**
+    * Stream of the buffer content from its position to limit
+    */
+   private static final class ByteBufferInputStream extends InputStream {
+
+      private final ByteBuffer buffer;
+
+      private ByteBufferInputStream(ByteBuffer buffer) {
+         this.buffer = buffer;
+      }
+
+      @Override
+      public int read() {
+         return buffer.hasRemaining() ? buffer.get() & 0xFF : -1;
+      }
+
+      @Override
+      public int read(byte[] bytes, int offset, int length) {
+         if (length == 0) {
+            return 0;
+         }
+         if (!buffer.hasRemaining()) {
+            return -1;
+         }
+         int count = Math.min(length, buffer.remaining());
+         buffer.get(bytes, offset, count);
+         return count;
+      }
+
+      @Override
+      public long skip(long count) {
+         int skipped = (int) Math.max(0, Math.min(count, buffer.remaining()));
+         buffer.position(buffer.position() + skipped);
+         return skipped;
+      }
+
+      @Override
+      public int available() {
+         return buffer.remaining();
+      }
+
+      @Override
+      public boolean markSupported() {
+         return true;
+      }
+
+      @Override
+      public synchronized void mark(int limit) {
+         buffer.mark();
+      }
+
+      @Override
+      public synchronized void reset() {
+         buffer.reset();
+      }
+
+   }
+
+}
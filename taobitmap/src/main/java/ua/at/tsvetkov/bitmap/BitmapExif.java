@@ -0,0 +1,392 @@
+/*******************************************************************************
+ * Copyright (c) 2014 Alexandr Tsvetkov.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the The BSD 3-Clause License
+ * which accompanies this distribution, and is available at
+ * http://opensource.org/licenses/BSD-3-Clause
+ *
+ * Contributors:
+ *     Alexandr Tsvetkov - initial API and implementation
+ *
+ * Project:
+ *     TAO Bitmap Utils
+ *
+ * File name:
+ *     BitmapExif.java
+ *
+ * License agreement:
+ *
+ * 1. This code is published AS IS. Author is not responsible for any damage that can be
+ *    caused by any application that uses this code.
+ * 2. Author does not give a garantee, that this code is error free.
+ * 3. This code can be used in NON-COMMERCIAL applications AS IS without any special
+ *    permission from author.
+ * 4. This code can be modified without any special permission from author IF AND ONLY IF
+ *    this license agreement will remain unchanged.
+ * 5. SPECIAL PERMISSION for this code usage in COMMERCIAL application SHOULD be obtained
+ *    from author.
+ ******************************************************************************/
+package ua.at.tsvetkov.bitmap;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.FileInputStream;
+import java.io.IOException;
+
+import ua.at.tsvetkov.util.Log;
+import android.graphics.Rect;
+
+/**
+ * EXIF data of JPEG file which is needed for decoding. Only the JPEG header is read (not more than {@link #MAX_HEADER_SIZE} bytes), the
+ * image data is never touched.
+ *
+ * @author A.Tsvetkov 2014 http://tsvetkov.at.ua mailto:al@ukr.net
+ */
+public class BitmapExif {
+
+   public static final int  ORIENTATION_NORMAL          = 1;
+   public static final int  ORIENTATION_FLIP_HORIZONTAL = 2;
+   public static final int  ORIENTATION_ROTATE_180      = 3;
+   public static final int  ORIENTATION_FLIP_VERTICAL   = 4;
+   public static final int  ORIENTATION_TRANSPOSE       = 5;
+   public static final int  ORIENTATION_ROTATE_90       = 6;
+   public static final int  ORIENTATION_TRANSVERSE      = 7;
+   public static final int  ORIENTATION_ROTATE_270      = 8;
+
+   /**
+    * Maximum count of bytes read from the file header
+    */
+   public static final int  MAX_HEADER_SIZE             = 128 * 1024;
+
+   private static final int MARKER_SOI                  = 0xD8;
+   private static final int MARKER_SOS                  = 0xDA;
+   private static final int MARKER_EOI                  = 0xD9;
+   private static final int MARKER_APP1                 = 0xE1;
+   private static final int TAG_ORIENTATION             = 0x0112;
+   private static final int TAG_THUMBNAIL_OFFSET        = 0x0201;
+   private static final int TAG_THUMBNAIL_LENGTH        = 0x0202;
+   private static final int TYPE_SHORT                  = 3;
+   private static final int TYPE_LONG                   = 4;
+
+   private int              orientation                 = ORIENTATION_NORMAL;
+   private byte[]           thumbnail                   = null;
+
+   private BitmapExif() {
+
+   }
+
+   /**
+    * Read EXIF from the JPEG file header. Never returns null, for files without EXIF the orientation is normal.
+    *
+    * @param fileName
+    * @return
+    */
+   public static BitmapExif read(String fileName) {
+      BitmapExif exif = new BitmapExif();
+      if (fileName == null) {
+         return exif;
+      }
+      DataInputStream in = null;
+      try {
+         in = new DataInputStream(new BufferedInputStream(new FileInputStream(fileName)));
+         byte[] app1 = readApp1(in);
+         if (app1 != null) {
+            exif.parse(app1);
+         }
+      } catch (EOFException e) {
+         // Not a JPEG or truncated header, use defaults
+      } catch (Exception e) {
+         Log.w("Can't read EXIF from " + fileName, e);
+      } finally {
+         if (in != null) {
+            try {
+               in.close();
+            } catch (IOException e) {
+               Log.e(e);
+            }
+         }
+      }
+      return exif;
+   }
+
+   /**
+    * Return EXIF orientation, one of ORIENTATION_ constants
+    *
+    * @return
+    */
+   public int getOrientation() {
+      return orientation;
+   }
+
+   /**
+    * Return JPEG data of the thumbnail embedded in EXIF or null. The thumbnail is stored with the same orientation as the image.
+    *
+    * @return
+    */
+   public byte[] getThumbnail() {
+      return thumbnail;
+   }
+
+   /**
+    * Return true if image must be flipped horizontally before rotation, see {@link #getRotation()}.
+    *
+    * @return
+    */
+   public boolean isFlipHorizontal() {
+      return orientation == ORIENTATION_FLIP_HORIZONTAL || orientation == ORIENTATION_FLIP_VERTICAL || orientation == ORIENTATION_TRANSPOSE
+            || orientation == ORIENTATION_TRANSVERSE;
+   }
+
+   /**
+    * Return clockwise rotation (0, 90, 180 or 270) which must be applied after horizontal flip to show the image correctly.
+    *
+    * @return
+    */
+   public int getRotation() {
+      switch (orientation) {
+         case ORIENTATION_ROTATE_180:
+         case ORIENTATION_FLIP_VERTICAL:
+            return 180;
+         case ORIENTATION_ROTATE_90:
+         case ORIENTATION_TRANSVERSE:
+            return 90;
+         case ORIENTATION_ROTATE_270:
+         case ORIENTATION_TRANSPOSE:
+            return 270;
+         default:
+            return 0;
+      }
+   }
+
+   /**
+    * Return true if the width and the height of the stored image are swapped.
+    *
+    * @return
+    */
+   public boolean isTransposed() {
+      return orientation >= ORIENTATION_TRANSPOSE && orientation <= ORIENTATION_ROTATE_270;
+   }
+
+   /**
+    * Map a rectangle of correctly oriented image to the rectangle of the stored image.
+    *
+    * @param rect rectangle in the oriented image
+    * @param width width of the stored image
+    * @param height height of the stored image
+    * @return rectangle in the stored image
+    */
+   public Rect mapToStored(Rect rect, int width, int height) {
+      int left;
+      int top;
+      int right;
+      int bottom;
+      switch (getRotation()) {
+         case 90:
+            left = rect.top;
+            right = rect.bottom;
+            top = height - rect.right;
+            bottom = height - rect.left;
+            break;
+         case 180:
+            left = width - rect.right;
+            right = width - rect.left;
+            top = height - rect.bottom;
+            bottom = height - rect.top;
+            break;
+         case 270:
+            left = width - rect.bottom;
+            right = width - rect.top;
+            top = rect.left;
+            bottom = rect.right;
+            break;
+         default:
+            left = rect.left;
+            right = rect.right;
+            top = rect.top;
+            bottom = rect.bottom;
+            break;
+      }
+      if (isFlipHorizontal()) {
+         int tmp = left;
+         left = width - right;
+         right = width - tmp;
+      }
+      return new Rect(left, top, right, bottom);
+   }
+
+   /**
+    * Set orientation to normal in the content of APP1 segment in place. Used when the pixels are already rotated.
+    *
+    * @param data
+    * @param offset offset of "Exif\0\0" header
+    * @param length length of the segment content
+    * @return true if the orientation tag was found
+    */
+   static boolean resetOrientation(byte[] data, int offset, int length) {
+      if (length < 14 || data[offset] != 'E' || data[offset + 1] != 'x' || data[offset + 2] != 'i' || data[offset + 3] != 'f' || data[offset + 4] != 0
+            || data[offset + 5] != 0) {
+         return false;
+      }
+      int start = offset + 6;
+      byte[] tiff = new byte[length - 6];
+      System.arraycopy(data, start, tiff, 0, tiff.length);
+      Tiff reader = new Tiff(tiff);
+      if (!reader.isValid()) {
+         return false;
+      }
+      int ifd = reader.getInt(4);
+      int count = reader.getShort(ifd);
+      for (int i = 0; i < count; i++) {
+         int entry = ifd + 2 + i * 12;
+         if (reader.getShort(entry) == TAG_ORIENTATION && reader.getShort(entry + 2) == TYPE_SHORT && entry + 10 <= tiff.length) {
+            data[start + entry + 8] = (byte) (reader.isLittleEndian ? ORIENTATION_NORMAL : 0);
+            data[start + entry + 9] = (byte) (reader.isLittleEndian ? 0 : ORIENTATION_NORMAL);
+            return true;
+         }
+      }
+      return false;
+   }
+
+   // ************************* Private methods ******************************
+
+   /**
+    * Return the content of EXIF APP1 segment without "Exif\0\0" header or null
+    */
+   private static byte[] readApp1(DataInputStream in) throws IOException {
+      if (in.readUnsignedByte() != 0xFF || in.readUnsignedByte() != MARKER_SOI) {
+         return null;
+      }
+      int position = 2;
+      while (position < MAX_HEADER_SIZE) {
+         int marker = in.readUnsignedByte();
+         if (marker != 0xFF) {
+            return null;
+         }
+         while (marker == 0xFF) {
+            marker = in.readUnsignedByte();
+            position++;
+         }
+         if (marker == MARKER_SOS || marker == MARKER_EOI) {
+            return null;
+         }
+         int length = in.readUnsignedShort() - 2;
+         position = position + 3 + length;
+         if (length < 0) {
+            return null;
+         }
+         if (marker == MARKER_APP1 && length > 6) {
+            byte[] header = new byte[6];
+            in.readFully(header);
+            if (header[0] == 'E' && header[1] == 'x' && header[2] == 'i' && header[3] == 'f' && header[4] == 0 && header[5] == 0) {
+               byte[] data = new byte[length - 6];
+               in.readFully(data);
+               return data;
+            }
+            skipFully(in, length - 6);
+         } else {
+            skipFully(in, length);
+         }
+      }
+      return null;
+   }
+
+   private static void skipFully(DataInputStream in, int count) throws IOException {
+      while (count > 0) {
+         int skipped = in.skipBytes(count);
+         if (skipped <= 0) {
+            throw new EOFException();
+         }
+         count = count - skipped;
+      }
+   }
+
+   private void parse(byte[] tiff) {
+      Tiff reader = new Tiff(tiff);
+      if (!reader.isValid()) {
+         return;
+      }
+      int ifd = reader.getInt(4);
+      int count = reader.getShort(ifd);
+      for (int i = 0; i < count; i++) {
+         int entry = ifd + 2 + i * 12;
+         if (reader.getShort(entry) == TAG_ORIENTATION && reader.getShort(entry + 2) == TYPE_SHORT) {
+            int value = reader.getShort(entry + 8);
+            if (value >= ORIENTATION_NORMAL && value <= ORIENTATION_ROTATE_270) {
+               orientation = value;
+            }
+         }
+      }
+      // IFD1 describes the thumbnail
+      int next = reader.getInt(ifd + 2 + count * 12);
+      if (next <= 0 || next == ifd) {
+         return;
+      }
+      int offset = 0;
+      int length = 0;
+      count = reader.getShort(next);
+      for (int i = 0; i < count; i++) {
+         int entry = next + 2 + i * 12;
+         int tag = reader.getShort(entry);
+         if (tag == TAG_THUMBNAIL_OFFSET || tag == TAG_THUMBNAIL_LENGTH) {
+            int value = reader.getShort(entry + 2) == TYPE_LONG ? reader.getInt(entry + 8) : reader.getShort(entry + 8);
+            if (tag == TAG_THUMBNAIL_OFFSET) {
+               offset = value;
+            } else {
+               length = value;
+            }
+         }
+      }
+      if (offset > 0 && length > 0 && offset + length <= tiff.length) {
+         thumbnail = new byte[length];
+         System.arraycopy(tiff, offset, thumbnail, 0, length);
+      }
+   }
+
+   /**
+    * Bounds-checked reader of TIFF structure with its byte order
+    */
+   private static final class Tiff {
+
+      private final byte[] data;
+      private boolean      isLittleEndian;
+
+      private Tiff(byte[] data) {
+         this.data = data;
+      }
+
+      private boolean isValid() {
+         if (data.length < 8) {
+            return false;
+         }
+         if (data[0] == 'I' && data[1] == 'I') {
+            isLittleEndian = true;
+         } else if (data[0] == 'M' && data[1] == 'M') {
+            isLittleEndian = false;
+         } else {
+            return false;
+         }
+         return getShort(2) == 42;
+      }
+
+      private int getShort(int offset) {
+         if (offset < 0 || offset + 2 > data.length) {
+            return 0;
+         }
+         int b0 = data[offset] & 0xFF;
+         int b1 = data[offset + 1] & 0xFF;
+         return isLittleEndian ? (b1 << 8) | b0 : (b0 << 8) | b1;
+      }
+
+      private int getInt(int offset) {
+         if (offset < 0 || offset + 4 > data.length) {
+            return 0;
+         }
+         int s0 = getShort(offset);
+         int s1 = getShort(offset + 2);
+         return isLittleEndian ? (s1 << 16) | s0 : (s0 << 16) | s1;
+      }
+
+   }
+
+}
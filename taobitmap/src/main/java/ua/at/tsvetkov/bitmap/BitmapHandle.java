@@ -0,0 +1,217 @@
+/*******************************************************************************
+ * Copyright (c) 2014 Alexandr Tsvetkov.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the The BSD 3-Clause License
+ * which accompanies this distribution, and is available at
+ * http://opensource.org/licenses/BSD-3-Clause
+ *
+ * Contributors:
+ *     Alexandr Tsvetkov - initial API and implementation
+ *
+ * Project:
+ *     TAO Bitmap Utils
+ *
+ * File name:
+ *     BitmapHandle.java
+ *
+ * License agreement:
+ *
+ * 1. This code is published AS IS. Author is not responsible for any damage that can be
+ *    caused by any application that uses this code.
+ * 2. Author does not give a garantee, that this code is error free.
+ * 3. This code can be used in NON-COMMERCIAL applications AS IS without any special
+ *    permission from author.
+ * 4. This code can be modified without any special permission from author IF AND ONLY IF
+ *    this license agreement will remain unchanged.
+ * 5. SPECIAL PERMISSION for this code usage in COMMERCIAL application SHOULD be obtained
+ *    from author.
+ ******************************************************************************/
+package ua.at.tsvetkov.bitmap;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+import ua.at.tsvetkov.util.Log;
+import android.graphics.Bitmap;
+
+/**
+ * Reference counted holder of the bitmap. The transformer, caches and pools may share one bitmap instead of copying it: every holder calls
+ * {@link #acquire()} and {@link #release()} once, and the pixels are returned to the {@link BitmapPool} only when the last holder releases
+ * them. Nobody calls {@link Bitmap#recycle()} on a shared bitmap directly. In the debug mode, see {@link #setDebug(boolean)}, the handles
+ * remember where they were created and released, and leaked (garbage collected without release) or double released handles are reported
+ * to the log with these stack traces. Thread safe.
+ *
+ * @author A.Tsvetkov 2014 http://tsvetkov.at.ua mailto:al@ukr.net
+ */
+public final class BitmapHandle {
+
+   private static volatile boolean                 isDebug = false;
+   private static final Map<BitmapHandle, Boolean> alive   = Collections.synchronizedMap(new WeakHashMap<BitmapHandle, Boolean>());
+
+   private final Bitmap                            bitmap;
+   private final BitmapPool                        pool;
+   private final boolean                           isOwner;
+   private final Throwable                         created;
+   private Throwable                               released;
+   private int                                     count   = 1;
+
+   private BitmapHandle(Bitmap bitmap, BitmapPool pool, boolean isOwner) {
+      if (bitmap == null) {
+         throw new IllegalArgumentException("Bitmap is null.");
+      }
+      this.bitmap = bitmap;
+      this.pool = pool;
+      this.isOwner = isOwner;
+      if (isDebug) {
+         created = new Throwable("Bitmap handle " + bitmap.getWidth() + "x" + bitmap.getHeight() + " created here");
+         alive.put(this, Boolean.TRUE);
+      } else {
+         created = null;
+      }
+   }
+
+   /**
+    * Take the ownership of the bitmap. When the last holder releases the handle the bitmap is put to the pool.
+    *
+    * @param bitmap
+    * @param pool the pool or null for the shared pool
+    * @return handle with one reference, held by the caller
+    */
+   public static BitmapHandle obtain(Bitmap bitmap, BitmapPool pool) {
+      return new BitmapHandle(bitmap, pool != null ? pool : BitmapPool.getInstance(), true);
+   }
+
+   /**
+    * Share the bitmap which stays owned by the caller. The bitmap is not recycled and is not pooled when the last holder releases the
+    * handle.
+    *
+    * @param bitmap
+    * @return handle with one reference, held by the caller
+    */
+   public static BitmapHandle wrap(Bitmap bitmap) {
+      return new BitmapHandle(bitmap, null, false);
+   }
+
+   /**
+    * Add the reference for a new holder
+    *
+    * @return this handle
+    */
+   public synchronized BitmapHandle acquire() {
+      if (count <= 0) {
+         throw new IllegalStateException("Bitmap handle is released", released);
+      }
+      count++;
+      return this;
+   }
+
+   /**
+    * Remove the reference of the holder. The holder must not use the bitmap after that.
+    */
+   public void release() {
+      synchronized (this) {
+         if (count <= 0) {
+            if (isDebug) {
+               Log.e("Bitmap handle is released twice", new Throwable("Released again here", released));
+            } else {
+               Log.w("Bitmap handle is released twice");
+            }
+            return;
+         }
+         count--;
+         if (count > 0) {
+            return;
+         }
+         if (isDebug) {
+            released = new Throwable("Released here", created);
+         }
+      }
+      if (created != null) {
+         alive.remove(this);
+      }
+      if (isOwner) {
+         pool.put(bitmap);
+      }
+   }
+
+   /**
+    * Return the bitmap. It is valid until the caller releases its reference.
+    *
+    * @return
+    */
+   public Bitmap get() {
+      synchronized (this) {
+         if (count <= 0) {
+            throw new IllegalStateException("Bitmap handle is released", released);
+         }
+      }
+      return bitmap;
+   }
+
+   /**
+    * Return count of holders
+    *
+    * @return
+    */
+   public synchronized int getRefCount() {
+      return count;
+   }
+
+   /**
+    * Return true if the bitmap is owned by the handle and is pooled when the last holder releases it, false for wrapped bitmaps
+    *
+    * @return
+    */
+   public boolean isOwner() {
+      return isOwner;
+   }
+
+   /**
+    * Return true if the last holder released the handle
+    *
+    * @return
+    */
+   public synchronized boolean isReleased() {
+      return count <= 0;
+   }
+
+   /**
+    * Enable tracking of leaked and double released handles. It is slow, use it only for debug. Affects handles created after the call.
+    *
+    * @param isDebug
+    */
+   public static void setDebug(boolean isDebug) {
+      BitmapHandle.isDebug = isDebug;
+   }
+
+   /**
+    * Log all not released handles created in the debug mode with the stack traces of their creation.
+    *
+    * @return count of not released handles
+    */
+   public static int logAliveHandles() {
+      List<BitmapHandle> handles;
+      synchronized (alive) {
+         handles = new ArrayList<BitmapHandle>(alive.keySet());
+      }
+      for (BitmapHandle handle : handles) {
+         Log.w("Bitmap handle is not released, holders: " + handle.getRefCount(), handle.created);
+      }
+      return handles.size();
+   }
+
+   @Override
+   protected void finalize() throws Throwable {
+      try {
+         if (created != null && getRefCount() > 0) {
+            Log.e("Bitmap handle is leaked, holders: " + getRefCount(), created);
+         }
+      } finally {
+         super.finalize();
+      }
+   }
+
+}
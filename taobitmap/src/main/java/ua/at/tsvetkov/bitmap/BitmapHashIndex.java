@@ -0,0 +1,382 @@
+/*******************************************************************************
+ * Copyright (c) 2014 Alexandr Tsvetkov.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the The BSD 3-Clause License
+ * which accompanies this distribution, and is available at
+ * http://opensource.org/licenses/BSD-3-Clause
+ *
+ * Contributors:
+ *     Alexandr Tsvetkov - initial API and implementation
+ *
+ * Project:
+ *     TAO Bitmap Utils
+ *
+ * File name:
+ *     BitmapHashIndex.java
+ *
+ * License agreement:
+ *
+ * 1. This code is published AS IS. Author is not responsible for any damage that can be
+ *    caused by any application that uses this code.
+ * 2. Author does not give a garantee, that this code is error free.
+ * 3. This code can be used in NON-COMMERCIAL applications AS IS without any special
+ *    permission from author.
+ * 4. This code can be modified without any special permission from author IF AND ONLY IF
+ *    this license agreement will remain unchanged.
+ * 5. SPECIAL PERMISSION for this code usage in COMMERCIAL application SHOULD be obtained
+ *    from author.
+ ******************************************************************************/
+package ua.at.tsvetkov.bitmap;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import ua.at.tsvetkov.util.Log;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+
+/**
+ * Index of perceptual hashes of the cached images for search of near duplicates: the same picture encoded with other quality, format or
+ * size. The hash is the 64 bit difference hash (dHash) of a tiny sampled decode, near duplicates differ in a few bits. Hashes are kept in
+ * a BK-tree, so the search by Hamming distance visits only a small part of the index. Hashes are persisted in the {@link BitmapCacheIndex},
+ * entries of removed cache files are skipped and dropped on lookup. Thread safe.
+ *
+ * @author A.Tsvetkov 2014 http://tsvetkov.at.ua mailto:al@ukr.net
+ */
+public class BitmapHashIndex {
+
+   /** Max count of different bits of near duplicates by default */
+   public static final int         DEFAULT_DISTANCE = 6;
+   /** Aspect ratios of near duplicates differ not more than this */
+   private static final float      MAX_ASPECT_DIFF  = 0.02f;
+   private static final int        HASH_WIDTH       = 9;
+   private static final int        HASH_HEIGHT      = 8;
+   private static final int        SAMPLE_SIZE      = 32;
+
+   private static BitmapHashIndex  instance;
+   private static volatile boolean isHashOnIngest   = false;
+
+   private final BitmapCacheIndex  cacheIndex;
+   private final Map<String, Long> hashes           = new HashMap<String, Long>();
+   private Node                    root;
+
+   /**
+    * Node of BK-tree, children are indexed by the distance to the node
+    */
+   private static final class Node {
+
+      private final long         hash;
+      private final List<String> keys = new ArrayList<String>(1);
+      private Node[]             children;
+
+      private Node(long hash) {
+         this.hash = hash;
+      }
+
+   }
+
+   /**
+    * Create the index over hashes stored in the cache index
+    *
+    * @param cacheIndex
+    */
+   public BitmapHashIndex(BitmapCacheIndex cacheIndex) {
+      this.cacheIndex = cacheIndex;
+      for (BitmapCacheIndex.Entry entry : cacheIndex.getEntries()) {
+         if (entry.isHashed()) {
+            add(entry.getKey(), entry.getHash());
+         }
+      }
+   }
+
+   /**
+    * Return the index of {@link BitmapCaсheIO} cache directory
+    *
+    * @return
+    */
+   public static synchronized BitmapHashIndex getInstance() {
+      if (instance == null) {
+         instance = new BitmapHashIndex(BitmapCacheIndex.getInstance());
+      }
+      return instance;
+   }
+
+   /**
+    * Hash every new file of {@link BitmapCaсheIO} cache. It costs a tiny decode of the file, false by default.
+    *
+    * @param isHashOnIngest
+    */
+   public static void setHashOnIngest(boolean isHashOnIngest) {
+      BitmapHashIndex.isHashOnIngest = isHashOnIngest;
+   }
+
+   public static boolean isHashOnIngest() {
+      return isHashOnIngest;
+   }
+
+   /**
+    * Compute the difference hash of the image file
+    *
+    * @param fileName
+    * @return hash or null if the file can't be decoded
+    */
+   public static Long computeHash(String fileName) {
+      BitmapFactory.Options options = new BitmapFactory.Options();
+      options.inJustDecodeBounds = true;
+      BitmapFactory.decodeFile(fileName, options);
+      if (options.outWidth <= 0 || options.outHeight <= 0) {
+         Log.w("Can't hash image " + fileName);
+         return null;
+      }
+      options.inSampleSize = BitmapCaсheIO.calculateInSampleSize(options, SAMPLE_SIZE, SAMPLE_SIZE);
+      options.inJustDecodeBounds = false;
+      options.inPreferredConfig = Bitmap.Config.RGB_565;
+      Bitmap sampled = BitmapFactory.decodeFile(fileName, options);
+      if (sampled == null) {
+         Log.w("Can't hash image " + fileName);
+         return null;
+      }
+      Bitmap tiny = Bitmap.createScaledBitmap(sampled, HASH_WIDTH, HASH_HEIGHT, true);
+      int[] pixels = new int[HASH_WIDTH * HASH_HEIGHT];
+      tiny.getPixels(pixels, 0, HASH_WIDTH, 0, 0, HASH_WIDTH, HASH_HEIGHT);
+      if (tiny != sampled) {
+         tiny.recycle();
+      }
+      sampled.recycle();
+      // Every bit tells whether the brightness grows to the right
+      long hash = 0;
+      for (int y = 0; y < HASH_HEIGHT; y++) {
+         for (int x = 0; x < HASH_WIDTH - 1; x++) {
+            hash = hash << 1;
+            if (getLuminance(pixels[y * HASH_WIDTH + x]) < getLuminance(pixels[y * HASH_WIDTH + x + 1])) {
+               hash = hash | 1;
+            }
+         }
+      }
+      return hash;
+   }
+
+   /**
+    * Return count of different bits
+    *
+    * @param hash1
+    * @param hash2
+    * @return
+    */
+   public static int getDistance(long hash1, long hash2) {
+      return Long.bitCount(hash1 ^ hash2);
+   }
+
+   /**
+    * Compute the hash of the cache file and add it to the index
+    *
+    * @param key cache file name
+    * @return hash or null if the file can't be decoded
+    */
+   public Long put(String key) {
+      Long hash = computeHash(key);
+      if (hash != null) {
+         put(key, hash);
+      }
+      return hash;
+   }
+
+   /**
+    * Add the hash of the cache file to the index
+    *
+    * @param key cache file name
+    * @param hash
+    */
+   public synchronized void put(String key, long hash) {
+      add(key, hash);
+      cacheIndex.setHash(key, hash);
+   }
+
+   /**
+    * Return the hash of the cache file or null if it is not hashed
+    *
+    * @param key cache file name
+    * @return
+    */
+   public synchronized Long getHash(String key) {
+      return hashes.get(key);
+   }
+
+   /**
+    * Return cache files with the hash not farther than the distance, the nearest first
+    *
+    * @param hash
+    * @param maxDistance
+    * @return
+    */
+   public synchronized List<String> find(final long hash, int maxDistance) {
+      List<String> result = new ArrayList<String>();
+      if (root == null) {
+         return result;
+      }
+      final Map<String, Integer> distances = new HashMap<String, Integer>();
+      List<Node> stack = new ArrayList<Node>();
+      stack.add(root);
+      while (!stack.isEmpty()) {
+         Node node = stack.remove(stack.size() - 1);
+         int distance = getDistance(node.hash, hash);
+         if (distance <= maxDistance) {
+            for (int i = node.keys.size() - 1; i >= 0; i--) {
+               String key = node.keys.get(i);
+               if (cacheIndex.contains(key)) {
+                  result.add(key);
+                  distances.put(key, distance);
+               } else {
+                  // The cache file was removed
+                  node.keys.remove(i);
+                  hashes.remove(key);
+               }
+            }
+         }
+         if (node.children != null) {
+            int to = Math.min(node.children.length - 1, distance + maxDistance);
+            for (int i = Math.max(1, distance - maxDistance); i <= to; i++) {
+               if (node.children[i] != null) {
+                  stack.add(node.children[i]);
+               }
+            }
+         }
+      }
+      Collections.sort(result, new Comparator<String>() {
+
+         @Override
+         public int compare(String lhs, String rhs) {
+            return distances.get(lhs) - distances.get(rhs);
+         }
+      });
+      return result;
+   }
+
+   /**
+    * Return other cache files which are near duplicates of the cache file, the nearest first. The file is hashed if it is not hashed yet.
+    * Only files named by their content are matched, the hash of other files may be stale. The hash is computed from the stored pixels, so
+    * duplicates must also have the same EXIF orientation.
+    *
+    * @param key cache file name
+    * @param maxDistance
+    * @return
+    */
+   public List<String> findDuplicates(String key, int maxDistance) {
+      if (!BitmapCaсheIO.isContentKey(key)) {
+         return new ArrayList<String>();
+      }
+      Long hash = getHash(key);
+      if (hash == null) {
+         hash = put(key);
+         if (hash == null) {
+            return new ArrayList<String>();
+         }
+      }
+      List<String> result = find(hash, maxDistance);
+      result.remove(key);
+      for (int i = result.size() - 1; i >= 0; i--) {
+         if (!BitmapCaсheIO.isContentKey(result.get(i))) {
+            result.remove(i);
+         }
+      }
+      BitmapCacheIndex.Entry entry = cacheIndex.get(key);
+      if (entry != null && entry.getWidth() > 0 && entry.getHeight() > 0) {
+         // Different crops have close hashes
+         float aspect = (float) entry.getWidth() / entry.getHeight();
+         for (int i = result.size() - 1; i >= 0; i--) {
+            BitmapCacheIndex.Entry other = cacheIndex.get(result.get(i));
+            if (other == null || other.getHeight() <= 0 || Math.abs((float) other.getWidth() / other.getHeight() / aspect - 1) > MAX_ASPECT_DIFF) {
+               result.remove(i);
+            }
+         }
+      }
+      if (!result.isEmpty()) {
+         int orientation = BitmapExif.read(key).getOrientation();
+         for (int i = result.size() - 1; i >= 0; i--) {
+            if (BitmapExif.read(result.get(i)).getOrientation() != orientation) {
+               result.remove(i);
+            }
+         }
+      }
+      return result;
+   }
+
+   /**
+    * Return the nearest other cache file within {@link #DEFAULT_DISTANCE} or null
+    *
+    * @param key cache file name
+    * @return
+    */
+   public String findDuplicate(String key) {
+      List<String> duplicates = findDuplicates(key, DEFAULT_DISTANCE);
+      return duplicates.isEmpty() ? null : duplicates.get(0);
+   }
+
+   /**
+    * Return count of hashed files
+    *
+    * @return
+    */
+   public synchronized int getCount() {
+      return hashes.size();
+   }
+
+   // ************************* Private methods ******************************
+
+   private void add(String key, long hash) {
+      Long old = hashes.put(key, hash);
+      if (old != null) {
+         if (old == hash) {
+            return;
+         }
+         Node node = findNode(old);
+         if (node != null) {
+            node.keys.remove(key);
+         }
+      }
+      if (root == null) {
+         root = new Node(hash);
+         root.keys.add(key);
+         return;
+      }
+      Node node = root;
+      while (true) {
+         int distance = getDistance(node.hash, hash);
+         if (distance == 0) {
+            node.keys.add(key);
+            return;
+         }
+         if (node.children == null) {
+            node.children = new Node[Long.SIZE + 1];
+         }
+         if (node.children[distance] == null) {
+            Node child = new Node(hash);
+            child.keys.add(key);
+            node.children[distance] = child;
+            return;
+         }
+         node = node.children[distance];
+      }
+   }
+
+   private Node findNode(long hash) {
+      Node node = root;
+      while (node != null) {
+         int distance = getDistance(node.hash, hash);
+         if (distance == 0) {
+            return node;
+         }
+         node = node.children == null ? null : node.children[distance];
+      }
+      return null;
+   }
+
+   private static int getLuminance(int color) {
+      return (((color >> 16) & 0xFF) * 299 + ((color >> 8) & 0xFF) * 587 + (color & 0xFF) * 114) / 1000;
+   }
+
+}
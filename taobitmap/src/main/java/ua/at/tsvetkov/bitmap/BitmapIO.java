@@ -32,6 +32,12 @@ import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
 
 import ua.at.tsvetkov.io.FileIO;
 import ua.at.tsvetkov.io.FilePath;
@@ -41,6 +47,7 @@ import android.content.Context;
 import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
 import android.graphics.PointF;
+import android.graphics.Rect;
 
 /**
  * IO for working with Bitmap
@@ -71,17 +78,36 @@ public class BitmapIO {
    }
 
    /**
-    * Compress bitmap to file. If compressing was success then bitmap will recycle.
+    * Compress bitmap to file. If compressing was success then bitmap will recycle. Use {@link #saveToFile(BitmapHandle, String)} for shared
+    * bitmaps.
     * 
     * @param bitmap
     * @param fileName
     * @return true if success
     */
    public static boolean saveToFile(Bitmap bitmap, String fileName) {
+      if (!compressToFile(bitmap, fileName)) {
+         return false;
+      }
+      bitmap.recycle();
+      return true;
+   }
+
+   /**
+    * Compress bitmap to file. The bitmap is not recycled and the reference of the caller is not released.
+    * 
+    * @param handle
+    * @param fileName
+    * @return true if success
+    */
+   public static boolean saveToFile(BitmapHandle handle, String fileName) {
+      return compressToFile(handle.get(), fileName);
+   }
+
+   private static boolean compressToFile(Bitmap bitmap, String fileName) {
       File file = new File(fileName); // Stub file name
       try {
          bitmap.compress(Bitmap.CompressFormat.PNG, 0, new FileOutputStream(file));
-         bitmap.recycle();
       } catch (Exception e) {
          Log.e("Can't compress bitmap to file " + fileName, e);
          return false;
@@ -122,6 +148,101 @@ public class BitmapIO {
       return result;
    }
 
+   /**
+    * Copy src image file to several dst files with resizing. The source is decoded only once with the sample size of the largest output,
+    * smaller outputs are derived from the larger ones as a mipmap chain and all outputs are compressed in parallel. EXIF orientation of the
+    * source is applied.
+    * 
+    * @param srcFile
+    * @param outputs
+    * @return true if all outputs are saved
+    */
+   public static boolean resizeAndSaveTo(String srcFile, List<BitmapOutput> outputs) {
+      if (outputs.isEmpty()) {
+         return true;
+      }
+      BitmapFactory.Options options = new BitmapFactory.Options();
+      options.inJustDecodeBounds = true;
+      BitmapFactory.decodeFile(srcFile, options);
+      if (options.outWidth <= 0 || options.outHeight <= 0) {
+         Log.e("Can't decode " + srcFile);
+         return false;
+      }
+
+      BitmapExif exif = BitmapExif.read(srcFile);
+      boolean isTransposed = exif.isTransposed();
+      int srcWidth = isTransposed ? options.outHeight : options.outWidth;
+      int srcHeight = isTransposed ? options.outWidth : options.outHeight;
+
+      List<OutputLevel> levels = new ArrayList<OutputLevel>();
+      for (BitmapOutput output : outputs) {
+         levels.add(new OutputLevel(output, srcWidth, srcHeight));
+      }
+      Collections.sort(levels, new Comparator<OutputLevel>() {
+
+         @Override
+         public int compare(OutputLevel lhs, OutputLevel rhs) {
+            long lhsSize = (long) lhs.width * lhs.height;
+            long rhsSize = (long) rhs.width * rhs.height;
+            return lhsSize > rhsSize ? -1 : (lhsSize < rhsSize ? 1 : 0);
+         }
+      });
+
+      OutputLevel largest = levels.get(0);
+      Bitmap decoded = BitmapCaсheIO.decodeSampledBitmapFromProbedFile(srcFile, options, isTransposed ? largest.height : largest.width, isTransposed ? largest.width
+            : largest.height);
+      if (decoded == null) {
+         Log.e("Can't decode " + srcFile);
+         return false;
+      }
+      if (exif.getOrientation() != BitmapExif.ORIENTATION_NORMAL) {
+         Bitmap oriented = BitmapPixels.transform(decoded, new Rect(0, 0, decoded.getWidth(), decoded.getHeight()), exif.isFlipHorizontal(), false,
+               exif.getRotation(), true);
+         if (oriented != decoded) {
+            decoded.recycle();
+            decoded = oriented;
+         }
+      }
+
+      List<Bitmap> bitmaps = new ArrayList<Bitmap>();
+      List<Future<Boolean>> results = new ArrayList<Future<Boolean>>();
+      bitmaps.add(decoded);
+      Bitmap previous = decoded;
+      boolean result = true;
+      try {
+         for (final OutputLevel level : levels) {
+            final Bitmap bitmap = scaleDown(previous, level.width, level.height);
+            if (bitmap != previous) {
+               bitmaps.add(bitmap);
+            }
+            results.add(BitmapWorkers.getPool().submit(new Callable<Boolean>() {
+
+               @Override
+               public Boolean call() throws Exception {
+                  return compressToFile(bitmap, level.output.getFileName(), level.output.getFormat(), level.output.getQuality());
+               }
+            }));
+            previous = bitmap;
+         }
+      } catch (Throwable e) {
+         // Also OutOfMemoryError, the submitted tasks must be finished before the bitmaps are recycled
+         Log.e("Can't resize " + srcFile, e);
+         result = false;
+      }
+      for (Future<Boolean> future : results) {
+         try {
+            result = future.get() && result;
+         } catch (Throwable e) {
+            Log.e("Can't compress bitmap", e);
+            result = false;
+         }
+      }
+      for (Bitmap bitmap : bitmaps) {
+         bitmap.recycle();
+      }
+      return result;
+   }
+
    /**
     * Resize image file to nearest size.
     * 
@@ -164,4 +285,150 @@ public class BitmapIO {
       }
    }
 
+   /**
+    * Copy src image file to dst file with crop, flips and clockwise rotation. JPEG files are transformed losslessly in the DCT domain if
+    * possible (see {@link BitmapJpegTranscoder}), otherwise the image is decoded, transformed and saved in the source format: JPEG with
+    * quality 95 or lossless PNG for other images.
+    * 
+    * @param srcFile
+    * @param dstFile
+    * @param isFlipHorizontal
+    * @param isFlipVertical
+    * @param rotation 0, 90, 180 or 270
+    * @param crop crop area in source coordinates or null
+    * @return true if success
+    */
+   public static boolean rotateAndSaveTo(String srcFile, String dstFile, boolean isFlipHorizontal, boolean isFlipVertical, int rotation, Rect crop) {
+      if (BitmapJpegTranscoder.transform(srcFile, dstFile, isFlipHorizontal, isFlipVertical, rotation, crop, false)) {
+         return true;
+      }
+      return decodeAndSaveTo(srcFile, dstFile, isFlipHorizontal, isFlipVertical, rotation, crop);
+   }
+
+   /**
+    * Rotate and flip the image file in place, see {@link #rotateAndSaveTo(String, String, boolean, boolean, int, Rect)}.
+    * 
+    * @param fileName
+    * @param isFlipHorizontal
+    * @param isFlipVertical
+    * @param rotation 0, 90, 180 or 270
+    * @return true if success
+    */
+   public static boolean rotateAndSave(String fileName, boolean isFlipHorizontal, boolean isFlipVertical, int rotation) {
+      String tmpFileName = FilePath.getFilePath(fileName) + Md5.getHashString(fileName) + ".bin";
+      boolean result = rotateAndSaveTo(fileName, tmpFileName, isFlipHorizontal, isFlipVertical, rotation, null);
+      if (result) {
+         return FileIO.rename(tmpFileName, fileName);
+      } else {
+         return false;
+      }
+   }
+
+   /**
+    * Apply EXIF orientation to the JPEG file in place and set the orientation to normal. The file is transformed losslessly if possible,
+    * otherwise it is decoded, transformed and saved with quality 95.
+    * 
+    * @param fileName
+    * @return true if success or the orientation is already normal
+    */
+   public static boolean normalizeOrientation(String fileName) {
+      BitmapExif exif = BitmapExif.read(fileName);
+      if (exif.getOrientation() == BitmapExif.ORIENTATION_NORMAL) {
+         return true;
+      }
+      String tmpFileName = FilePath.getFilePath(fileName) + Md5.getHashString(fileName) + ".bin";
+      boolean result = BitmapJpegTranscoder.normalizeOrientation(fileName, tmpFileName)
+            || decodeAndSaveTo(fileName, tmpFileName, exif.isFlipHorizontal(), false, exif.getRotation(), null);
+      if (result) {
+         return FileIO.rename(tmpFileName, fileName);
+      } else {
+         return false;
+      }
+   }
+
+   // ************************* Private methods ******************************
+
+   /**
+    * Decode the image file, transform it and save in the source format: JPEG with quality 95 or lossless PNG for other images.
+    */
+   private static boolean decodeAndSaveTo(String srcFile, String dstFile, boolean isFlipHorizontal, boolean isFlipVertical, int rotation,
+         Rect crop) {
+      BitmapFactory.Options options = new BitmapFactory.Options();
+      Bitmap bitmap = BitmapFactory.decodeFile(srcFile, options);
+      if (bitmap == null) {
+         Log.e("Can't decode file " + srcFile);
+         return false;
+      }
+      Rect area = crop == null ? new Rect(0, 0, bitmap.getWidth(), bitmap.getHeight()) : crop;
+      Bitmap result = BitmapPixels.transform(bitmap, area, isFlipHorizontal, isFlipVertical, rotation, BitmapWorkers.getThreadsCount() > 1);
+      boolean isSaved;
+      if ("image/jpeg".equals(options.outMimeType)) {
+         isSaved = compressToFile(result, dstFile, Bitmap.CompressFormat.JPEG, 95);
+      } else {
+         isSaved = compressToFile(result, dstFile, Bitmap.CompressFormat.PNG, 100);
+      }
+      if (result != bitmap) {
+         result.recycle();
+      }
+      bitmap.recycle();
+      return isSaved;
+   }
+
+   /**
+    * Scale the bitmap down by halves while it is two times bigger than the requested size, then to the requested size. The source bitmap is
+    * not recycled.
+    */
+   private static Bitmap scaleDown(Bitmap source, int width, int height) {
+      Bitmap current = source;
+      while (current.getWidth() / 2 >= width && current.getHeight() / 2 >= height) {
+         Bitmap half = Bitmap.createScaledBitmap(current, current.getWidth() / 2, current.getHeight() / 2, true);
+         if (current != source) {
+            current.recycle();
+         }
+         current = half;
+      }
+      if (current.getWidth() != width || current.getHeight() != height) {
+         Bitmap scaled = Bitmap.createScaledBitmap(current, width, height, true);
+         if (current != source) {
+            current.recycle();
+         }
+         current = scaled;
+      }
+      return current;
+   }
+
+   private static boolean compressToFile(Bitmap bitmap, String fileName, Bitmap.CompressFormat format, int quality) {
+      FileOutputStream out = null;
+      try {
+         out = new FileOutputStream(new File(fileName));
+         return bitmap.compress(format, quality, out);
+      } catch (Exception e) {
+         Log.e("Can't compress bitmap to file " + fileName, e);
+         return false;
+      } finally {
+         if (out != null) {
+            try {
+               out.close();
+            } catch (IOException e) {
+               Log.e("Can't close file " + fileName, e);
+            }
+         }
+      }
+   }
+
+   private static final class OutputLevel {
+
+      private final BitmapOutput output;
+      private final int          width;
+      private final int          height;
+
+      private OutputLevel(BitmapOutput output, int srcWidth, int srcHeight) {
+         this.output = output;
+         float scale = Math.max(srcWidth / output.getReqWidth(), srcHeight / output.getReqHeight());
+         width = Math.max(1, (int) (srcWidth / scale));
+         height = Math.max(1, (int) (srcHeight / scale));
+      }
+
+   }
+
 }
@@ -0,0 +1,1115 @@
+/*******************************************************************************
+ * Copyright (c) 2014 Alexandr Tsvetkov.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the The BSD 3-Clause License
+ * which accompanies this distribution, and is available at
+ * http://opensource.org/licenses/BSD-3-Clause
+ *
+ * Contributors:
+ *     Alexandr Tsvetkov - initial API and implementation
+ *
+ * Project:
+ *     TAO Bitmap Utils
+ *
+ * File name:
+ *     BitmapJpegTranscoder.java
+ *
+ * License agreement:
+ *
+ * 1. This code is published AS IS. Author is not responsible for any damage that can be
+ *    caused by any application that uses this code.
+ * 2. Author does not give a garantee, that this code is error free.
+ * 3. This code can be used in NON-COMMERCIAL applications AS IS without any special
+ *    permission from author.
+ * 4. This code can be modified without any special permission from author IF AND ONLY IF
+ *    this license agreement will remain unchanged.
+ * 5. SPECIAL PERMISSION for this code usage in COMMERCIAL application SHOULD be obtained
+ *    from author.
+ ******************************************************************************/
+package ua.at.tsvetkov.bitmap;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import ua.at.tsvetkov.util.Log;
+import android.graphics.Point;
+import android.graphics.Rect;
+
+/**
+ * Lossless JPEG transformations in the DCT domain, like jpegtran. Flips, rotations by 90, 180 and 270 degrees and MCU aligned crop are made
+ * by rearranging of DCT coefficient blocks, the pixels are never decoded. Only baseline and extended sequential Huffman JPEG files with 8
+ * bit precision are supported, progressive and arithmetic coded files are rejected.
+ * <p>
+ * Partial MCU blocks on the edges which would be moved inside the image by a flip are trimmed (the same as jpegtran -trim), so the
+ * transformed image may be up to 15 pixels smaller. Huffman tables are optimized for the new image, restart markers are removed.
+ *
+ * @author A.Tsvetkov 2014 http://tsvetkov.at.ua mailto:al@ukr.net
+ */
+public class BitmapJpegTranscoder {
+
+   private static final int[] ZIGZAG            = { 0, 1, 8, 16, 9, 2, 3, 10, 17, 24, 32, 25, 18, 11, 4, 5, 12, 19, 26, 33, 40, 48, 41, 34, 27, 20, 13, 6, 7, 14, 21, 28, 35,
+         42, 49, 56, 57, 50, 43, 36, 29, 22, 15, 23, 30, 37, 44, 51, 58, 59, 52, 45, 38, 31, 39, 46, 53, 60, 61, 54, 47, 55, 62, 63 };
+
+   private static final int   MARKER_SOF0       = 0xC0;
+   private static final int   MARKER_SOF1       = 0xC1;
+   private static final int   MARKER_DHT        = 0xC4;
+   private static final int   MARKER_SOI        = 0xD8;
+   private static final int   MARKER_EOI        = 0xD9;
+   private static final int   MARKER_SOS        = 0xDA;
+   private static final int   MARKER_DQT        = 0xDB;
+   private static final int   MARKER_DRI        = 0xDD;
+   private static final int   MARKER_APP0       = 0xE0;
+   private static final int   MARKER_APP1       = 0xE1;
+   private static final int   MARKER_COM        = 0xFE;
+   private static final int   MAX_BLOCKS_IN_MCU = 10;
+
+   private BitmapJpegTranscoder() {
+
+   }
+
+   /**
+    * Losslessly transform JPEG file. The crop is applied first (in source coordinates), then flips and clockwise rotation. The left and top
+    * of the crop area must be multiples of the MCU size (8 or 16 pixels), see {@link #getMcuSize(String)}. The size of the image is never
+    * changed: if a flip or rotation would move a partial MCU of the right or bottom edge inside the image, false is returned.
+    *
+    * @param srcFile source JPEG file
+    * @param dstFile destination JPEG file, must be different from source
+    * @param isFlipHorizontal
+    * @param isFlipVertical
+    * @param rotation 0, 90, 180 or 270
+    * @param crop crop area or null
+    * @param isResetOrientation set EXIF orientation of destination file to normal
+    * @return true if success, false if the file is not supported, the crop is not aligned or the edge MCU is partial
+    */
+   public static boolean transform(String srcFile, String dstFile, boolean isFlipHorizontal, boolean isFlipVertical, int rotation, Rect crop,
+         boolean isResetOrientation) {
+      return transform(srcFile, dstFile, isFlipHorizontal, isFlipVertical, rotation, crop, isResetOrientation, false);
+   }
+
+   /**
+    * Losslessly transform JPEG file, see {@link #transform(String, String, boolean, boolean, int, Rect, boolean)}. If isTrim is true the
+    * partial MCU which would be moved inside the image is cut off, like jpegtran -trim does, so the result may be up to 15 pixels smaller.
+    *
+    * @param srcFile source JPEG file
+    * @param dstFile destination JPEG file, must be different from source
+    * @param isFlipHorizontal
+    * @param isFlipVertical
+    * @param rotation 0, 90, 180 or 270
+    * @param crop crop area or null
+    * @param isResetOrientation set EXIF orientation of destination file to normal
+    * @param isTrim cut off the partial edge MCU instead of failing
+    * @return true if success, false if the file is not supported or the crop is not aligned
+    */
+   public static boolean transform(String srcFile, String dstFile, boolean isFlipHorizontal, boolean isFlipVertical, int rotation, Rect crop,
+         boolean isResetOrientation, boolean isTrim) {
+      if (rotation != 0 && rotation != 90 && rotation != 180 && rotation != 270) {
+         throw new IllegalArgumentException("Wrong rotation " + rotation + ", must be 0, 90, 180 or 270.");
+      }
+      try {
+         Jpeg jpeg = Jpeg.parse(BitmapCaсheIO.readDataFile(srcFile));
+         if (jpeg == null) {
+            return false;
+         }
+         // Flip vertical is a horizontal flip with rotation by 180
+         boolean isFlip = isFlipHorizontal != isFlipVertical;
+         int angle = (isFlipVertical ? rotation + 180 : rotation) % 360;
+         if (!jpeg.transform(isFlip, angle, crop, isTrim)) {
+            return false;
+         }
+         if (isResetOrientation) {
+            jpeg.resetOrientation();
+         }
+         byte[] result = jpeg.encode();
+         FileOutputStream out = new FileOutputStream(new File(dstFile));
+         try {
+            out.write(result);
+         } finally {
+            out.close();
+         }
+         return true;
+      } catch (Exception e) {
+         Log.e("Can't transform JPEG file " + srcFile, e);
+         return false;
+      }
+   }
+
+   /**
+    * Losslessly rotate and flip the JPEG file according to its EXIF orientation, the orientation of destination file is set to normal.
+    *
+    * @param srcFile
+    * @param dstFile
+    * @return true if success
+    */
+   public static boolean normalizeOrientation(String srcFile, String dstFile) {
+      BitmapExif exif = BitmapExif.read(srcFile);
+      return transform(srcFile, dstFile, exif.isFlipHorizontal(), false, exif.getRotation(), null, true);
+   }
+
+   /**
+    * Return the MCU size of the JPEG file, point.x is the width and point.y is the height, or null if the file is not supported.
+    *
+    * @param fileName
+    * @return
+    */
+   public static Point getMcuSize(String fileName) {
+      try {
+         Jpeg jpeg = Jpeg.parse(BitmapCaсheIO.readDataFile(fileName));
+         if (jpeg == null) {
+            return null;
+         }
+         return new Point(jpeg.hmax * 8, jpeg.vmax * 8);
+      } catch (Exception e) {
+         Log.e("Can't read JPEG file " + fileName, e);
+         return null;
+      }
+   }
+
+   // ************************* Private classes ******************************
+
+   private static final class Component {
+
+      private int     id;
+      private int     h;
+      private int     v;
+      private int     tq;
+      private int     td;
+      private int     ta;
+      /** Allocated blocks, padded to MCU */
+      private int     blocksPerLine;
+      private int     blocksPerColumn;
+      /** Blocks which contain image pixels */
+      private int     blocksWidth;
+      private int     blocksHeight;
+      private short[] coefs;
+      private int     pred;
+
+      private void allocate(int width, int height, int hmax, int vmax) {
+         int mcusX = (width + 8 * hmax - 1) / (8 * hmax);
+         int mcusY = (height + 8 * vmax - 1) / (8 * vmax);
+         blocksPerLine = mcusX * h;
+         blocksPerColumn = mcusY * v;
+         blocksWidth = ((width * h + hmax - 1) / hmax + 7) / 8;
+         blocksHeight = ((height * v + vmax - 1) / vmax + 7) / 8;
+         coefs = new short[blocksPerLine * blocksPerColumn * 64];
+      }
+
+   }
+
+   private static final class Jpeg {
+
+      private final List<byte[]> markers     = new ArrayList<byte[]>();
+      /** Quantization tables in natural order, index is the table id */
+      private final int[][]      quantTables = new int[4][];
+      private Component[]        components;
+      private int                frameMarker;
+      private int                width;
+      private int                height;
+      private int                hmax;
+      private int                vmax;
+      private int                restartInterval;
+
+      /**
+       * Parse the file and decode DCT coefficients, return null if the file is not supported
+       */
+      private static Jpeg parse(byte[] data) throws IOException {
+         if (data == null || data.length < 4 || (data[0] & 0xFF) != 0xFF || (data[1] & 0xFF) != MARKER_SOI) {
+            // Not a JPEG file, callers fall back to decoding
+            return null;
+         }
+         Jpeg jpeg = new Jpeg();
+         HuffmanDecoder[] dcTables = new HuffmanDecoder[4];
+         HuffmanDecoder[] acTables = new HuffmanDecoder[4];
+         int pos = 2;
+         while (pos < data.length) {
+            if ((data[pos] & 0xFF) != 0xFF) {
+               throw new IOException("Marker is expected at " + pos);
+            }
+            while (pos < data.length && (data[pos] & 0xFF) == 0xFF) {
+               pos++;
+            }
+            if (pos >= data.length) {
+               break;
+            }
+            int marker = data[pos++] & 0xFF;
+            if (marker == MARKER_EOI) {
+               break;
+            }
+            if (marker == 0x01 || (marker >= 0xD0 && marker <= 0xD7)) {
+               continue; // Standalone markers
+            }
+            int length = readShort(data, pos);
+            int end = pos + length;
+            if (length < 2 || end > data.length) {
+               throw new IOException("Wrong segment length at " + pos);
+            }
+            if (marker == MARKER_SOF0 || marker == MARKER_SOF1) {
+               if (!jpeg.parseFrame(data, pos + 2, marker)) {
+                  return null;
+               }
+            } else if (marker >= 0xC2 && marker <= 0xCF && marker != MARKER_DHT && marker != 0xC8 && marker != 0xCC) {
+               Log.e("Progressive, lossless or arithmetic coded JPEG is not supported");
+               return null;
+            } else if (marker == MARKER_DHT) {
+               int p = pos + 2;
+               while (p < end) {
+                  int tc = (data[p] & 0xFF) >> 4;
+                  int th = data[p] & 0x0F;
+                  HuffmanDecoder table = new HuffmanDecoder(data, p + 1);
+                  if (th > 3) {
+                     throw new IOException("Wrong Huffman table " + th);
+                  }
+                  if (tc == 0) {
+                     dcTables[th] = table;
+                  } else {
+                     acTables[th] = table;
+                  }
+                  p = p + 17 + table.count;
+               }
+            } else if (marker == MARKER_DQT) {
+               jpeg.parseQuantTables(data, pos + 2, end);
+            } else if (marker == MARKER_DRI) {
+               jpeg.restartInterval = readShort(data, pos + 2);
+            } else if (marker == MARKER_SOS) {
+               if (jpeg.components == null) {
+                  throw new IOException("Scan before frame");
+               }
+               end = jpeg.decodeScan(data, pos + 2, end, dcTables, acTables);
+            } else if ((marker >= MARKER_APP0 && marker <= 0xEF) || marker == MARKER_COM) {
+               jpeg.markers.add(copy(data, pos - 2, end));
+            }
+            pos = end;
+         }
+         if (jpeg.components == null) {
+            throw new IOException("No frame in JPEG file");
+         }
+         return jpeg;
+      }
+
+      private void parseQuantTables(byte[] data, int pos, int end) throws IOException {
+         while (pos < end) {
+            int precision = (data[pos] & 0xFF) >> 4;
+            int id = data[pos] & 0x0F;
+            if (id > 3 || pos + 1 + 64 * (precision + 1) > end) {
+               throw new IOException("Wrong quantization table");
+            }
+            int[] table = new int[64];
+            for (int k = 0; k < 64; k++) {
+               table[ZIGZAG[k]] = precision == 0 ? data[pos + 1 + k] & 0xFF : readShort(data, pos + 1 + k * 2);
+            }
+            quantTables[id] = table;
+            pos = pos + 1 + 64 * (precision + 1);
+         }
+      }
+
+      private boolean parseFrame(byte[] data, int pos, int marker) throws IOException {
+         if ((data[pos] & 0xFF) != 8) {
+            Log.e("Only 8 bit JPEG is supported");
+            return false;
+         }
+         frameMarker = marker;
+         height = readShort(data, pos + 1);
+         width = readShort(data, pos + 3);
+         int count = data[pos + 5] & 0xFF;
+         if (width == 0 || height == 0 || count == 0 || count > 4) {
+            Log.e("Unsupported JPEG frame");
+            return false;
+         }
+         components = new Component[count];
+         hmax = 1;
+         vmax = 1;
+         for (int i = 0; i < count; i++) {
+            int p = pos + 6 + i * 3;
+            Component component = new Component();
+            component.id = data[p] & 0xFF;
+            component.h = (data[p + 1] & 0xFF) >> 4;
+            component.v = data[p + 1] & 0x0F;
+            component.tq = data[p + 2] & 0xFF;
+            if (component.h < 1 || component.h > 4 || component.v < 1 || component.v > 4) {
+               throw new IOException("Wrong sampling factors");
+            }
+            hmax = Math.max(hmax, component.h);
+            vmax = Math.max(vmax, component.v);
+            components[i] = component;
+         }
+         for (Component component : components) {
+            component.allocate(width, height, hmax, vmax);
+         }
+         return true;
+      }
+
+      /**
+       * Decode entropy coded data of the scan, return position of the next marker
+       */
+      private int decodeScan(byte[] data, int pos, int end, HuffmanDecoder[] dcTables, HuffmanDecoder[] acTables) throws IOException {
+         int count = data[pos] & 0xFF;
+         Component[] scan = new Component[count];
+         for (int i = 0; i < count; i++) {
+            int id = data[pos + 1 + i * 2] & 0xFF;
+            int tables = data[pos + 2 + i * 2] & 0xFF;
+            for (Component component : components) {
+               if (component.id == id) {
+                  scan[i] = component;
+               }
+            }
+            if (scan[i] == null) {
+               throw new IOException("Unknown component " + id);
+            }
+            scan[i].td = tables >> 4;
+            scan[i].ta = tables & 0x0F;
+            if (dcTables[scan[i].td] == null || acTables[scan[i].ta] == null) {
+               throw new IOException("Huffman table is not defined");
+            }
+            scan[i].pred = 0;
+         }
+         BitReader reader = new BitReader(data, end);
+         if (count == 1) {
+            Component component = scan[0];
+            int total = component.blocksWidth * component.blocksHeight;
+            for (int n = 0; n < total; n++) {
+               if (restartInterval > 0 && n > 0 && n % restartInterval == 0) {
+                  reader.restart();
+                  component.pred = 0;
+               }
+               decodeBlock(reader, component, n / component.blocksWidth, n % component.blocksWidth, dcTables[component.td], acTables[component.ta]);
+            }
+         } else {
+            int mcusX = (width + 8 * hmax - 1) / (8 * hmax);
+            int mcusY = (height + 8 * vmax - 1) / (8 * vmax);
+            int total = mcusX * mcusY;
+            for (int n = 0; n < total; n++) {
+               if (restartInterval > 0 && n > 0 && n % restartInterval == 0) {
+                  reader.restart();
+                  for (Component component : scan) {
+                     component.pred = 0;
+                  }
+               }
+               int mcuX = n % mcusX;
+               int mcuY = n / mcusX;
+               for (Component component : scan) {
+                  for (int y = 0; y < component.v; y++) {
+                     for (int x = 0; x < component.h; x++) {
+                        decodeBlock(reader, component, mcuY * component.v + y, mcuX * component.h + x, dcTables[component.td], acTables[component.ta]);
+                     }
+                  }
+               }
+            }
+         }
+         return reader.findMarker();
+      }
+
+      private static void decodeBlock(BitReader reader, Component component, int row, int column, HuffmanDecoder dc, HuffmanDecoder ac) throws IOException {
+         short[] coefs = component.coefs;
+         int offset = (row * component.blocksPerLine + column) * 64;
+         int size = dc.decode(reader);
+         if (size > 0) {
+            component.pred = component.pred + extend(reader.readBits(size), size);
+         }
+         coefs[offset] = (short) component.pred;
+         for (int k = 1; k < 64;) {
+            int rs = ac.decode(reader);
+            int run = rs >> 4;
+            size = rs & 0x0F;
+            if (size == 0) {
+               if (run != 15) {
+                  break; // EOB
+               }
+               k = k + 16;
+               continue;
+            }
+            k = k + run;
+            if (k > 63) {
+               throw new IOException("Wrong AC coefficient index");
+            }
+            coefs[offset + ZIGZAG[k]] = (short) extend(reader.readBits(size), size);
+            k++;
+         }
+      }
+
+      /**
+       * Crop, flip and rotate coefficient blocks. The transformation is: crop, then optional horizontal flip, then clockwise rotation.
+       */
+      private boolean transform(boolean isFlip, int rotation, Rect crop, boolean isTrim) {
+         Rect area = new Rect(0, 0, width, height);
+         if (crop != null) {
+            area = new Rect(crop);
+            if (!area.intersect(0, 0, width, height)) {
+               Log.e("Crop area is outside the image");
+               return false;
+            }
+         }
+         int mcuWidth = 8 * hmax;
+         int mcuHeight = 8 * vmax;
+         if (area.left % mcuWidth != 0 || area.top % mcuHeight != 0) {
+            Log.e("Crop area must be aligned to " + mcuWidth + "x" + mcuHeight + " MCU");
+            return false;
+         }
+         boolean isTransposed = rotation == 90 || rotation == 270;
+         boolean isMirrorX = isFlip != (rotation == 180 || rotation == 270);
+         boolean isMirrorY = rotation == 90 || rotation == 180;
+         int areaWidth = area.width();
+         int areaHeight = area.height();
+         // Partial MCU which would be moved inside the image can be only trimmed
+         if ((isMirrorX && areaWidth % mcuWidth != 0) || (isMirrorY && areaHeight % mcuHeight != 0)) {
+            if (!isTrim) {
+               return false; // The caller falls back to decoding
+            }
+            if (isMirrorX) {
+               areaWidth = areaWidth - areaWidth % mcuWidth;
+            }
+            if (isMirrorY) {
+               areaHeight = areaHeight - areaHeight % mcuHeight;
+            }
+         }
+         if (areaWidth == 0 || areaHeight == 0) {
+            Log.e("Image is smaller than MCU, can't transform");
+            return false;
+         }
+         if (!isTransposed && !isMirrorX && !isMirrorY && area.left == 0 && area.top == 0 && areaWidth == width && areaHeight == height) {
+            return true;
+         }
+
+         int[] coefMap = new int[64];
+         int[] coefSign = new int[64];
+         for (int k = 0; k < 64; k++) {
+            int u = k % 8;
+            int v = k / 8;
+            int su = isTransposed ? v : u;
+            int sv = isTransposed ? u : v;
+            coefMap[k] = sv * 8 + su;
+            coefSign[k] = ((isMirrorX && (su & 1) == 1) ? -1 : 1) * ((isMirrorY && (sv & 1) == 1) ? -1 : 1);
+         }
+
+         if (isTransposed) {
+            for (int id = 0; id < 4; id++) {
+               int[] table = quantTables[id];
+               if (table != null) {
+                  int[] transposed = new int[64];
+                  for (int k = 0; k < 64; k++) {
+                     transposed[k] = table[coefMap[k]];
+                  }
+                  quantTables[id] = transposed;
+               }
+            }
+         }
+
+         int newWidth = isTransposed ? areaHeight : areaWidth;
+         int newHeight = isTransposed ? areaWidth : areaHeight;
+         int newHmax = isTransposed ? vmax : hmax;
+         int newVmax = isTransposed ? hmax : vmax;
+         for (Component component : components) {
+            int offsetX = area.left * component.h / hmax / 8;
+            int offsetY = area.top * component.v / vmax / 8;
+            int bw = ((areaWidth * component.h + hmax - 1) / hmax + 7) / 8;
+            int bh = ((areaHeight * component.v + vmax - 1) / vmax + 7) / 8;
+            short[] src = component.coefs;
+            int srcPerLine = component.blocksPerLine;
+
+            Component result = new Component();
+            result.h = isTransposed ? component.v : component.h;
+            result.v = isTransposed ? component.h : component.v;
+            result.allocate(newWidth, newHeight, newHmax, newVmax);
+            short[] dst = result.coefs;
+            int outWidth = isTransposed ? bh : bw;
+            int outHeight = isTransposed ? bw : bh;
+            for (int oy = 0; oy < outHeight; oy++) {
+               for (int ox = 0; ox < outWidth; ox++) {
+                  int sx = isTransposed ? oy : ox;
+                  int sy = isTransposed ? ox : oy;
+                  if (isMirrorX) {
+                     sx = bw - 1 - sx;
+                  }
+                  if (isMirrorY) {
+                     sy = bh - 1 - sy;
+                  }
+                  int srcOffset = ((offsetY + sy) * srcPerLine + offsetX + sx) * 64;
+                  int dstOffset = (oy * result.blocksPerLine + ox) * 64;
+                  for (int k = 0; k < 64; k++) {
+                     dst[dstOffset + k] = (short) (coefSign[k] * src[srcOffset + coefMap[k]]);
+                  }
+               }
+            }
+            component.h = result.h;
+            component.v = result.v;
+            component.blocksPerLine = result.blocksPerLine;
+            component.blocksPerColumn = result.blocksPerColumn;
+            component.blocksWidth = result.blocksWidth;
+            component.blocksHeight = result.blocksHeight;
+            component.coefs = dst;
+         }
+         width = newWidth;
+         height = newHeight;
+         hmax = newHmax;
+         vmax = newVmax;
+         return true;
+      }
+
+      private void resetOrientation() {
+         for (byte[] marker : markers) {
+            if ((marker[1] & 0xFF) == MARKER_APP1) {
+               BitmapExif.resetOrientation(marker, 4, marker.length - 4);
+            }
+         }
+      }
+
+      private byte[] encode() throws IOException {
+         ByteWriter out = new ByteWriter(Math.max(1024, width * height / 2));
+         out.writeShort(0xFF00 | MARKER_SOI);
+         for (byte[] marker : markers) {
+            out.write(marker);
+         }
+         for (int id = 0; id < 4; id++) {
+            int[] table = quantTables[id];
+            if (table != null) {
+               int precision = 0;
+               for (int value : table) {
+                  if (value > 255) {
+                     precision = 1;
+                  }
+               }
+               out.writeShort(0xFF00 | MARKER_DQT);
+               out.writeShort(3 + 64 * (precision + 1));
+               out.writeByte((precision << 4) | id);
+               for (int k = 0; k < 64; k++) {
+                  if (precision == 0) {
+                     out.writeByte(table[ZIGZAG[k]]);
+                  } else {
+                     out.writeShort(table[ZIGZAG[k]]);
+                  }
+               }
+            }
+         }
+         // Frame header
+         out.writeShort(0xFF00 | frameMarker);
+         out.writeShort(8 + components.length * 3);
+         out.writeByte(8);
+         out.writeShort(height);
+         out.writeShort(width);
+         out.writeByte(components.length);
+         for (Component component : components) {
+            out.writeByte(component.id);
+            out.writeByte((component.h << 4) | component.v);
+            out.writeByte(component.tq);
+         }
+
+         // Optimal Huffman tables
+         int blocksInMcu = 0;
+         for (Component component : components) {
+            blocksInMcu = blocksInMcu + component.h * component.v;
+         }
+         boolean isInterleaved = components.length > 1 && blocksInMcu <= MAX_BLOCKS_IN_MCU;
+         int[][] dcFreq = new int[4][257];
+         int[][] acFreq = new int[4][257];
+         encodeScans(null, isInterleaved, dcFreq, acFreq, null, null);
+         HuffmanEncoder[] dcTables = new HuffmanEncoder[4];
+         HuffmanEncoder[] acTables = new HuffmanEncoder[4];
+         for (int i = 0; i < 4; i++) {
+            if (isUsed(dcFreq[i])) {
+               dcTables[i] = new HuffmanEncoder(dcFreq[i]);
+               dcTables[i].write(out, 0, i);
+            }
+            if (isUsed(acFreq[i])) {
+               acTables[i] = new HuffmanEncoder(acFreq[i]);
+               acTables[i].write(out, 1, i);
+            }
+         }
+         encodeScans(out, isInterleaved, null, null, dcTables, acTables);
+         out.writeShort(0xFF00 | MARKER_EOI);
+         return out.toByteArray();
+      }
+
+      /**
+       * Encode all scans, or only collect symbol frequencies if out is null
+       */
+      private void encodeScans(ByteWriter out, boolean isInterleaved, int[][] dcFreq, int[][] acFreq, HuffmanEncoder[] dcTables, HuffmanEncoder[] acTables) {
+         if (isInterleaved) {
+            writeScanHeader(out, components);
+            BitWriter writer = new BitWriter(out, dcFreq, acFreq, dcTables, acTables);
+            int mcusX = (width + 8 * hmax - 1) / (8 * hmax);
+            int mcusY = (height + 8 * vmax - 1) / (8 * vmax);
+            for (Component component : components) {
+               component.pred = 0;
+            }
+            for (int mcuY = 0; mcuY < mcusY; mcuY++) {
+               for (int mcuX = 0; mcuX < mcusX; mcuX++) {
+                  for (Component component : components) {
+                     for (int y = 0; y < component.v; y++) {
+                        for (int x = 0; x < component.h; x++) {
+                           writer.encodeBlock(component, mcuY * component.v + y, mcuX * component.h + x);
+                        }
+                     }
+                  }
+               }
+            }
+            writer.flush();
+         } else {
+            for (Component component : components) {
+               writeScanHeader(out, new Component[] { component });
+               BitWriter writer = new BitWriter(out, dcFreq, acFreq, dcTables, acTables);
+               component.pred = 0;
+               for (int y = 0; y < component.blocksHeight; y++) {
+                  for (int x = 0; x < component.blocksWidth; x++) {
+                     writer.encodeBlock(component, y, x);
+                  }
+               }
+               writer.flush();
+            }
+         }
+      }
+
+      private static void writeScanHeader(ByteWriter out, Component[] scan) {
+         if (out == null) {
+            return;
+         }
+         out.writeShort(0xFF00 | MARKER_SOS);
+         out.writeShort(6 + scan.length * 2);
+         out.writeByte(scan.length);
+         for (Component component : scan) {
+            out.writeByte(component.id);
+            out.writeByte((component.td << 4) | component.ta);
+         }
+         out.writeByte(0);
+         out.writeByte(63);
+         out.writeByte(0);
+      }
+
+      private static boolean isUsed(int[] freq) {
+         for (int value : freq) {
+            if (value > 0) {
+               return true;
+            }
+         }
+         return false;
+      }
+
+   }
+
+   /**
+    * Huffman table for decoding with 8 bit lookahead
+    */
+   private static final class HuffmanDecoder {
+
+      private final int   count;
+      private final int[] lookup  = new int[256];
+      private final int[] maxCode = new int[18];
+      private final int[] valPtr  = new int[17];
+      private final int[] minCode = new int[17];
+      private final int[] values;
+
+      private HuffmanDecoder(byte[] data, int pos) throws IOException {
+         int[] bits = new int[17];
+         int total = 0;
+         for (int i = 1; i <= 16; i++) {
+            bits[i] = data[pos + i - 1] & 0xFF;
+            total = total + bits[i];
+         }
+         if (total > 256 || pos + 16 + total > data.length) {
+            throw new IOException("Wrong Huffman table");
+         }
+         count = total;
+         values = new int[total];
+         for (int i = 0; i < total; i++) {
+            values[i] = data[pos + 16 + i] & 0xFF;
+         }
+         int code = 0;
+         int index = 0;
+         for (int length = 1; length <= 16; length++) {
+            valPtr[length] = index;
+            minCode[length] = code;
+            for (int i = 0; i < bits[length]; i++) {
+               if (length <= 8) {
+                  int shift = 8 - length;
+                  int first = code << shift;
+                  for (int j = 0; j < (1 << shift); j++) {
+                     lookup[first + j] = (length << 8) | values[index];
+                  }
+               }
+               code++;
+               index++;
+            }
+            maxCode[length] = bits[length] > 0 ? code - 1 : -1;
+            code = code << 1;
+         }
+         maxCode[17] = Integer.MAX_VALUE;
+      }
+
+      private int decode(BitReader reader) throws IOException {
+         int peek = reader.peekBits(8);
+         int entry = lookup[peek];
+         if (entry != 0) {
+            reader.skipBits(entry >> 8);
+            return entry & 0xFF;
+         }
+         int code = reader.readBits(8);
+         for (int length = 9; length <= 16; length++) {
+            code = (code << 1) | reader.readBits(1);
+            if (maxCode[length] >= 0 && code <= maxCode[length]) {
+               return values[valPtr[length] + code - minCode[length]];
+            }
+         }
+         throw new IOException("Wrong Huffman code");
+      }
+
+   }
+
+   /**
+    * Optimal Huffman table built from symbol frequencies, see JPEG standard Annex K.2
+    */
+   private static final class HuffmanEncoder {
+
+      private final int[] bits   = new int[17];
+      private final int[] values;
+      private final int[] codes  = new int[256];
+      private final int[] sizes  = new int[256];
+
+      private HuffmanEncoder(int[] frequencies) {
+         int[] freq = new int[257];
+         System.arraycopy(frequencies, 0, freq, 0, 256);
+         freq[256] = 1; // Reserved code, so no code consists of all ones
+         int[] codeSize = new int[257];
+         int[] others = new int[257];
+         for (int i = 0; i < 257; i++) {
+            others[i] = -1;
+         }
+         while (true) {
+            int c1 = -1;
+            long v = Long.MAX_VALUE;
+            for (int i = 0; i <= 256; i++) {
+               if (freq[i] != 0 && freq[i] <= v) {
+                  v = freq[i];
+                  c1 = i;
+               }
+            }
+            int c2 = -1;
+            v = Long.MAX_VALUE;
+            for (int i = 0; i <= 256; i++) {
+               if (freq[i] != 0 && freq[i] <= v && i != c1) {
+                  v = freq[i];
+                  c2 = i;
+               }
+            }
+            if (c2 < 0) {
+               break;
+            }
+            freq[c1] = freq[c1] + freq[c2];
+            freq[c2] = 0;
+            codeSize[c1]++;
+            while (others[c1] >= 0) {
+               c1 = others[c1];
+               codeSize[c1]++;
+            }
+            others[c1] = c2;
+            codeSize[c2]++;
+            while (others[c2] >= 0) {
+               c2 = others[c2];
+               codeSize[c2]++;
+            }
+         }
+         int[] counts = new int[33];
+         for (int i = 0; i <= 256; i++) {
+            if (codeSize[i] > 0) {
+               counts[Math.min(codeSize[i], 32)]++;
+            }
+         }
+         // Limit code length to 16 bits
+         for (int i = 32; i > 16; i--) {
+            while (counts[i] > 0) {
+               int j = i - 2;
+               while (counts[j] == 0) {
+                  j--;
+               }
+               counts[i] = counts[i] - 2;
+               counts[i - 1]++;
+               counts[j + 1] = counts[j + 1] + 2;
+               counts[j]--;
+            }
+         }
+         int i = 16;
+         while (counts[i] == 0) {
+            i--;
+         }
+         counts[i]--; // Remove the reserved code
+         System.arraycopy(counts, 0, bits, 0, 17);
+
+         List<Integer> list = new ArrayList<Integer>();
+         for (int length = 1; length <= 32; length++) {
+            for (int symbol = 0; symbol < 256; symbol++) {
+               if (codeSize[symbol] == length) {
+                  list.add(symbol);
+               }
+            }
+         }
+         values = new int[list.size()];
+         for (int k = 0; k < values.length; k++) {
+            values[k] = list.get(k);
+         }
+         int code = 0;
+         int index = 0;
+         for (int length = 1; length <= 16; length++) {
+            for (int k = 0; k < bits[length]; k++) {
+               codes[values[index]] = code;
+               sizes[values[index]] = length;
+               index++;
+               code++;
+            }
+            code = code << 1;
+         }
+      }
+
+      private void write(ByteWriter out, int tableClass, int id) {
+         out.writeShort(0xFF00 | MARKER_DHT);
+         out.writeShort(2 + 17 + values.length);
+         out.writeByte((tableClass << 4) | id);
+         for (int i = 1; i <= 16; i++) {
+            out.writeByte(bits[i]);
+         }
+         for (int value : values) {
+            out.writeByte(value);
+         }
+      }
+
+   }
+
+   private static final class BitReader {
+
+      private final byte[] data;
+      private final int    end;
+      private int          pos;
+      private int          buffer;
+      private int          count;
+      private boolean      isMarker;
+
+      private BitReader(byte[] data, int pos) {
+         this.data = data;
+         this.pos = pos;
+         this.end = data.length;
+      }
+
+      private void fill(int bits) {
+         while (count < bits) {
+            int b = 0;
+            if (!isMarker && pos < end) {
+               b = data[pos] & 0xFF;
+               if (b == 0xFF) {
+                  int next = pos + 1 < end ? data[pos + 1] & 0xFF : 0xD9;
+                  if (next == 0) {
+                     pos = pos + 2;
+                  } else {
+                     isMarker = true;
+                     b = 0;
+                  }
+               } else {
+                  pos++;
+               }
+            }
+            buffer = (buffer << 8) | b;
+            count = count + 8;
+         }
+      }
+
+      private int peekBits(int bits) {
+         fill(bits);
+         return (buffer >>> (count - bits)) & ((1 << bits) - 1);
+      }
+
+      private void skipBits(int bits) {
+         count = count - bits;
+      }
+
+      private int readBits(int bits) {
+         int value = peekBits(bits);
+         count = count - bits;
+         return value;
+      }
+
+      private void restart() throws IOException {
+         count = 0;
+         buffer = 0;
+         int marker = findMarker();
+         if (marker + 1 >= end || (data[marker + 1] & 0xFF) < 0xD0 || (data[marker + 1] & 0xFF) > 0xD7) {
+            throw new IOException("Restart marker is expected");
+         }
+         pos = marker + 2;
+         isMarker = false;
+      }
+
+      /**
+       * Return position of the next marker (0xFF followed by not zero)
+       */
+      private int findMarker() {
+         int p = pos;
+         while (p + 1 < end) {
+            if ((data[p] & 0xFF) == 0xFF && (data[p + 1] & 0xFF) != 0 && (data[p + 1] & 0xFF) != 0xFF) {
+               return p;
+            }
+            p++;
+         }
+         return end;
+      }
+
+   }
+
+   private static final class BitWriter {
+
+      private final ByteWriter       out;
+      private final int[][]          dcFreq;
+      private final int[][]          acFreq;
+      private final HuffmanEncoder[] dcTables;
+      private final HuffmanEncoder[] acTables;
+      private int                    buffer;
+      private int                    count;
+
+      private BitWriter(ByteWriter out, int[][] dcFreq, int[][] acFreq, HuffmanEncoder[] dcTables, HuffmanEncoder[] acTables) {
+         this.out = out;
+         this.dcFreq = dcFreq;
+         this.acFreq = acFreq;
+         this.dcTables = dcTables;
+         this.acTables = acTables;
+      }
+
+      private void encodeBlock(Component component, int row, int column) {
+         short[] coefs = component.coefs;
+         int offset = (row * component.blocksPerLine + column) * 64;
+         int dc = coefs[offset];
+         int diff = dc - component.pred;
+         component.pred = dc;
+         int size = bitsCount(diff);
+         writeSymbol(false, component.td, size);
+         if (size > 0) {
+            writeValue(diff, size);
+         }
+         int run = 0;
+         for (int k = 1; k < 64; k++) {
+            int value = coefs[offset + ZIGZAG[k]];
+            if (value == 0) {
+               run++;
+               continue;
+            }
+            while (run > 15) {
+               writeSymbol(true, component.ta, 0xF0);
+               run = run - 16;
+            }
+            size = bitsCount(value);
+            writeSymbol(true, component.ta, (run << 4) | size);
+            writeValue(value, size);
+            run = 0;
+         }
+         if (run > 0) {
+            writeSymbol(true, component.ta, 0);
+         }
+      }
+
+      private void writeSymbol(boolean isAc, int table, int symbol) {
+         if (out == null) {
+            (isAc ? acFreq : dcFreq)[table][symbol]++;
+            return;
+         }
+         HuffmanEncoder encoder = isAc ? acTables[table] : dcTables[table];
+         writeBits(encoder.codes[symbol], encoder.sizes[symbol]);
+      }
+
+      private void writeValue(int value, int size) {
+         if (out == null) {
+            return;
+         }
+         if (value < 0) {
+            value = value - 1;
+         }
+         writeBits(value & ((1 << size) - 1), size);
+      }
+
+      private void writeBits(int bits, int size) {
+         buffer = (buffer << size) | bits;
+         count = count + size;
+         while (count >= 8) {
+            int b = (buffer >> (count - 8)) & 0xFF;
+            out.writeByte(b);
+            if (b == 0xFF) {
+               out.writeByte(0); // Byte stuffing
+            }
+            count = count - 8;
+         }
+      }
+
+      private void flush() {
+         if (out != null && count > 0) {
+            writeBits((1 << (8 - count)) - 1, 8 - count);
+         }
+         buffer = 0;
+         count = 0;
+      }
+
+   }
+
+   private static final class ByteWriter {
+
+      private byte[] data;
+      private int    size;
+
+      private ByteWriter(int capacity) {
+         data = new byte[capacity];
+      }
+
+      private void ensure(int count) {
+         if (size + count > data.length) {
+            byte[] bigger = new byte[Math.max(data.length * 2, size + count)];
+            System.arraycopy(data, 0, bigger, 0, size);
+            data = bigger;
+         }
+      }
+
+      private void writeByte(int value) {
+         ensure(1);
+         data[size++] = (byte) value;
+      }
+
+      private void writeShort(int value) {
+         writeByte(value >> 8);
+         writeByte(value);
+      }
+
+      private void write(byte[] bytes) {
+         ensure(bytes.length);
+         System.arraycopy(bytes, 0, data, size, bytes.length);
+         size = size + bytes.length;
+      }
+
+      private byte[] toByteArray() {
+         byte[] result = new byte[size];
+         System.arraycopy(data, 0, result, 0, size);
+         return result;
+      }
+
+   }
+
+   // ************************* Private methods ******************************
+
+   private static int readShort(byte[] data, int pos) {
+      return ((data[pos] & 0xFF) << 8) | (data[pos + 1] & 0xFF);
+   }
+
+   private static byte[] copy(byte[] data, int from, int to) {
+      byte[] result = new byte[to - from];
+      System.arraycopy(data, from, result, 0, result.length);
+      return result;
+   }
+
+   private static int extend(int value, int size) {
+      return value < (1 << (size - 1)) ? value - (1 << size) + 1 : value;
+   }
+
+   private static int bitsCount(int value) {
+      if (value < 0) {
+         value = -value;
+      }
+      int size = 0;
+      while (value != 0) {
+         size++;
+         value = value >> 1;
+      }
+      return size;
+   }
+
+}
@@ -0,0 +1,206 @@
+/*******************************************************************************
+ * Copyright (c) 2014 Alexandr Tsvetkov.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the The BSD 3-Clause License
+ * which accompanies this distribution, and is available at
+ * http://opensource.org/licenses/BSD-3-Clause
+ *
+ * Contributors:
+ *     Alexandr Tsvetkov - initial API and implementation
+ *
+ * Project:
+ *     TAO Bitmap Utils
+ *
+ * File name:
+ *     BitmapMaskCompositor.java
+ *
+ * License agreement:
+ *
+ * 1. This code is published AS IS. Author is not responsible for any damage that can be
+ *    caused by any application that uses this code.
+ * 2. Author does not give a garantee, that this code is error free.
+ * 3. This code can be used in NON-COMMERCIAL applications AS IS without any special
+ *    permission from author.
+ * 4. This code can be modified without any special permission from author IF AND ONLY IF
+ *    this license agreement will remain unchanged.
+ * 5. SPECIAL PERMISSION for this code usage in COMMERCIAL application SHOULD be obtained
+ *    from author.
+ ******************************************************************************/
+package ua.at.tsvetkov.bitmap;
+
+import java.util.List;
+
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.Paint;
+import android.graphics.PorterDuff;
+import android.graphics.PorterDuffXfermode;
+import android.graphics.Rect;
+import android.os.Build;
+
+/**
+ * Applies the same mask to many bitmaps, for example a circle to avatars. The mask is scaled to the target size and converted to ALPHA_8
+ * only once. Every thread keeps its own canvas and paints, and the output bitmaps are taken from the {@link BitmapPool}, so compositing
+ * does not allocate memory. Source bitmaps are scaled to fill the target size (center crop).
+ *
+ * @author A.Tsvetkov 2014 http://tsvetkov.at.ua mailto:al@ukr.net
+ */
+public class BitmapMaskCompositor {
+
+   private final int                width;
+   private final int                height;
+   private final BitmapPool         pool;
+   private final ThreadLocal<State> states = new ThreadLocal<State>();
+   private volatile Bitmap          mask;
+
+   /**
+    * Per thread drawing objects
+    */
+   private static final class State {
+
+      private Canvas       canvas      = new Canvas();
+      private final Paint  sourcePaint = new Paint(Paint.FILTER_BITMAP_FLAG);
+      private final Paint  maskPaint   = new Paint(Paint.FILTER_BITMAP_FLAG);
+      private final Rect   src         = new Rect();
+      private final Rect   dst         = new Rect();
+
+      private State() {
+         maskPaint.setXfermode(new PorterDuffXfermode(PorterDuff.Mode.DST_IN));
+      }
+
+   }
+
+   /**
+    * Prepare the mask of given size. Only the alpha channel of the mask is used.
+    *
+    * @param mask
+    * @param width
+    * @param height
+    * @param pool pool of output bitmaps or null for the shared pool
+    */
+   public BitmapMaskCompositor(Bitmap mask, int width, int height, BitmapPool pool) {
+      if (width <= 0 || height <= 0) {
+         throw new IllegalArgumentException("Wrong bitmap size parameters.");
+      }
+      this.width = width;
+      this.height = height;
+      this.pool = pool != null ? pool : BitmapPool.getInstance();
+      Bitmap scaled = mask;
+      if (mask.getWidth() != width || mask.getHeight() != height) {
+         scaled = Bitmap.createScaledBitmap(mask, width, height, true);
+      }
+      if (scaled.getConfig() == Bitmap.Config.ALPHA_8) {
+         this.mask = scaled != mask ? scaled : mask.copy(Bitmap.Config.ALPHA_8, false);
+      } else {
+         this.mask = scaled.extractAlpha();
+         if (scaled != mask) {
+            scaled.recycle();
+         }
+      }
+   }
+
+   /**
+    * Prepare the mask of its own size.
+    *
+    * @param mask
+    */
+   public BitmapMaskCompositor(Bitmap mask) {
+      this(mask, mask.getWidth(), mask.getHeight(), null);
+   }
+
+   /**
+    * Composite the source with the mask into an ARGB_8888 bitmap from the pool. Put the result back to the pool when it is not needed.
+    *
+    * @param source
+    * @return shaped bitmap
+    */
+   public Bitmap composite(Bitmap source) {
+      Bitmap output = pool.getDirty(width, height, Bitmap.Config.ARGB_8888);
+      composite(source, output);
+      return output;
+   }
+
+   /**
+    * Composite the source with the mask into given mutable bitmap of the mask size.
+    *
+    * @param source
+    * @param output
+    */
+   public void composite(Bitmap source, Bitmap output) {
+      Bitmap mask = this.mask;
+      if (mask == null) {
+         throw new IllegalStateException("Compositor is released");
+      }
+      State state = states.get();
+      if (state == null) {
+         state = new State();
+         states.set(state);
+      }
+      Canvas canvas = state.canvas;
+      canvas.setBitmap(output);
+      try {
+         canvas.drawColor(Color.TRANSPARENT, PorterDuff.Mode.CLEAR);
+         // Center crop of the source
+         int sw = source.getWidth();
+         int sh = source.getHeight();
+         if ((long) sw * height > (long) sh * width) {
+            int cw = (int) ((long) sh * width / height);
+            state.src.set((sw - cw) / 2, 0, (sw - cw) / 2 + cw, sh);
+         } else {
+            int ch = (int) ((long) sw * height / width);
+            state.src.set(0, (sh - ch) / 2, sw, (sh - ch) / 2 + ch);
+         }
+         state.dst.set(0, 0, width, height);
+         canvas.drawBitmap(source, state.src, state.dst, state.sourcePaint);
+         canvas.drawBitmap(mask, 0, 0, state.maskPaint);
+      } finally {
+         // The per thread canvas must not keep the output alive. Null bitmap is supported since Honeycomb.
+         if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB) {
+            canvas.setBitmap(null);
+         } else {
+            state.canvas = new Canvas();
+         }
+      }
+   }
+
+   /**
+    * Composite all sources in parallel on the {@link BitmapWorkers} pool.
+    *
+    * @param sources
+    * @return shaped bitmaps in the order of sources
+    */
+   public Bitmap[] compositeAll(final List<Bitmap> sources) {
+      final Bitmap[] result = new Bitmap[sources.size()];
+      BitmapWorkers.runBands(sources.size(), 1, new BitmapWorkers.Band() {
+
+         @Override
+         public void run(int from, int to) {
+            for (int i = from; i < to; i++) {
+               result[i] = composite(sources.get(i));
+            }
+         }
+      });
+      return result;
+   }
+
+   public int getWidth() {
+      return width;
+   }
+
+   public int getHeight() {
+      return height;
+   }
+
+   /**
+    * Recycle the prepared mask
+    */
+   public void release() {
+      Bitmap mask = this.mask;
+      this.mask = null;
+      if (mask != null) {
+         mask.recycle();
+      }
+   }
+
+}
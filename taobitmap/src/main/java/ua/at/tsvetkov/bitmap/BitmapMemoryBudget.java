@@ -0,0 +1,343 @@
+/*******************************************************************************
+ * Copyright (c) 2014 Alexandr Tsvetkov.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the The BSD 3-Clause License
+ * which accompanies this distribution, and is available at
+ * http://opensource.org/licenses/BSD-3-Clause
+ *
+ * Contributors:
+ *     Alexandr Tsvetkov - initial API and implementation
+ *
+ * Project:
+ *     TAO Bitmap Utils
+ *
+ * File name:
+ *     BitmapMemoryBudget.java
+ *
+ * License agreement:
+ *
+ * 1. This code is published AS IS. Author is not responsible for any damage that can be
+ *    caused by any application that uses this code.
+ * 2. Author does not give a garantee, that this code is error free.
+ * 3. This code can be used in NON-COMMERCIAL applications AS IS without any special
+ *    permission from author.
+ * 4. This code can be modified without any special permission from author IF AND ONLY IF
+ *    this license agreement will remain unchanged.
+ * 5. SPECIAL PERMISSION for this code usage in COMMERCIAL application SHOULD be obtained
+ *    from author.
+ ******************************************************************************/
+package ua.at.tsvetkov.bitmap;
+
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+import android.content.ComponentCallbacks2;
+import android.content.Context;
+import android.content.res.Configuration;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.os.Build;
+
+/**
+ * Global memory budget for bitmaps. Tracks the bytes of outstanding decodes and of the registered memory caches. When the budget is tight
+ * the decode options are adapted (bigger inSampleSize, RGB_565 for opaque images) and new decodes wait until other decodes are finished.
+ * Trim-memory signals shrink the registered caches. Caches are held weakly, so the budget does not keep a discarded cache alive.
+ *
+ * @author A.Tsvetkov 2014 http://tsvetkov.at.ua mailto:al@ukr.net
+ */
+public class BitmapMemoryBudget {
+
+   private static final long                 DEFAULT_WAIT_TIMEOUT = 2000;
+   private static final int                  MAX_SAMPLE_SIZE      = 64;
+
+   private static BitmapMemoryBudget         instance             = null;
+
+   private final List<WeakReference<Cache>>  caches               = new ArrayList<WeakReference<Cache>>();
+   private long                              maxBytes;
+   private long                              decodeBytes          = 0;
+   private long                              waitTimeout          = DEFAULT_WAIT_TIMEOUT;
+   private boolean                           isRegistered         = false;
+
+   /**
+    * Memory cache which is accounted in the budget.
+    */
+   public interface Cache {
+
+      /**
+       * @return current size of the cache in bytes
+       */
+      long getSizeBytes();
+
+      /**
+       * Shrink the cache to given part of its maximum size
+       *
+       * @param fraction from 0 (clear all) to 1 (no changes)
+       */
+      void trimToFraction(float fraction);
+
+   }
+
+   private BitmapMemoryBudget(long maxBytes) {
+      this.maxBytes = maxBytes;
+   }
+
+   /**
+    * Return the global budget. By default the budget is a half of the maximum heap size.
+    *
+    * @return
+    */
+   public static synchronized BitmapMemoryBudget getInstance() {
+      if (instance == null) {
+         instance = new BitmapMemoryBudget(Runtime.getRuntime().maxMemory() / 2);
+      }
+      return instance;
+   }
+
+   /**
+    * Register trim-memory callbacks. Need only once per application.
+    *
+    * @param context
+    */
+   public synchronized void register(Context context) {
+      if (isRegistered) {
+         return;
+      }
+      isRegistered = true;
+      if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.ICE_CREAM_SANDWICH) {
+         context.getApplicationContext().registerComponentCallbacks(new ComponentCallbacks2() {
+
+            @Override
+            public void onTrimMemory(int level) {
+               BitmapMemoryBudget.this.onTrimMemory(level);
+            }
+
+            @Override
+            public void onLowMemory() {
+               BitmapMemoryBudget.this.onTrimMemory(ComponentCallbacks2.TRIM_MEMORY_COMPLETE);
+            }
+
+            @Override
+            public void onConfigurationChanged(Configuration newConfig) {
+               // Nothing to do
+            }
+         });
+      }
+   }
+
+   /**
+    * Set the maximum bytes for decodes and memory caches
+    *
+    * @param maxBytes
+    */
+   public synchronized void setMaxBytes(long maxBytes) {
+      if (maxBytes <= 0) {
+         throw new IllegalArgumentException("Wrong budget size.");
+      }
+      this.maxBytes = maxBytes;
+      notifyAll();
+   }
+
+   /**
+    * Set how long the decode waits for the budget before it is started anyway.
+    *
+    * @param waitTimeout milliseconds
+    */
+   public synchronized void setWaitTimeout(long waitTimeout) {
+      this.waitTimeout = waitTimeout;
+   }
+
+   /**
+    * Add the memory cache to the budget
+    *
+    * @param cache
+    */
+   public synchronized void addCache(Cache cache) {
+      caches.add(new WeakReference<Cache>(cache));
+   }
+
+   /**
+    * Remove the memory cache from the budget
+    *
+    * @param cache
+    */
+   public synchronized void removeCache(Cache cache) {
+      for (Iterator<WeakReference<Cache>> iterator = caches.iterator(); iterator.hasNext();) {
+         Cache item = iterator.next().get();
+         if (item == null || item == cache) {
+            iterator.remove();
+         }
+      }
+   }
+
+   /**
+    * Return free bytes of the budget, also limited by the free heap memory.
+    *
+    * @return
+    */
+   public synchronized long getAvailableBytes() {
+      long cachesBytes = 0;
+      for (Cache cache : getCaches()) {
+         cachesBytes = cachesBytes + cache.getSizeBytes();
+      }
+      Runtime runtime = Runtime.getRuntime();
+      long freeHeap = runtime.maxMemory() - (runtime.totalMemory() - runtime.freeMemory());
+      return Math.min(maxBytes - decodeBytes - cachesBytes, freeHeap);
+   }
+
+   /**
+    * Adapt decode options to the budget. Options must contain the image bounds (outWidth and outHeight) and calculated inSampleSize. If
+    * the decoded bitmap does not fit, RGB_565 is chosen for JPEG images (they have no alpha) and then inSampleSize is increased. Given
+    * options are not changed, the adapted copy is returned, use {@link #estimateBytes(BitmapFactory.Options)} for its size. The bitmap for
+    * reuse (inBitmap) is dropped if the sample size or config is changed, it must match the decoded bitmap.
+    *
+    * @param source
+    * @return adapted copy of the options
+    */
+   public BitmapFactory.Options adjustOptions(BitmapFactory.Options source) {
+      BitmapFactory.Options options = copyOptions(source);
+      if (options.inSampleSize < 1) {
+         options.inSampleSize = 1;
+      }
+      long available = getAvailableBytes();
+      long bytes = estimateBytes(options);
+      if (bytes <= available) {
+         return options;
+      }
+      if ((options.inPreferredConfig == null || options.inPreferredConfig == Bitmap.Config.ARGB_8888) && "image/jpeg".equals(options.outMimeType)) {
+         options.inPreferredConfig = Bitmap.Config.RGB_565;
+         bytes = estimateBytes(options);
+      }
+      while (bytes > available && options.inSampleSize < MAX_SAMPLE_SIZE) {
+         options.inSampleSize *= 2;
+         bytes = estimateBytes(options);
+      }
+      boolean isChanged = options.inSampleSize != Math.max(1, source.inSampleSize) || options.inPreferredConfig != source.inPreferredConfig;
+      if (isChanged && Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB) {
+         options.inBitmap = null;
+      }
+      return options;
+   }
+
+   /**
+    * Reserve bytes for the decode. Waits while the budget is exhausted by other decodes, but not longer than wait timeout. Every reserve
+    * must be followed by {@link #release(long)}.
+    *
+    * @param bytes
+    */
+   public synchronized void reserve(long bytes) {
+      long deadline = System.currentTimeMillis() + waitTimeout;
+      while (decodeBytes > 0 && bytes > getAvailableBytes()) {
+         long wait = deadline - System.currentTimeMillis();
+         if (wait <= 0) {
+            break;
+         }
+         try {
+            wait(wait);
+         } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            break;
+         }
+      }
+      decodeBytes = decodeBytes + bytes;
+   }
+
+   /**
+    * Release the bytes reserved with {@link #reserve(long)}
+    *
+    * @param bytes
+    */
+   public synchronized void release(long bytes) {
+      decodeBytes = Math.max(0, decodeBytes - bytes);
+      notifyAll();
+   }
+
+   /**
+    * Shrink registered caches according to the trim-memory level, see {@link ComponentCallbacks2}
+    *
+    * @param level
+    */
+   public void onTrimMemory(int level) {
+      float fraction;
+      if (level >= ComponentCallbacks2.TRIM_MEMORY_COMPLETE) {
+         fraction = 0;
+      } else if (level >= ComponentCallbacks2.TRIM_MEMORY_MODERATE) {
+         fraction = 0.25f;
+      } else if (level >= ComponentCallbacks2.TRIM_MEMORY_UI_HIDDEN) {
+         fraction = 0.5f;
+      } else if (level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_CRITICAL) {
+         fraction = 0.25f;
+      } else if (level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW) {
+         fraction = 0.5f;
+      } else {
+         fraction = 0.75f;
+      }
+      List<Cache> list;
+      synchronized (this) {
+         list = getCaches();
+      }
+      for (Cache cache : list) {
+         cache.trimToFraction(fraction);
+      }
+      synchronized (this) {
+         notifyAll();
+      }
+   }
+
+   private List<Cache> getCaches() {
+      List<Cache> list = new ArrayList<Cache>(caches.size());
+      for (Iterator<WeakReference<Cache>> iterator = caches.iterator(); iterator.hasNext();) {
+         Cache cache = iterator.next().get();
+         if (cache == null) {
+            iterator.remove();
+         } else {
+            list.add(cache);
+         }
+      }
+      return list;
+   }
+
+   /**
+    * Copy decode settings and bounds of the options
+    */
+   static BitmapFactory.Options copyOptions(BitmapFactory.Options source) {
+      BitmapFactory.Options options = new BitmapFactory.Options();
+      options.inJustDecodeBounds = source.inJustDecodeBounds;
+      options.inSampleSize = source.inSampleSize;
+      options.inPreferredConfig = source.inPreferredConfig;
+      options.inDither = source.inDither;
+      options.inScaled = source.inScaled;
+      options.inDensity = source.inDensity;
+      options.inTargetDensity = source.inTargetDensity;
+      options.inScreenDensity = source.inScreenDensity;
+      options.inPurgeable = source.inPurgeable;
+      options.inInputShareable = source.inInputShareable;
+      options.inTempStorage = source.inTempStorage;
+      options.outWidth = source.outWidth;
+      options.outHeight = source.outHeight;
+      options.outMimeType = source.outMimeType;
+      if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB) {
+         options.inMutable = source.inMutable;
+         options.inBitmap = source.inBitmap;
+      }
+      if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT) {
+         options.inPremultiplied = source.inPremultiplied;
+      }
+      return options;
+   }
+
+   /**
+    * Estimate bytes of the bitmap decoded with given options
+    *
+    * @param options
+    * @return
+    */
+   public static long estimateBytes(BitmapFactory.Options options) {
+      int sampleSize = options.inSampleSize < 1 ? 1 : options.inSampleSize;
+      long width = (options.outWidth + sampleSize - 1) / sampleSize;
+      long height = (options.outHeight + sampleSize - 1) / sampleSize;
+      return width * height * BitmapData.getBytesPerPixel(options.inPreferredConfig);
+   }
+
+}
@@ -0,0 +1,175 @@
+/*******************************************************************************
+ * Copyright (c) 2014 Alexandr Tsvetkov.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the The BSD 3-Clause License
+ * which accompanies this distribution, and is available at
+ * http://opensource.org/licenses/BSD-3-Clause
+ *
+ * Contributors:
+ *     Alexandr Tsvetkov - initial API and implementation
+ *
+ * Project:
+ *     TAO Bitmap Utils
+ *
+ * File name:
+ *     BitmapMemoryCache.java
+ *
+ * License agreement:
+ *
+ * 1. This code is published AS IS. Author is not responsible for any damage that can be
+ *    caused by any application that uses this code.
+ * 2. Author does not give a garantee, that this code is error free.
+ * 3. This code can be used in NON-COMMERCIAL applications AS IS without any special
+ *    permission from author.
+ * 4. This code can be modified without any special permission from author IF AND ONLY IF
+ *    this license agreement will remain unchanged.
+ * 5. SPECIAL PERMISSION for this code usage in COMMERCIAL application SHOULD be obtained
+ *    from author.
+ ******************************************************************************/
+package ua.at.tsvetkov.bitmap;
+
+import android.graphics.Bitmap;
+import android.support.v4.util.LruCache;
+
+/**
+ * LRU memory cache for decoded bitmaps, bounded in bytes. The cache is accounted in the {@link BitmapMemoryBudget} and is shrinked on
+ * trim-memory signals. The cache holds one reference of every cached {@link BitmapHandle} and releases it on removal, so a pooled bitmap
+ * may be shared with the cache without copying.
+ *
+ * @author A.Tsvetkov 2014 http://tsvetkov.at.ua mailto:al@ukr.net
+ */
+public class BitmapMemoryCache implements BitmapMemoryBudget.Cache {
+
+   private final int                            maxBytes;
+   private final LruCache<String, BitmapHandle> cache;
+
+   /**
+    * Create the cache and add it to the global {@link BitmapMemoryBudget}
+    *
+    * @param maxBytes
+    */
+   public BitmapMemoryCache(int maxBytes) {
+      if (maxBytes <= 0) {
+         throw new IllegalArgumentException("Wrong cache size.");
+      }
+      this.maxBytes = maxBytes;
+      cache = new LruCache<String, BitmapHandle>(maxBytes) {
+
+         @Override
+         protected int sizeOf(String key, BitmapHandle handle) {
+            return BitmapData.getBitmapBytes(handle.get());
+         }
+
+         @Override
+         protected void entryRemoved(boolean evicted, String key, BitmapHandle oldValue, BitmapHandle newValue) {
+            oldValue.release();
+         }
+
+      };
+      BitmapMemoryBudget.getInstance().addCache(this);
+   }
+
+   /**
+    * Create the cache with 1/8 of the maximum heap size
+    */
+   public BitmapMemoryCache() {
+      this((int) (Runtime.getRuntime().maxMemory() / 8));
+   }
+
+   /**
+    * Return cached bitmap which was put with {@link #put(String, Bitmap)}, or null. Bitmaps put as handles go back to the pool after
+    * eviction, so they are never returned without a reference, use {@link #acquire(String)} for them.
+    *
+    * @param key
+    * @return
+    */
+   public Bitmap get(String key) {
+      BitmapHandle handle = acquire(key);
+      if (handle == null) {
+         return null;
+      }
+      Bitmap bitmap = handle.isOwner() ? null : handle.get();
+      handle.release();
+      return bitmap;
+   }
+
+   /**
+    * Return the handle of cached bitmap with a new reference held by the caller, or null
+    *
+    * @param key
+    * @return
+    */
+   public BitmapHandle acquire(String key) {
+      BitmapHandle handle = cache.get(key);
+      if (handle == null) {
+         return null;
+      }
+      try {
+         return handle.acquire();
+      } catch (IllegalStateException e) {
+         // Evicted and released by another thread
+         return null;
+      }
+   }
+
+   /**
+    * Put bitmap to the cache. The bitmap stays owned by the caller and is never recycled by the cache.
+    *
+    * @param key
+    * @param bitmap
+    */
+   public void put(String key, Bitmap bitmap) {
+      if (key == null || bitmap == null) {
+         return;
+      }
+      cache.put(key, BitmapHandle.wrap(bitmap));
+   }
+
+   /**
+    * Put the handle to the cache. The cache acquires its own reference, the reference of the caller is not released.
+    *
+    * @param key
+    * @param handle
+    */
+   public void put(String key, BitmapHandle handle) {
+      if (key == null || handle == null) {
+         return;
+      }
+      cache.put(key, handle.acquire());
+   }
+
+   /**
+    * Remove bitmap from the cache. The reference of the cache is handed to the caller, so a pooled bitmap is not reused until the caller
+    * releases the handle.
+    *
+    * @param key
+    * @return handle of removed bitmap with the reference held by the caller, or null
+    */
+   public BitmapHandle remove(String key) {
+      BitmapHandle handle = acquire(key);
+      cache.remove(key);
+      return handle;
+   }
+
+   /**
+    * Remove all bitmaps from the cache
+    */
+   public void clear() {
+      cache.evictAll();
+   }
+
+   @Override
+   public long getSizeBytes() {
+      return cache.size();
+   }
+
+   @Override
+   public void trimToFraction(float fraction) {
+      if (fraction <= 0) {
+         cache.evictAll();
+      } else if (fraction < 1) {
+         cache.trimToSize((int) (maxBytes * fraction));
+      }
+   }
+
+}
@@ -0,0 +1,94 @@
+/*******************************************************************************
+ * Copyright (c) 2014 Alexandr Tsvetkov.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the The BSD 3-Clause License
+ * which accompanies this distribution, and is available at
+ * http://opensource.org/licenses/BSD-3-Clause
+ *
+ * Contributors:
+ *     Alexandr Tsvetkov - initial API and implementation
+ *
+ * Project:
+ *     TAO Bitmap Utils
+ *
+ * File name:
+ *     BitmapOutput.java
+ *
+ * License agreement:
+ *
+ * 1. This code is published AS IS. Author is not responsible for any damage that can be
+ *    caused by any application that uses this code.
+ * 2. Author does not give a garantee, that this code is error free.
+ * 3. This code can be used in NON-COMMERCIAL applications AS IS without any special
+ *    permission from author.
+ * 4. This code can be modified without any special permission from author IF AND ONLY IF
+ *    this license agreement will remain unchanged.
+ * 5. SPECIAL PERMISSION for this code usage in COMMERCIAL application SHOULD be obtained
+ *    from author.
+ ******************************************************************************/
+package ua.at.tsvetkov.bitmap;
+
+import android.graphics.Bitmap;
+
+/**
+ * Output spec for {@link BitmapIO#resizeAndSaveTo(String, java.util.List)}. The image is resized to the nearest size which fits in the
+ * requested width and height and saved with given format. PNG is used by default.
+ *
+ * @author A.Tsvetkov 2014 http://tsvetkov.at.ua mailto:al@ukr.net
+ */
+public class BitmapOutput {
+
+   private final String          fileName;
+   private final float           reqWidth;
+   private final float           reqHeight;
+   private Bitmap.CompressFormat format  = Bitmap.CompressFormat.PNG;
+   private int                   quality = 100;
+
+   /**
+    * @param fileName destination file
+    * @param reqWidth
+    * @param reqHeight
+    */
+   public BitmapOutput(String fileName, float reqWidth, float reqHeight) {
+      if (reqWidth <= 0 || reqHeight <= 0) {
+         throw new IllegalArgumentException("Wrong bitmap size parameters.");
+      }
+      this.fileName = fileName;
+      this.reqWidth = reqWidth;
+      this.reqHeight = reqHeight;
+   }
+
+   /**
+    * Set compress format and quality, see {@link Bitmap#compress(Bitmap.CompressFormat, int, java.io.OutputStream)}
+    *
+    * @param format
+    * @param quality
+    * @return
+    */
+   public BitmapOutput setFormat(Bitmap.CompressFormat format, int quality) {
+      this.format = format;
+      this.quality = quality;
+      return this;
+   }
+
+   public String getFileName() {
+      return fileName;
+   }
+
+   public float getReqWidth() {
+      return reqWidth;
+   }
+
+   public float getReqHeight() {
+      return reqHeight;
+   }
+
+   public Bitmap.CompressFormat getFormat() {
+      return format;
+   }
+
+   public int getQuality() {
+      return quality;
+   }
+
+}
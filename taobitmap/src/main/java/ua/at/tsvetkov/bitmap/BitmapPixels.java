@@ -0,0 +1,278 @@
+/*******************************************************************************
+ * Copyright (c) 2014 Alexandr Tsvetkov.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the The BSD 3-Clause License
+ * which accompanies this distribution, and is available at
+ * http://opensource.org/licenses/BSD-3-Clause
+ *
+ * Contributors:
+ *     Alexandr Tsvetkov - initial API and implementation
+ *
+ * Project:
+ *     TAO Bitmap Utils
+ *
+ * File name:
+ *     BitmapPixels.java
+ *
+ * License agreement:
+ *
+ * 1. This code is published AS IS. Author is not responsible for any damage that can be
+ *    caused by any application that uses this code.
+ * 2. Author does not give a garantee, that this code is error free.
+ * 3. This code can be used in NON-COMMERCIAL applications AS IS without any special
+ *    permission from author.
+ * 4. This code can be modified without any special permission from author IF AND ONLY IF
+ *    this license agreement will remain unchanged.
+ * 5. SPECIAL PERMISSION for this code usage in COMMERCIAL application SHOULD be obtained
+ *    from author.
+ ******************************************************************************/
+package ua.at.tsvetkov.bitmap;
+
+import java.nio.IntBuffer;
+
+import android.graphics.Bitmap;
+import android.graphics.Rect;
+
+/**
+ * Lossless pixel level crop, flip and rotation by 90, 180 and 270 degrees. The destination bitmap is split to row bands which may be
+ * processed in parallel, see {@link BitmapWorkers}. Every band reads only the source region it needs, so opaque images are never copied to
+ * the java heap as a whole. Rotations by 90 and 270 degrees are blocked transposes.
+ *
+ * @author A.Tsvetkov 2014 http://tsvetkov.at.ua mailto:al@ukr.net
+ */
+public class BitmapPixels {
+
+   /**
+    * Bitmaps with more pixels are transformed in parallel by {@link BitmapTransformer}
+    */
+   public static final int  PARALLEL_THRESHOLD = 2 * 1024 * 1024;
+
+   private static final int MIN_BAND_ROWS      = 64;
+   private static final int TILE               = 32;
+
+   private BitmapPixels() {
+
+   }
+
+   /**
+    * Return true if angle is a multiple of 90 degrees
+    *
+    * @param angle
+    * @return
+    */
+   public static boolean isAxisAligned(float angle) {
+      return angle % 90 == 0;
+   }
+
+   /**
+    * Convert a multiple of 90 degrees to 0, 90, 180 or 270.
+    *
+    * @param angle
+    * @return
+    */
+   public static int normalizeRotation(float angle) {
+      int rotation = ((int) angle) % 360;
+      return rotation < 0 ? rotation + 360 : rotation;
+   }
+
+   /**
+    * Crop, flip and rotate (clockwise) the bitmap. The same as Bitmap.createBitmap(bitmap, crop.left, crop.top, crop.width(), crop.height(),
+    * matrix, filter) with flip and rotation in the matrix, but pixels are only moved, without filtering, so the result is bit-exact. Pixels
+    * of crop area outside the source bitmap are transparent. The result has the config of the source bitmap.
+    *
+    * @param src
+    * @param crop crop area in source coordinates
+    * @param isFlipHorizontal
+    * @param isFlipVertical
+    * @param rotation 0, 90, 180 or 270
+    * @param isParallel process row bands on all CPU cores
+    * @return transformed bitmap, or source bitmap if nothing to do
+    */
+   public static Bitmap transform(final Bitmap src, Rect crop, boolean isFlipHorizontal, boolean isFlipVertical, int rotation, boolean isParallel) {
+      if (rotation != 0 && rotation != 90 && rotation != 180 && rotation != 270) {
+         throw new IllegalArgumentException("Wrong rotation " + rotation + ", must be 0, 90, 180 or 270.");
+      }
+      if (crop.width() <= 0 || crop.height() <= 0) {
+         throw new IllegalArgumentException("Wrong crop parameters. Width and height must be > 0");
+      }
+      if (rotation == 0 && !isFlipHorizontal && !isFlipVertical && crop.left == 0 && crop.top == 0 && crop.width() == src.getWidth() && crop.height() == src.getHeight()) {
+         return src;
+      }
+      final Mapping mapping = new Mapping(crop, isFlipHorizontal, isFlipVertical, rotation);
+      final Bitmap dst = Bitmap.createBitmap(mapping.width, mapping.height, src.getConfig() == null ? Bitmap.Config.ARGB_8888 : src.getConfig());
+      final int minBandRows = isParallel ? MIN_BAND_ROWS : Integer.MAX_VALUE;
+
+      if (src.getConfig() == Bitmap.Config.ARGB_8888 && src.hasAlpha() && src.getRowBytes() == src.getWidth() * 4) {
+         // getPixels() and setPixels() unpremultiply and premultiply translucent pixels, so raw pixels are moved instead
+         final int[] in = new int[src.getWidth() * src.getHeight()];
+         final int[] out = new int[mapping.width * mapping.height];
+         final Rect area = new Rect(0, 0, src.getWidth(), src.getHeight());
+         final boolean isInside = isInside(mapping.getSourceArea(0, mapping.height), src);
+         src.copyPixelsToBuffer(IntBuffer.wrap(in));
+         BitmapWorkers.runBands(mapping.height, minBandRows, new BitmapWorkers.Band() {
+
+            @Override
+            public void run(int from, int to) {
+               mapping.copy(in, area, out, from * mapping.width, from, to, isInside);
+            }
+         });
+         dst.copyPixelsFromBuffer(IntBuffer.wrap(out));
+         return dst;
+      }
+
+      BitmapWorkers.runBands(mapping.height, minBandRows, new BitmapWorkers.Band() {
+
+         @Override
+         public void run(int from, int to) {
+            Rect area = mapping.getSourceArea(from, to);
+            boolean isInside = isInside(area, src);
+            if (!area.intersect(0, 0, src.getWidth(), src.getHeight())) {
+               return; // Nothing but transparent pixels
+            }
+            int[] in = new int[area.width() * area.height()];
+            src.getPixels(in, 0, area.width(), area.left, area.top, area.width(), area.height());
+            int[] out = new int[mapping.width * (to - from)];
+            mapping.copy(in, area, out, 0, from, to, isInside);
+            dst.setPixels(out, 0, mapping.width, 0, from, mapping.width, to - from);
+         }
+      });
+      return dst;
+   }
+
+   private static boolean isInside(Rect area, Bitmap bitmap) {
+      return area.left >= 0 && area.top >= 0 && area.right <= bitmap.getWidth() && area.bottom <= bitmap.getHeight();
+   }
+
+   /**
+    * Integer affine mapping from destination to source pixel: sx = x0 + dxX * x + dyX * y, sy = y0 + dxY * x + dyY * y
+    */
+   private static final class Mapping {
+
+      private final int width;
+      private final int height;
+      private int       x0;
+      private int       y0;
+      private int       dxX;
+      private int       dxY;
+      private int       dyX;
+      private int       dyY;
+
+      private Mapping(Rect crop, boolean isFlipHorizontal, boolean isFlipVertical, int rotation) {
+         int cw = crop.width();
+         int ch = crop.height();
+         // Inverse rotation: destination pixel to pixel of the flipped crop area
+         switch (rotation) {
+            case 90:
+               width = ch;
+               height = cw;
+               set(0, ch - 1, 0, -1, 1, 0);
+               break;
+            case 180:
+               width = cw;
+               height = ch;
+               set(cw - 1, ch - 1, -1, 0, 0, -1);
+               break;
+            case 270:
+               width = ch;
+               height = cw;
+               set(cw - 1, 0, 0, 1, -1, 0);
+               break;
+            default:
+               width = cw;
+               height = ch;
+               set(0, 0, 1, 0, 0, 1);
+               break;
+         }
+         // Inverse flip
+         if (isFlipHorizontal) {
+            x0 = cw - 1 - x0;
+            dxX = -dxX;
+            dyX = -dyX;
+         }
+         if (isFlipVertical) {
+            y0 = ch - 1 - y0;
+            dxY = -dxY;
+            dyY = -dyY;
+         }
+         x0 = x0 + crop.left;
+         y0 = y0 + crop.top;
+      }
+
+      private void set(int x0, int y0, int dxX, int dxY, int dyX, int dyY) {
+         this.x0 = x0;
+         this.y0 = y0;
+         this.dxX = dxX;
+         this.dxY = dxY;
+         this.dyX = dyX;
+         this.dyY = dyY;
+      }
+
+      /**
+       * Source area which contains all pixels of destination rows
+       */
+      private Rect getSourceArea(int from, int to) {
+         int ax = x0 + dyX * from;
+         int ay = y0 + dyY * from;
+         int bx = x0 + dxX * (width - 1) + dyX * (to - 1);
+         int by = y0 + dxY * (width - 1) + dyY * (to - 1);
+         return new Rect(Math.min(ax, bx), Math.min(ay, by), Math.max(ax, bx) + 1, Math.max(ay, by) + 1);
+      }
+
+      private void copy(int[] in, Rect area, int[] out, int outOffset, int from, int to, boolean isInside) {
+         int stride = area.width();
+         int index = outOffset;
+         if (!isInside) {
+            for (int y = from; y < to; y++) {
+               int sx = x0 + dyX * y - area.left;
+               int sy = y0 + dyY * y - area.top;
+               for (int x = 0; x < width; x++) {
+                  if (sx >= 0 && sy >= 0 && sx < stride && sy < area.height()) {
+                     out[index] = in[sy * stride + sx];
+                  }
+                  index++;
+                  sx = sx + dxX;
+                  sy = sy + dxY;
+               }
+            }
+            return;
+         }
+         int step = dxY * stride + dxX;
+         int rowStep = dyY * stride + dyX;
+         int base = (y0 - area.top) * stride + (x0 - area.left);
+         if (step == 1) {
+            // Plain crop
+            for (int y = from; y < to; y++) {
+               System.arraycopy(in, base + y * rowStep, out, index, width);
+               index = index + width;
+            }
+         } else if (dxY == 0) {
+            // Rows are mapped to rows
+            for (int y = from; y < to; y++) {
+               int src = base + y * rowStep;
+               for (int x = 0; x < width; x++) {
+                  out[index++] = in[src];
+                  src = src + step;
+               }
+            }
+         } else {
+            // Rows are mapped to columns, transpose by tiles to keep the source lines in the CPU cache
+            for (int ty = from; ty < to; ty += TILE) {
+               int tyEnd = Math.min(ty + TILE, to);
+               for (int tx = 0; tx < width; tx += TILE) {
+                  int txEnd = Math.min(tx + TILE, width);
+                  for (int y = ty; y < tyEnd; y++) {
+                     int src = base + y * rowStep + tx * step;
+                     int dst = outOffset + (y - from) * width + tx;
+                     for (int x = tx; x < txEnd; x++) {
+                        out[dst++] = in[src];
+                        src = src + step;
+                     }
+                  }
+               }
+            }
+         }
+      }
+
+   }
+
+}
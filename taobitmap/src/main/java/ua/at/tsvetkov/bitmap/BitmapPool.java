@@ -0,0 +1,238 @@
+/*******************************************************************************
+ * Copyright (c) 2014 Alexandr Tsvetkov.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the The BSD 3-Clause License
+ * which accompanies this distribution, and is available at
+ * http://opensource.org/licenses/BSD-3-Clause
+ *
+ * Contributors:
+ *     Alexandr Tsvetkov - initial API and implementation
+ *
+ * Project:
+ *     TAO Bitmap Utils
+ *
+ * File name:
+ *     BitmapPool.java
+ *
+ * License agreement:
+ *
+ * 1. This code is published AS IS. Author is not responsible for any damage that can be
+ *    caused by any application that uses this code.
+ * 2. Author does not give a garantee, that this code is error free.
+ * 3. This code can be used in NON-COMMERCIAL applications AS IS without any special
+ *    permission from author.
+ * 4. This code can be modified without any special permission from author IF AND ONLY IF
+ *    this license agreement will remain unchanged.
+ * 5. SPECIAL PERMISSION for this code usage in COMMERCIAL application SHOULD be obtained
+ *    from author.
+ ******************************************************************************/
+package ua.at.tsvetkov.bitmap;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.Map;
+
+import android.graphics.Bitmap;
+
+/**
+ * Pool of mutable bitmaps of the same sizes, bounded in bytes. Bitmaps which are not needed anymore are put to the pool and are returned
+ * instead of new allocations, so repeated work with bitmaps of the same size does not allocate memory. The bitmaps of the least recently
+ * used size are recycled when the pool is full. The pool is accounted in the {@link BitmapMemoryBudget} and is shrinked on trim-memory
+ * signals. Thread safe.
+ *
+ * @author A.Tsvetkov 2014 http://tsvetkov.at.ua mailto:al@ukr.net
+ */
+public class BitmapPool implements BitmapMemoryBudget.Cache {
+
+   private static BitmapPool                  instance = null;
+
+   private final long                         maxBytes;
+   /** Bitmaps of the same size and config, the oldest first, in the access order of the sizes */
+   private final Map<Key, LinkedList<Bitmap>> groups   = new LinkedHashMap<Key, LinkedList<Bitmap>>(16, 0.75f, true);
+   private final Key                          lookup   = new Key();
+   private long                               size     = 0;
+
+   /**
+    * Size and config of pooled bitmaps
+    */
+   private static final class Key {
+
+      private int           width;
+      private int           height;
+      private Bitmap.Config config;
+
+      private Key set(int width, int height, Bitmap.Config config) {
+         this.width = width;
+         this.height = height;
+         this.config = config;
+         return this;
+      }
+
+      @Override
+      public int hashCode() {
+         return (width * 31 + height) * 31 + config.ordinal();
+      }
+
+      @Override
+      public boolean equals(Object object) {
+         if (!(object instanceof Key)) {
+            return false;
+         }
+         Key key = (Key) object;
+         return key.width == width && key.height == height && key.config == config;
+      }
+
+   }
+
+   /**
+    * Create the pool and add it to the global {@link BitmapMemoryBudget}
+    *
+    * @param maxBytes
+    */
+   public BitmapPool(long maxBytes) {
+      if (maxBytes <= 0) {
+         throw new IllegalArgumentException("Wrong pool size.");
+      }
+      this.maxBytes = maxBytes;
+      BitmapMemoryBudget.getInstance().addCache(this);
+   }
+
+   /**
+    * Return the shared pool with 1/8 of the maximum heap size
+    *
+    * @return
+    */
+   public static synchronized BitmapPool getInstance() {
+      if (instance == null) {
+         instance = new BitmapPool(Runtime.getRuntime().maxMemory() / 8);
+      }
+      return instance;
+   }
+
+   /**
+    * Return a bitmap of given size and config from the pool, or a new bitmap. The content of the pooled bitmap is cleared to transparent.
+    *
+    * @param width
+    * @param height
+    * @param config
+    * @return mutable bitmap
+    */
+   public Bitmap get(int width, int height, Bitmap.Config config) {
+      Bitmap bitmap = poll(width, height, config);
+      if (bitmap != null) {
+         bitmap.eraseColor(0);
+         return bitmap;
+      }
+      return Bitmap.createBitmap(width, height, config);
+   }
+
+   /**
+    * Return a bitmap of given size and config from the pool without clearing, or a new bitmap. Use it if all pixels will be overwritten.
+    *
+    * @param width
+    * @param height
+    * @param config
+    * @return mutable bitmap
+    */
+   public Bitmap getDirty(int width, int height, Bitmap.Config config) {
+      Bitmap bitmap = poll(width, height, config);
+      return bitmap != null ? bitmap : Bitmap.createBitmap(width, height, config);
+   }
+
+   /**
+    * Return a handle of the bitmap of given size and config, the same as {@link #get(int, int, Bitmap.Config)}. The bitmap is returned to
+    * this pool when the last holder releases the handle.
+    *
+    * @param width
+    * @param height
+    * @param config
+    * @return handle with one reference, held by the caller
+    */
+   public BitmapHandle obtain(int width, int height, Bitmap.Config config) {
+      return BitmapHandle.obtain(get(width, height, config), this);
+   }
+
+   /**
+    * Put the bitmap to the pool. The bitmap must not be used by the caller after that. Immutable bitmaps and bitmaps bigger than the pool
+    * are recycled.
+    *
+    * @param bitmap
+    */
+   public void put(Bitmap bitmap) {
+      if (bitmap == null || bitmap.isRecycled()) {
+         return;
+      }
+      int bytes = BitmapData.getBitmapBytes(bitmap);
+      if (!bitmap.isMutable() || bitmap.getConfig() == null || bytes > maxBytes) {
+         bitmap.recycle();
+         return;
+      }
+      synchronized (this) {
+         Key key = lookup.set(bitmap.getWidth(), bitmap.getHeight(), bitmap.getConfig());
+         LinkedList<Bitmap> group = groups.get(key);
+         if (group == null) {
+            group = new LinkedList<Bitmap>();
+            groups.put(new Key().set(key.width, key.height, key.config), group);
+         }
+         group.addLast(bitmap);
+         size = size + bytes;
+      }
+      trimToBytes(maxBytes);
+   }
+
+   /**
+    * Recycle all pooled bitmaps
+    */
+   public void clear() {
+      trimToBytes(0);
+   }
+
+   @Override
+   public synchronized long getSizeBytes() {
+      return size;
+   }
+
+   @Override
+   public void trimToFraction(float fraction) {
+      trimToBytes(fraction <= 0 ? 0 : (long) (maxBytes * Math.min(1, fraction)));
+   }
+
+   // ************************* Private methods ******************************
+
+   private synchronized Bitmap poll(int width, int height, Bitmap.Config config) {
+      LinkedList<Bitmap> group = groups.get(lookup.set(width, height, config));
+      if (group == null) {
+         return null;
+      }
+      Bitmap bitmap = group.removeLast();
+      if (group.isEmpty()) {
+         groups.remove(lookup);
+      }
+      size = size - BitmapData.getBitmapBytes(bitmap);
+      return bitmap;
+   }
+
+   /**
+    * Recycle the oldest bitmaps of the least recently used sizes until the pool fits to given size
+    */
+   private void trimToBytes(long bytes) {
+      while (true) {
+         Bitmap bitmap;
+         synchronized (this) {
+            if (size <= bytes || groups.isEmpty()) {
+               return;
+            }
+            Iterator<LinkedList<Bitmap>> iterator = groups.values().iterator();
+            LinkedList<Bitmap> group = iterator.next();
+            bitmap = group.removeFirst();
+            if (group.isEmpty()) {
+               iterator.remove();
+            }
+            size = size - BitmapData.getBitmapBytes(bitmap);
+         }
+         bitmap.recycle();
+      }
+   }
+
+}
@@ -0,0 +1,390 @@
+/*******************************************************************************
+ * Copyright (c) 2014 Alexandr Tsvetkov.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the The BSD 3-Clause License
+ * which accompanies this distribution, and is available at
+ * http://opensource.org/licenses/BSD-3-Clause
+ *
+ * Contributors:
+ *     Alexandr Tsvetkov - initial API and implementation
+ *
+ * Project:
+ *     TAO Bitmap Utils
+ *
+ * File name:
+ *     BitmapRawFile.java
+ *
+ * License agreement:
+ *
+ * 1. This code is published AS IS. Author is not responsible for any damage that can be
+ *    caused by any application that uses this code.
+ * 2. Author does not give a garantee, that this code is error free.
+ * 3. This code can be used in NON-COMMERCIAL applications AS IS without any special
+ *    permission from author.
+ * 4. This code can be modified without any special permission from author IF AND ONLY IF
+ *    this license agreement will remain unchanged.
+ * 5. SPECIAL PERMISSION for this code usage in COMMERCIAL application SHOULD be obtained
+ *    from author.
+ ******************************************************************************/
+package ua.at.tsvetkov.bitmap;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+import ua.at.tsvetkov.util.Log;
+import android.graphics.Bitmap;
+import android.os.Build;
+
+/**
+ * File with raw bitmap pixels. The pixels are stored as is, or compressed with fast LZ4 block codec, after a small header with the width,
+ * the height and the config of the bitmap. Loading is a memory mapped read and a single {@link Bitmap#copyPixelsFromBuffer(java.nio.Buffer)}
+ * call, so the file is loaded with memory copy speed instead of JPEG or PNG decoder speed. The file is bigger than JPEG or PNG and
+ * depends on the device pixel format, so use it only for cache.
+ *
+ * @author A.Tsvetkov 2014 http://tsvetkov.at.ua mailto:al@ukr.net
+ */
+public class BitmapRawFile {
+
+   private static final int MAGIC            = 0x54414F52; // "TAOR"
+   private static final int VERSION          = 1;
+   private static final int HEADER_SIZE      = 32;
+   private static final int FLAG_COMPRESSED  = 1;
+   private static final int FLAG_HAS_ALPHA   = 2;
+
+   private static final int MIN_MATCH        = 4;
+   private static final int LAST_LITERALS    = 5;
+   private static final int MATCH_LIMIT      = 12;
+   private static final int MAX_OFFSET       = 65535;
+   private static final int HASH_BITS        = 14;
+
+   private BitmapRawFile() {
+
+   }
+
+   /**
+    * Save the bitmap pixels to the file. The pixels are written to a temporary file which is renamed to the file when it is complete, so a
+    * reader never sees a partially written file.
+    *
+    * @param bitmap
+    * @param fileName
+    * @param isCompressed compress pixels with LZ4 block codec
+    * @return true if success
+    */
+   public static boolean save(Bitmap bitmap, String fileName, boolean isCompressed) {
+      int code = getConfigCode(bitmap.getConfig());
+      if (code == 0) {
+         Log.e("Unsupported bitmap config " + bitmap.getConfig());
+         return false;
+      }
+      int size = bitmap.getRowBytes() * bitmap.getHeight();
+      ByteBuffer pixels = ByteBuffer.allocate(size);
+      bitmap.copyPixelsToBuffer(pixels);
+      byte[] payload = pixels.array();
+      int length = size;
+      if (isCompressed) {
+         byte[] compressed = new byte[getMaxCompressedLength(size)];
+         length = compress(payload, size, compressed);
+         if (length < size) {
+            payload = compressed;
+         } else {
+            isCompressed = false; // Noise, store as is
+            length = size;
+         }
+      }
+      int flags = (isCompressed ? FLAG_COMPRESSED : 0) | (bitmap.hasAlpha() ? FLAG_HAS_ALPHA : 0);
+      File tmpFile = new File(fileName + "." + Thread.currentThread().getId() + ".tmp");
+      DataOutputStream out = null;
+      try {
+         out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmpFile)));
+         out.writeInt(MAGIC);
+         out.writeShort(VERSION);
+         out.writeShort(flags);
+         out.writeInt(bitmap.getWidth());
+         out.writeInt(bitmap.getHeight());
+         out.writeInt(code);
+         out.writeInt(bitmap.getRowBytes());
+         out.writeInt(size);
+         out.writeInt(length);
+         out.write(payload, 0, length);
+         out.close();
+         out = null;
+         if (!tmpFile.renameTo(new File(fileName))) {
+            Log.e("Can't rename raw bitmap file " + tmpFile.getName());
+            tmpFile.delete();
+            return false;
+         }
+         return true;
+      } catch (Exception e) {
+         Log.e("Can't save raw bitmap file " + fileName, e);
+         tmpFile.delete();
+         return false;
+      } finally {
+         if (out != null) {
+            try {
+               out.close();
+            } catch (IOException e) {
+               Log.e("Can't close file " + fileName, e);
+            }
+         }
+      }
+   }
+
+   /**
+    * Load the bitmap from the file.
+    *
+    * @param fileName
+    * @return bitmap or null if the file is absent or damaged
+    */
+   public static Bitmap load(String fileName) {
+      RandomAccessFile in = null;
+      try {
+         in = new RandomAccessFile(fileName, "r");
+         FileChannel channel = in.getChannel();
+         if (channel.size() < HEADER_SIZE) {
+            Log.w("Damaged raw bitmap file " + fileName);
+            return null;
+         }
+         MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+         int magic = buffer.getInt();
+         int version = buffer.getShort();
+         int flags = buffer.getShort();
+         int width = buffer.getInt();
+         int height = buffer.getInt();
+         Bitmap.Config config = getConfig(buffer.getInt());
+         int rowBytes = buffer.getInt();
+         int size = buffer.getInt();
+         int length = buffer.getInt();
+         if (magic != MAGIC || version != VERSION || config == null || width <= 0 || height <= 0 || size != rowBytes * height || length != buffer.remaining()) {
+            Log.w("Damaged raw bitmap file " + fileName);
+            return null;
+         }
+         ByteBuffer pixels = buffer.slice();
+         if ((flags & FLAG_COMPRESSED) != 0) {
+            byte[] packed = new byte[length];
+            pixels.get(packed);
+            byte[] unpacked = new byte[size];
+            if (decompress(packed, length, unpacked) != size) {
+               Log.w("Damaged raw bitmap file " + fileName);
+               return null;
+            }
+            pixels = ByteBuffer.wrap(unpacked);
+         } else if (length != size) {
+            Log.w("Damaged raw bitmap file " + fileName);
+            return null;
+         }
+         Bitmap bitmap = Bitmap.createBitmap(width, height, config);
+         if (bitmap.getRowBytes() != rowBytes) {
+            // Saved on the device with different row alignment
+            bitmap.recycle();
+            return null;
+         }
+         bitmap.copyPixelsFromBuffer(pixels);
+         if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB_MR1) {
+            bitmap.setHasAlpha((flags & FLAG_HAS_ALPHA) != 0);
+         }
+         return bitmap;
+      } catch (FileNotFoundException e) {
+         return null;
+      } catch (Exception e) {
+         Log.e("Can't load raw bitmap file " + fileName, e);
+         return null;
+      } finally {
+         if (in != null) {
+            try {
+               in.close();
+            } catch (IOException e) {
+               Log.e("Can't close file " + fileName, e);
+            }
+         }
+      }
+   }
+
+   // ************************* LZ4 block codec ******************************
+
+   /**
+    * Return maximum size of compressed data
+    *
+    * @param length
+    * @return
+    */
+   static int getMaxCompressedLength(int length) {
+      return length + length / 255 + 16;
+   }
+
+   /**
+    * Compress data to LZ4 block format.
+    *
+    * @param src
+    * @param length length of source data
+    * @param dst buffer of {@link #getMaxCompressedLength(int)} size
+    * @return length of compressed data
+    */
+   static int compress(byte[] src, int length, byte[] dst) {
+      int[] table = new int[1 << HASH_BITS];
+      int anchor = 0;
+      int pos = 0;
+      int out = 0;
+      int limit = length - MATCH_LIMIT;
+      while (pos < limit) {
+         int sequence = readInt(src, pos);
+         int hash = (sequence * -1640531535) >>> (32 - HASH_BITS);
+         int candidate = table[hash] - 1;
+         table[hash] = pos + 1;
+         if (candidate < 0 || pos - candidate > MAX_OFFSET || readInt(src, candidate) != sequence) {
+            pos++;
+            continue;
+         }
+         // Extend the match backward and forward
+         while (pos > anchor && candidate > 0 && src[pos - 1] == src[candidate - 1]) {
+            pos--;
+            candidate--;
+         }
+         int matchEnd = pos + MIN_MATCH;
+         int matchLimit = length - LAST_LITERALS;
+         while (matchEnd < matchLimit && src[matchEnd] == src[candidate + matchEnd - pos]) {
+            matchEnd++;
+         }
+         out = writeSequence(src, anchor, pos - anchor, pos - candidate, matchEnd - pos, dst, out);
+         pos = matchEnd;
+         anchor = pos;
+      }
+      // Last literals
+      int literals = length - anchor;
+      int token = out++;
+      dst[token] = (byte) (Math.min(literals, 15) << 4);
+      out = writeLength(literals, dst, out);
+      System.arraycopy(src, anchor, dst, out, literals);
+      return out + literals;
+   }
+
+   /**
+    * Decompress data of LZ4 block format.
+    *
+    * @param src
+    * @param length length of compressed data
+    * @param dst
+    * @return length of decompressed data, or -1 if data is damaged
+    */
+   static int decompress(byte[] src, int length, byte[] dst) {
+      int pos = 0;
+      int out = 0;
+      try {
+         while (pos < length) {
+            int token = src[pos++] & 0xFF;
+            int literals = token >>> 4;
+            if (literals == 15) {
+               int b;
+               do {
+                  b = src[pos++] & 0xFF;
+                  literals = literals + b;
+               } while (b == 255);
+            }
+            System.arraycopy(src, pos, dst, out, literals);
+            pos = pos + literals;
+            out = out + literals;
+            if (pos >= length) {
+               break; // Last sequence has no match
+            }
+            int offset = (src[pos] & 0xFF) | ((src[pos + 1] & 0xFF) << 8);
+            pos = pos + 2;
+            int match = (token & 0x0F) + MIN_MATCH;
+            if (match == 15 + MIN_MATCH) {
+               int b;
+               do {
+                  b = src[pos++] & 0xFF;
+                  match = match + b;
+               } while (b == 255);
+            }
+            int from = out - offset;
+            if (offset == 0 || from < 0) {
+               return -1;
+            }
+            if (offset >= match) {
+               System.arraycopy(dst, from, dst, out, match);
+               out = out + match;
+            } else {
+               // Overlapped copy repeats the pattern
+               for (int i = 0; i < match; i++) {
+                  dst[out++] = dst[from + i];
+               }
+            }
+         }
+      } catch (IndexOutOfBoundsException e) {
+         return -1;
+      }
+      return out;
+   }
+
+   // ************************* Private methods ******************************
+
+   private static int writeSequence(byte[] src, int anchor, int literals, int offset, int match, byte[] dst, int out) {
+      int token = out++;
+      int matchCode = match - MIN_MATCH;
+      dst[token] = (byte) ((Math.min(literals, 15) << 4) | Math.min(matchCode, 15));
+      out = writeLength(literals, dst, out);
+      System.arraycopy(src, anchor, dst, out, literals);
+      out = out + literals;
+      dst[out++] = (byte) offset;
+      dst[out++] = (byte) (offset >>> 8);
+      return writeLength(matchCode, dst, out);
+   }
+
+   private static int writeLength(int length, byte[] dst, int out) {
+      if (length < 15) {
+         return out;
+      }
+      length = length - 15;
+      while (length >= 255) {
+         dst[out++] = (byte) 255;
+         length = length - 255;
+      }
+      dst[out++] = (byte) length;
+      return out;
+   }
+
+   private static int readInt(byte[] data, int pos) {
+      return (data[pos] & 0xFF) | ((data[pos + 1] & 0xFF) << 8) | ((data[pos + 2] & 0xFF) << 16) | (data[pos + 3] << 24);
+   }
+
+   private static int getConfigCode(Bitmap.Config config) {
+      if (config == null) {
+         return 0;
+      }
+      switch (config) {
+         case ALPHA_8:
+            return 1;
+         case RGB_565:
+            return 2;
+         case ARGB_4444:
+            return 3;
+         case ARGB_8888:
+            return 4;
+         default:
+            return 0;
+      }
+   }
+
+   private static Bitmap.Config getConfig(int code) {
+      switch (code) {
+         case 1:
+            return Bitmap.Config.ALPHA_8;
+         case 2:
+            return Bitmap.Config.RGB_565;
+         case 3:
+            return Bitmap.Config.ARGB_4444;
+         case 4:
+            return Bitmap.Config.ARGB_8888;
+         default:
+            return null;
+      }
+   }
+
+}
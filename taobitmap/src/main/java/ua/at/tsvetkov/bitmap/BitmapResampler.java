@@ -0,0 +1,349 @@
+/*******************************************************************************
+ * Copyright (c) 2014 Alexandr Tsvetkov.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the The BSD 3-Clause License
+ * which accompanies this distribution, and is available at
+ * http://opensource.org/licenses/BSD-3-Clause
+ *
+ * Contributors:
+ *     Alexandr Tsvetkov - initial API and implementation
+ *
+ * Project:
+ *     TAO Bitmap Utils
+ *
+ * File name:
+ *     BitmapResampler.java
+ *
+ * License agreement:
+ *
+ * 1. This code is published AS IS. Author is not responsible for any damage that can be
+ *    caused by any application that uses this code.
+ * 2. Author does not give a garantee, that this code is error free.
+ * 3. This code can be used in NON-COMMERCIAL applications AS IS without any special
+ *    permission from author.
+ * 4. This code can be modified without any special permission from author IF AND ONLY IF
+ *    this license agreement will remain unchanged.
+ * 5. SPECIAL PERMISSION for this code usage in COMMERCIAL application SHOULD be obtained
+ *    from author.
+ ******************************************************************************/
+package ua.at.tsvetkov.bitmap;
+
+import java.nio.IntBuffer;
+import java.util.Arrays;
+
+import android.graphics.Bitmap;
+
+/**
+ * Pure java separable resampler for ARGB pixels. Weight tables are precomputed once per scaling in fixed point, the horizontal and the
+ * vertical passes are processed by row bands on all CPU cores, see {@link BitmapWorkers}. Scratch buffers are allocated once per band, not
+ * per row.
+ *
+ * @author A.Tsvetkov 2014 http://tsvetkov.at.ua mailto:al@ukr.net
+ */
+public class BitmapResampler {
+
+   private static final int WEIGHT_BITS   = 14;
+   private static final int WEIGHT_ONE    = 1 << WEIGHT_BITS;
+   private static final int WEIGHT_ROUND  = 1 << (WEIGHT_BITS - 1);
+   private static final int MIN_BAND_ROWS = 32;
+
+   /**
+    * Resampling kernel
+    */
+   public enum Kernel {
+
+      /** Triangle filter, radius 1 */
+      BILINEAR(1),
+      /** Keys cubic filter with a = -0.5, radius 2 */
+      BICUBIC(2),
+      /** Lanczos windowed sinc, radius 3 */
+      LANCZOS3(3);
+
+      private final double support;
+
+      private Kernel(double support) {
+         this.support = support;
+      }
+
+      double weight(double x) {
+         if (x < 0) {
+            x = -x;
+         }
+         switch (this) {
+            case BILINEAR:
+               return x < 1 ? 1 - x : 0;
+            case BICUBIC:
+               if (x < 1) {
+                  return (1.5 * x - 2.5) * x * x + 1;
+               } else if (x < 2) {
+                  return ((-0.5 * x + 2.5) * x - 4) * x + 2;
+               }
+               return 0;
+            default:
+               if (x == 0) {
+                  return 1;
+               } else if (x < 3) {
+                  double px = Math.PI * x;
+                  return 3 * Math.sin(px) * Math.sin(px / 3) / (px * px);
+               }
+               return 0;
+         }
+      }
+
+   }
+
+   private BitmapResampler() {
+
+   }
+
+   /**
+    * Resize bitmap with given kernel. The result bitmap has the config of the source.
+    *
+    * @param bitmap
+    * @param dstWidth
+    * @param dstHeight
+    * @param kernel
+    * @return resized bitmap
+    */
+   public static Bitmap scale(Bitmap bitmap, int dstWidth, int dstHeight, Kernel kernel) {
+      int srcWidth = bitmap.getWidth();
+      int srcHeight = bitmap.getHeight();
+      int[] src = new int[srcWidth * srcHeight];
+      bitmap.getPixels(src, 0, srcWidth, 0, 0, srcWidth, srcHeight);
+      int[] dst = new int[dstWidth * dstHeight];
+      resample(src, srcWidth, srcHeight, dst, dstWidth, dstHeight, kernel, bitmap.hasAlpha());
+      return Bitmap.createBitmap(dst, dstWidth, dstHeight, bitmap.getConfig() != null ? bitmap.getConfig() : Bitmap.Config.ARGB_8888);
+   }
+
+   /**
+    * Resample pixels in buffers. Buffers without backing array are copied.
+    *
+    * @param src source pixels in ARGB format
+    * @param srcWidth
+    * @param srcHeight
+    * @param dst destination buffer, must have dstWidth * dstHeight remaining pixels
+    * @param dstWidth
+    * @param dstHeight
+    * @param kernel
+    * @param hasAlpha false if all pixels are opaque
+    */
+   public static void resample(IntBuffer src, int srcWidth, int srcHeight, IntBuffer dst, int dstWidth, int dstHeight, Kernel kernel, boolean hasAlpha) {
+      int[] srcArray;
+      int srcOffset;
+      if (src.hasArray()) {
+         srcArray = src.array();
+         srcOffset = src.arrayOffset() + src.position();
+      } else {
+         srcArray = new int[srcWidth * srcHeight];
+         src.duplicate().get(srcArray);
+         srcOffset = 0;
+      }
+      if (dst.hasArray()) {
+         resample(srcArray, srcOffset, srcWidth, srcHeight, dst.array(), dst.arrayOffset() + dst.position(), dstWidth, dstHeight, kernel, hasAlpha);
+      } else {
+         int[] dstArray = new int[dstWidth * dstHeight];
+         resample(srcArray, srcOffset, srcWidth, srcHeight, dstArray, 0, dstWidth, dstHeight, kernel, hasAlpha);
+         dst.duplicate().put(dstArray);
+      }
+   }
+
+   /**
+    * Resample pixels in arrays.
+    *
+    * @param src source pixels in ARGB format
+    * @param srcWidth
+    * @param srcHeight
+    * @param dst destination array with dstWidth * dstHeight size
+    * @param dstWidth
+    * @param dstHeight
+    * @param kernel
+    * @param hasAlpha false if all pixels are opaque
+    */
+   public static void resample(int[] src, int srcWidth, int srcHeight, int[] dst, int dstWidth, int dstHeight, Kernel kernel, boolean hasAlpha) {
+      resample(src, 0, srcWidth, srcHeight, dst, 0, dstWidth, dstHeight, kernel, hasAlpha);
+   }
+
+   // ************************* Private methods ******************************
+
+   private static void resample(final int[] src, final int srcOffset, final int srcWidth, final int srcHeight, final int[] dst, final int dstOffset,
+         final int dstWidth, final int dstHeight, Kernel kernel, final boolean hasAlpha) {
+      if (srcWidth <= 0 || srcHeight <= 0 || dstWidth <= 0 || dstHeight <= 0) {
+         throw new IllegalArgumentException("Wrong resampling size.");
+      }
+      final Weights horizontal = new Weights(srcWidth, dstWidth, kernel);
+      final Weights vertical = new Weights(srcHeight, dstHeight, kernel);
+      final int[] tmp = new int[dstWidth * srcHeight];
+
+      BitmapWorkers.runBands(srcHeight, MIN_BAND_ROWS, new BitmapWorkers.Band() {
+
+         @Override
+         public void run(int from, int to) {
+            int[] row = hasAlpha ? new int[srcWidth] : null;
+            for (int y = from; y < to; y++) {
+               int[] line = src;
+               int lineOffset = srcOffset + y * srcWidth;
+               if (hasAlpha) {
+                  premultiply(src, lineOffset, row, srcWidth);
+                  line = row;
+                  lineOffset = 0;
+               }
+               filterRow(line, lineOffset, tmp, y * dstWidth, horizontal);
+            }
+         }
+      });
+
+      BitmapWorkers.runBands(dstHeight, MIN_BAND_ROWS, new BitmapWorkers.Band() {
+
+         @Override
+         public void run(int from, int to) {
+            int[] acc = new int[dstWidth * 4];
+            for (int y = from; y < to; y++) {
+               filterColumn(tmp, y, acc, dstWidth, vertical);
+               storeRow(acc, dst, dstOffset + y * dstWidth, dstWidth, hasAlpha);
+            }
+         }
+      });
+   }
+
+   private static void filterRow(int[] src, int srcOffset, int[] dst, int dstOffset, Weights weights) {
+      int[] start = weights.start;
+      int[] count = weights.count;
+      int[] values = weights.values;
+      int stride = weights.stride;
+      for (int x = 0; x < start.length; x++) {
+         int a = 0;
+         int r = 0;
+         int g = 0;
+         int b = 0;
+         int index = srcOffset + start[x];
+         int w = x * stride;
+         for (int k = count[x]; k > 0; k--) {
+            int weight = values[w++];
+            int color = src[index++];
+            a = a + weight * (color >>> 24);
+            r = r + weight * ((color >> 16) & 0xFF);
+            g = g + weight * ((color >> 8) & 0xFF);
+            b = b + weight * (color & 0xFF);
+         }
+         dst[dstOffset + x] = (clamp(a) << 24) | (clamp(r) << 16) | (clamp(g) << 8) | clamp(b);
+      }
+   }
+
+   private static void filterColumn(int[] src, int y, int[] acc, int width, Weights weights) {
+      Arrays.fill(acc, 0);
+      int rowIndex = weights.start[y] * width;
+      int w = y * weights.stride;
+      for (int k = weights.count[y]; k > 0; k--) {
+         int weight = weights.values[w++];
+         int index = rowIndex;
+         for (int x = 0, i = 0; x < width; x++) {
+            int color = src[index++];
+            acc[i++] += weight * (color >>> 24);
+            acc[i++] += weight * ((color >> 16) & 0xFF);
+            acc[i++] += weight * ((color >> 8) & 0xFF);
+            acc[i++] += weight * (color & 0xFF);
+         }
+         rowIndex = rowIndex + width;
+      }
+   }
+
+   private static void storeRow(int[] acc, int[] dst, int dstOffset, int width, boolean hasAlpha) {
+      for (int x = 0, i = 0; x < width; x++) {
+         int a = clamp(acc[i++]);
+         int r = clamp(acc[i++]);
+         int g = clamp(acc[i++]);
+         int b = clamp(acc[i++]);
+         if (hasAlpha) {
+            if (a == 0) {
+               r = g = b = 0;
+            } else if (a < 255) {
+               r = Math.min(255, (Math.min(r, a) * 255 + (a >> 1)) / a);
+               g = Math.min(255, (Math.min(g, a) * 255 + (a >> 1)) / a);
+               b = Math.min(255, (Math.min(b, a) * 255 + (a >> 1)) / a);
+            }
+         } else {
+            a = 255;
+         }
+         dst[dstOffset + x] = (a << 24) | (r << 16) | (g << 8) | b;
+      }
+   }
+
+   private static void premultiply(int[] src, int offset, int[] dst, int width) {
+      for (int x = 0; x < width; x++) {
+         int color = src[offset + x];
+         int a = color >>> 24;
+         if (a == 255) {
+            dst[x] = color;
+         } else if (a == 0) {
+            dst[x] = 0;
+         } else {
+            int r = (((color >> 16) & 0xFF) * a + 127) / 255;
+            int g = (((color >> 8) & 0xFF) * a + 127) / 255;
+            int b = ((color & 0xFF) * a + 127) / 255;
+            dst[x] = (a << 24) | (r << 16) | (g << 8) | b;
+         }
+      }
+   }
+
+   private static int clamp(int value) {
+      value = (value + WEIGHT_ROUND) >> WEIGHT_BITS;
+      return value < 0 ? 0 : (value > 255 ? 255 : value);
+   }
+
+   /**
+    * Precomputed fixed point weights for one axis
+    */
+   private static final class Weights {
+
+      private final int[] start;
+      private final int[] count;
+      private final int[] values;
+      private final int   stride;
+
+      private Weights(int srcSize, int dstSize, Kernel kernel) {
+         double scale = (double) dstSize / srcSize;
+         double filterScale = scale < 1 ? 1 / scale : 1;
+         double support = kernel.support * filterScale;
+         stride = (int) Math.ceil(support) * 2 + 3;
+         start = new int[dstSize];
+         count = new int[dstSize];
+         values = new int[dstSize * stride];
+         double[] weights = new double[stride];
+         for (int i = 0; i < dstSize; i++) {
+            double center = (i + 0.5) / scale;
+            int left = Math.max(0, (int) Math.floor(center - support));
+            int right = Math.min(srcSize - 1, (int) Math.ceil(center + support));
+            int n = Math.min(stride, right - left + 1);
+            double sum = 0;
+            for (int k = 0; k < n; k++) {
+               weights[k] = kernel.weight((left + k + 0.5 - center) / filterScale);
+               sum = sum + weights[k];
+            }
+            if (sum == 0) {
+               // Degenerated case, take the nearest pixel
+               left = Math.min(srcSize - 1, Math.max(0, (int) center));
+               n = 1;
+               weights[0] = 1;
+               sum = 1;
+            }
+            int total = 0;
+            int maxIndex = 0;
+            int offset = i * stride;
+            for (int k = 0; k < n; k++) {
+               int value = (int) Math.round(weights[k] / sum * WEIGHT_ONE);
+               values[offset + k] = value;
+               total = total + value;
+               if (value > values[offset + maxIndex]) {
+                  maxIndex = k;
+               }
+            }
+            // Put the rounding error to the biggest weight, so the sum is exactly one
+            values[offset + maxIndex] += WEIGHT_ONE - total;
+            start[i] = left;
+            count[i] = n;
+         }
+      }
+
+   }
+
+}
@@ -0,0 +1,377 @@
+/*******************************************************************************
+ * Copyright (c) 2014 Alexandr Tsvetkov.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the The BSD 3-Clause License
+ * which accompanies this distribution, and is available at
+ * http://opensource.org/licenses/BSD-3-Clause
+ *
+ * Contributors:
+ *     Alexandr Tsvetkov - initial API and implementation
+ *
+ * Project:
+ *     TAO Bitmap Utils
+ *
+ * File name:
+ *     BitmapScheduler.java
+ *
+ * License agreement:
+ *
+ * 1. This code is published AS IS. Author is not responsible for any damage that can be
+ *    caused by any application that uses this code.
+ * 2. Author does not give a garantee, that this code is error free.
+ * 3. This code can be used in NON-COMMERCIAL applications AS IS without any special
+ *    permission from author.
+ * 4. This code can be modified without any special permission from author IF AND ONLY IF
+ *    this license agreement will remain unchanged.
+ * 5. SPECIAL PERMISSION for this code usage in COMMERCIAL application SHOULD be obtained
+ *    from author.
+ ******************************************************************************/
+package ua.at.tsvetkov.bitmap;
+
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.Set;
+import java.util.WeakHashMap;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import ua.at.tsvetkov.util.Log;
+import android.graphics.Bitmap;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Process;
+
+/**
+ * Priority-aware scheduler for {@link BitmapTransformer} jobs. Jobs with higher {@link Priority} are executed first, jobs with the same
+ * priority are executed in LIFO order, so the newest request (the last visible row of a scrolling list) is served first. A new job for the
+ * same target cancels the previous one, stale jobs can be cancelled by target or by tag.
+ *
+ * @author A.Tsvetkov 2014 http://tsvetkov.at.ua mailto:al@ukr.net
+ */
+public class BitmapScheduler {
+
+   private static final int               KEEP_ALIVE_SECONDS = 30;
+
+   private static BitmapScheduler         instance           = null;
+
+   private final ThreadPoolExecutor       executor;
+   private final Handler                  handler;
+   private final AtomicLong               sequence           = new AtomicLong();
+   private final Set<Job>                 jobs               = new LinkedHashSet<Job>();
+   private final WeakHashMap<Object, Job> targets            = new WeakHashMap<Object, Job>();
+
+   /**
+    * Job priority. Jobs for visible views are executed before prefetch jobs and prefetch jobs before background jobs.
+    */
+   public enum Priority {
+      VISIBLE, PREFETCH, BACKGROUND
+   }
+
+   /**
+    * Callback for transformed bitmap. Called in the main thread, is not called for cancelled jobs.
+    */
+   public interface Callback {
+
+      /**
+       * @param target job target or null
+       * @param bitmap transformed bitmap or null on error
+       */
+      void onTransformed(Object target, Bitmap bitmap);
+
+   }
+
+   /**
+    * Callback for two-phase transformation, see {@link BitmapTransformer#transform(BitmapTransformer.ProgressListener)}. The preview is
+    * delivered before {@link Callback#onTransformed(Object, Bitmap)}. Timings of the phases are available from the transformer.
+    */
+   public interface ProgressiveCallback extends Callback {
+
+      /**
+       * @param target job target or null
+       * @param preview low resolution bitmap
+       * @param timeToFirstPixel time from the start of transformation in ms
+       */
+      void onPreview(Object target, Bitmap preview, long timeToFirstPixel);
+
+   }
+
+   private BitmapScheduler(int threads) {
+      executor = new ThreadPoolExecutor(threads, threads, KEEP_ALIVE_SECONDS, TimeUnit.SECONDS, new PriorityBlockingQueue<Runnable>(), new WorkerFactory());
+      handler = new Handler(Looper.getMainLooper());
+   }
+
+   /**
+    * Return the default scheduler with one worker thread per CPU core.
+    *
+    * @return
+    */
+   public static synchronized BitmapScheduler getInstance() {
+      if (instance == null) {
+         instance = new BitmapScheduler(Math.max(2, Runtime.getRuntime().availableProcessors()));
+      }
+      return instance;
+   }
+
+   /**
+    * Submit the transformation job. If a job for the same target is present, it will be cancelled.
+    *
+    * @param transformer configured transformer
+    * @param priority job priority
+    * @param target the object (usually a View) which will receive the bitmap, may be null. Target is weakly referenced.
+    * @param tag the tag for group cancellation, may be null
+    * @param callback result callback, may be null
+    * @return submitted transformer
+    */
+   public BitmapTransformer submit(BitmapTransformer transformer, Priority priority, Object target, Object tag, Callback callback) {
+      if (transformer == null || priority == null) {
+         throw new IllegalArgumentException("Transformer and priority must be not null.");
+      }
+      Job job = new Job(transformer, priority, target, tag, callback, sequence.incrementAndGet());
+      synchronized (jobs) {
+         if (target != null) {
+            Job previous = targets.put(target, job);
+            if (previous != null) {
+               cancelJob(previous);
+            }
+         }
+         jobs.add(job);
+      }
+      executor.execute(job);
+      return transformer;
+   }
+
+   /**
+    * Submit the transformation job without target and tag.
+    *
+    * @param transformer
+    * @param priority
+    * @param callback
+    * @return submitted transformer
+    */
+   public BitmapTransformer submit(BitmapTransformer transformer, Priority priority, Callback callback) {
+      return submit(transformer, priority, null, null, callback);
+   }
+
+   /**
+    * Change the priority of pending job for the target, for example when the prefetched row becomes visible.
+    *
+    * @param target
+    * @param priority
+    * @return true if pending job was found
+    */
+   public boolean setPriority(Object target, Priority priority) {
+      Job job;
+      synchronized (jobs) {
+         job = targets.get(target);
+      }
+      if (job == null || !executor.remove(job)) {
+         return false;
+      }
+      job.priority = priority;
+      executor.execute(job);
+      return true;
+   }
+
+   /**
+    * Cancel the job for the given target.
+    *
+    * @param target
+    * @return true if job was found
+    */
+   public boolean cancel(Object target) {
+      synchronized (jobs) {
+         Job job = targets.remove(target);
+         if (job != null) {
+            cancelJob(job);
+            return true;
+         }
+      }
+      return false;
+   }
+
+   /**
+    * Cancel all jobs with the given tag.
+    *
+    * @param tag
+    * @return count of cancelled jobs
+    */
+   public int cancelByTag(Object tag) {
+      int count = 0;
+      synchronized (jobs) {
+         for (Job job : new ArrayList<Job>(jobs)) {
+            if (tag == null ? job.tag == null : tag.equals(job.tag)) {
+               cancelJob(job);
+               count++;
+            }
+         }
+      }
+      return count;
+   }
+
+   /**
+    * Cancel all jobs.
+    */
+   public void cancelAll() {
+      synchronized (jobs) {
+         for (Job job : new ArrayList<Job>(jobs)) {
+            cancelJob(job);
+         }
+         targets.clear();
+      }
+   }
+
+   /**
+    * Return count of pending and running jobs.
+    *
+    * @return
+    */
+   public int getJobsCount() {
+      synchronized (jobs) {
+         return jobs.size();
+      }
+   }
+
+   // ************************* Private methods ******************************
+
+   private void cancelJob(Job job) {
+      job.transformer.cancel();
+      executor.remove(job);
+      removeJob(job);
+   }
+
+   private void finishJob(Job job) {
+      synchronized (jobs) {
+         removeJob(job);
+      }
+   }
+
+   private void removeJob(Job job) {
+      jobs.remove(job);
+      Object target = job.getTarget();
+      if (target != null && targets.get(target) == job) {
+         targets.remove(target);
+      }
+   }
+
+   private final class Job implements Runnable, Comparable<Job> {
+
+      private final BitmapTransformer     transformer;
+      private final WeakReference<Object> target;
+      private final Object                tag;
+      private final Callback              callback;
+      private final long                  order;
+      private volatile Priority           priority;
+
+      private Job(BitmapTransformer transformer, Priority priority, Object target, Object tag, Callback callback, long order) {
+         this.transformer = transformer;
+         this.priority = priority;
+         this.target = target == null ? null : new WeakReference<Object>(target);
+         this.tag = tag;
+         this.callback = callback;
+         this.order = order;
+      }
+
+      private Object getTarget() {
+         return target == null ? null : target.get();
+      }
+
+      @Override
+      public void run() {
+         if (transformer.isCancelled() || (target != null && target.get() == null)) {
+            finishJob(this);
+            return;
+         }
+         Bitmap result = null;
+         try {
+            if (callback instanceof ProgressiveCallback) {
+               result = transformer.transform(new PreviewPoster((ProgressiveCallback) callback));
+            } else {
+               result = transformer.transform();
+            }
+         } catch (Exception e) {
+            Log.e("Can't transform bitmap", e);
+         }
+         finishJob(this);
+         if (transformer.isCancelled() || callback == null) {
+            return;
+         }
+         final Bitmap bitmap = result;
+         handler.post(new Runnable() {
+
+            @Override
+            public void run() {
+               if (!transformer.isCancelled()) {
+                  callback.onTransformed(getTarget(), bitmap);
+               }
+            }
+         });
+      }
+
+      /**
+       * Posts the preview to the main thread, the final result is posted by the job
+       */
+      private final class PreviewPoster implements BitmapTransformer.ProgressListener {
+
+         private final ProgressiveCallback callback;
+
+         private PreviewPoster(ProgressiveCallback callback) {
+            this.callback = callback;
+         }
+
+         @Override
+         public void onPreview(final Bitmap preview, final long timeToFirstPixel) {
+            handler.post(new Runnable() {
+
+               @Override
+               public void run() {
+                  if (!transformer.isCancelled()) {
+                     callback.onPreview(getTarget(), preview, timeToFirstPixel);
+                  }
+               }
+            });
+         }
+
+         @Override
+         public void onFinal(Bitmap bitmap, long timeToFinal) {
+            // Delivered by the job
+         }
+
+      }
+
+      @Override
+      public int compareTo(Job another) {
+         int result = priority.ordinal() - another.priority.ordinal();
+         if (result != 0) {
+            return result;
+         }
+         // LIFO within the same priority
+         return order > another.order ? -1 : (order < another.order ? 1 : 0);
+      }
+
+   }
+
+   private static final class WorkerFactory implements ThreadFactory {
+
+      private final AtomicInteger count = new AtomicInteger();
+
+      @Override
+      public Thread newThread(final Runnable runnable) {
+         Thread thread = new Thread(new Runnable() {
+
+            @Override
+            public void run() {
+               Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+               runnable.run();
+            }
+         }, "BitmapScheduler #" + count.incrementAndGet());
+         return thread;
+      }
+
+   }
+
+}
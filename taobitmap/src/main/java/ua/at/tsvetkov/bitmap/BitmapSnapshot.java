@@ -0,0 +1,161 @@
+/*******************************************************************************
+ * Copyright (c) 2014 Alexandr Tsvetkov.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the The BSD 3-Clause License
+ * which accompanies this distribution, and is available at
+ * http://opensource.org/licenses/BSD-3-Clause
+ *
+ * Contributors:
+ *     Alexandr Tsvetkov - initial API and implementation
+ *
+ * Project:
+ *     TAO Bitmap Utils
+ *
+ * File name:
+ *     BitmapSnapshot.java
+ *
+ * License agreement:
+ *
+ * 1. This code is published AS IS. Author is not responsible for any damage that can be
+ *    caused by any application that uses this code.
+ * 2. Author does not give a garantee, that this code is error free.
+ * 3. This code can be used in NON-COMMERCIAL applications AS IS without any special
+ *    permission from author.
+ * 4. This code can be modified without any special permission from author IF AND ONLY IF
+ *    this license agreement will remain unchanged.
+ * 5. SPECIAL PERMISSION for this code usage in COMMERCIAL application SHOULD be obtained
+ *    from author.
+ ******************************************************************************/
+package ua.at.tsvetkov.bitmap;
+
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.PorterDuff;
+import android.graphics.Rect;
+import android.view.View;
+
+/**
+ * Snapshot session of the view for live previews. The bitmap and the canvas are kept between the snapshots and reused while the size of
+ * the view is unchanged, and only the dirty region is redrawn. The snapshot may be downscaled, so a preview of half size draws a quarter of
+ * the pixels. The returned bitmap is owned by the session and is overwritten by the next snapshot. Not thread safe, use it on the UI
+ * thread. Created by {@link BitmapConverter#createSnapshotSession(View, float)}.
+ *
+ * @author A.Tsvetkov 2014 http://tsvetkov.at.ua mailto:al@ukr.net
+ */
+public class BitmapSnapshot {
+
+   private final View  view;
+   private final float scale;
+   private final Rect  area = new Rect();
+   private Bitmap      bitmap;
+   private Canvas      canvas;
+   private int         viewWidth;
+   private int         viewHeight;
+
+   /**
+    * @param view
+    * @param scale scale of the snapshot, 0 < scale <= 1
+    */
+   public BitmapSnapshot(View view, float scale) {
+      if (scale <= 0 || scale > 1) {
+         throw new IllegalArgumentException("Wrong scale " + scale + ", must be 0 < scale <= 1");
+      }
+      this.view = view;
+      this.scale = scale;
+   }
+
+   /**
+    * Redraw the whole view.
+    *
+    * @return the snapshot bitmap, owned by the session
+    */
+   public Bitmap snapshot() {
+      return snapshot(null);
+   }
+
+   /**
+    * Redraw only the dirty region of the view. The whole view is redrawn if its size was changed.
+    *
+    * @param dirty dirty region in the view coordinates or null for the whole view
+    * @return the snapshot bitmap, owned by the session
+    */
+   public Bitmap snapshot(Rect dirty) {
+      if (!prepare()) {
+         dirty = null;
+      }
+      if (dirty == null) {
+         area.set(0, 0, bitmap.getWidth(), bitmap.getHeight());
+      } else {
+         // Round out to whole destination pixels
+         area.set((int) Math.floor(dirty.left * scale), (int) Math.floor(dirty.top * scale), (int) Math.ceil(dirty.right * scale),
+               (int) Math.ceil(dirty.bottom * scale));
+         if (!area.intersect(0, 0, bitmap.getWidth(), bitmap.getHeight())) {
+            return bitmap;
+         }
+      }
+      int count = canvas.save();
+      canvas.clipRect(area);
+      canvas.drawColor(Color.TRANSPARENT, PorterDuff.Mode.CLEAR);
+      if (scale != 1) {
+         canvas.scale(scale, scale);
+      }
+      view.draw(canvas);
+      canvas.restoreToCount(count);
+      return bitmap;
+   }
+
+   /**
+    * Return the last snapshot or null
+    *
+    * @return
+    */
+   public Bitmap getBitmap() {
+      return bitmap;
+   }
+
+   /**
+    * Recycle the bitmap. The session may be used again after release.
+    */
+   public void release() {
+      if (bitmap != null) {
+         bitmap.recycle();
+         bitmap = null;
+      }
+      canvas = null;
+      viewWidth = 0;
+      viewHeight = 0;
+   }
+
+   // ************************* Private methods ******************************
+
+   /**
+    * Layout the view if needed and create the bitmap for its size. Return true if the previous bitmap is reused.
+    */
+   private boolean prepare() {
+      int width = view.getWidth();
+      int height = view.getHeight();
+      if (width <= 0 || height <= 0) {
+         int spec = View.MeasureSpec.makeMeasureSpec(0, View.MeasureSpec.UNSPECIFIED);
+         view.measure(spec, spec);
+         width = view.getMeasuredWidth();
+         height = view.getMeasuredHeight();
+         view.layout(0, 0, width, height);
+      }
+      if (width <= 0 || height <= 0) {
+         throw new IllegalStateException("View has no size");
+      }
+      if (bitmap != null && width == viewWidth && height == viewHeight) {
+         return true;
+      }
+      if (bitmap != null) {
+         bitmap.recycle();
+      }
+      viewWidth = width;
+      viewHeight = height;
+      bitmap = Bitmap.createBitmap(Math.max(1, Math.round(width * scale)), Math.max(1, Math.round(height * scale)), Bitmap.Config.ARGB_8888);
+      canvas = new Canvas(bitmap);
+      return false;
+   }
+
+}
@@ -0,0 +1,543 @@
+/*******************************************************************************
+ * Copyright (c) 2014 Alexandr Tsvetkov.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the The BSD 3-Clause License
+ * which accompanies this distribution, and is available at
+ * http://opensource.org/licenses/BSD-3-Clause
+ *
+ * Contributors:
+ *     Alexandr Tsvetkov - initial API and implementation
+ *
+ * Project:
+ *     TAO Bitmap Utils
+ *
+ * File name:
+ *     BitmapTilePyramid.java
+ *
+ * License agreement:
+ *
+ * 1. This code is published AS IS. Author is not responsible for any damage that can be
+ *    caused by any application that uses this code.
+ * 2. Author does not give a garantee, that this code is error free.
+ * 3. This code can be used in NON-COMMERCIAL applications AS IS without any special
+ *    permission from author.
+ * 4. This code can be modified without any special permission from author IF AND ONLY IF
+ *    this license agreement will remain unchanged.
+ * 5. SPECIAL PERMISSION for this code usage in COMMERCIAL application SHOULD be obtained
+ *    from author.
+ ******************************************************************************/
+package ua.at.tsvetkov.bitmap;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import ua.at.tsvetkov.io.FileIO;
+import ua.at.tsvetkov.security.Md5;
+import ua.at.tsvetkov.util.Log;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.BitmapRegionDecoder;
+import android.graphics.Canvas;
+import android.graphics.Paint;
+import android.graphics.Rect;
+import android.os.Build;
+
+/**
+ * Pyramid of fixed size tiles of the image for zoomable viewers. Level 0 has the full resolution and every next level is two times
+ * smaller, up to the level of one tile. The pyramid is built in one pass over the source: every row of tiles of level 0 is decoded by
+ * {@link BitmapRegionDecoder} as one full width strip, and every finished row of a level is downscaled into the row of the next level, so
+ * only one row of tiles per level is kept in memory. Tiles are stored in the cache directory with the level/x/y in their names and are added to the
+ * {@link BitmapCacheIndex}. The viewer asks for the tiles visible in the viewport at the current scale and loads only them. Needs API 10.
+ *
+ * @author A.Tsvetkov 2014 http://tsvetkov.at.ua mailto:al@ukr.net
+ */
+public class BitmapTilePyramid {
+
+   public static final int DEFAULT_TILE_SIZE = 256;
+
+   private static final int MAGIC             = 0x54414F50; // "TAOP"
+   private static final int VERSION           = 1;
+   private static final int JPEG_QUALITY      = 90;
+
+   private final String     name;
+   private final int        width;
+   private final int        height;
+   private final int        tileSize;
+   private final int        levels;
+   private final boolean    isPng;
+
+   /**
+    * Tile of the pyramid
+    */
+   public static final class Tile {
+
+      private final int    level;
+      private final int    x;
+      private final int    y;
+      private final Rect   bounds;
+      private final String fileName;
+
+      private Tile(int level, int x, int y, Rect bounds, String fileName) {
+         this.level = level;
+         this.x = x;
+         this.y = y;
+         this.bounds = bounds;
+         this.fileName = fileName;
+      }
+
+      public int getLevel() {
+         return level;
+      }
+
+      public int getX() {
+         return x;
+      }
+
+      public int getY() {
+         return y;
+      }
+
+      /**
+       * @return area of the tile in the coordinates of the full image
+       */
+      public Rect getBounds() {
+         return bounds;
+      }
+
+      /**
+       * @return tile file name, it is also the key for memory caches
+       */
+      public String getFileName() {
+         return fileName;
+      }
+
+   }
+
+   private BitmapTilePyramid(String name, int width, int height, int tileSize, boolean isPng) {
+      this.name = name;
+      this.width = width;
+      this.height = height;
+      this.tileSize = tileSize;
+      this.isPng = isPng;
+      int count = 1;
+      while (getLevelSize(width, count - 1) > tileSize || getLevelSize(height, count - 1) > tileSize) {
+         count++;
+      }
+      this.levels = count;
+   }
+
+   /**
+    * Open the pyramid of the image file with {@link #DEFAULT_TILE_SIZE}, it is built if it is not present.
+    *
+    * @param fileName
+    * @return pyramid or null if the image can't be decoded
+    */
+   public static BitmapTilePyramid build(String fileName) {
+      return build(fileName, DEFAULT_TILE_SIZE);
+   }
+
+   /**
+    * Open the pyramid of the image file, it is built if it is not present. Call it in background.
+    *
+    * @param fileName
+    * @param tileSize even size of the tile side
+    * @return pyramid or null if the image can't be decoded
+    */
+   public static BitmapTilePyramid build(String fileName, int tileSize) {
+      if (tileSize < 2 || tileSize % 2 != 0) {
+         throw new IllegalArgumentException("Wrong tile size " + tileSize + ", must be even");
+      }
+      String name = getName(fileName, tileSize);
+      BitmapTilePyramid pyramid = open(name);
+      if (pyramid != null) {
+         if (pyramid.isComplete()) {
+            return pyramid;
+         }
+         // Some tiles were evicted from the cache, the pyramid is built again
+         pyramid.delete();
+         pyramid = null;
+      }
+      if (Build.VERSION.SDK_INT < Build.VERSION_CODES.GINGERBREAD_MR1) {
+         Log.e("Tile pyramid needs BitmapRegionDecoder, API 10");
+         return null;
+      }
+      BitmapRegionDecoder decoder = null;
+      try {
+         decoder = BitmapRegionDecoder.newInstance(fileName, false);
+         BitmapFactory.Options options = new BitmapFactory.Options();
+         options.inJustDecodeBounds = true;
+         BitmapFactory.decodeFile(fileName, options);
+         boolean isPng = !"image/jpeg".equals(options.outMimeType);
+         pyramid = new BitmapTilePyramid(name, decoder.getWidth(), decoder.getHeight(), tileSize, isPng);
+         if (!pyramid.createTiles(decoder) || !pyramid.saveManifest()) {
+            pyramid.delete();
+            return null;
+         }
+         return pyramid;
+      } catch (Exception e) {
+         Log.e("Can't build tile pyramid of " + fileName, e);
+         if (pyramid != null) {
+            pyramid.delete();
+         }
+         return null;
+      } finally {
+         if (decoder != null) {
+            decoder.recycle();
+         }
+      }
+   }
+
+   /**
+    * Return width of the full image
+    *
+    * @return
+    */
+   public int getWidth() {
+      return width;
+   }
+
+   /**
+    * Return height of the full image
+    *
+    * @return
+    */
+   public int getHeight() {
+      return height;
+   }
+
+   public int getTileSize() {
+      return tileSize;
+   }
+
+   /**
+    * Return count of levels, the last level is one tile
+    *
+    * @return
+    */
+   public int getLevelsCount() {
+      return levels;
+   }
+
+   /**
+    * Return the smallest level with enough resolution for the scale
+    *
+    * @param scale screen pixels per image pixel
+    * @return
+    */
+   public int getLevel(float scale) {
+      int level = 0;
+      while (level + 1 < levels && 1f / (1 << (level + 1)) >= scale) {
+         level++;
+      }
+      return level;
+   }
+
+   /**
+    * Return tiles which cover the viewport at the scale
+    *
+    * @param viewport visible area in the coordinates of the full image
+    * @param scale screen pixels per image pixel
+    * @return
+    */
+   public List<Tile> getTiles(Rect viewport, float scale) {
+      int level = getLevel(scale);
+      int size = tileSize << level;
+      List<Tile> tiles = new ArrayList<Tile>();
+      int left = Math.max(0, viewport.left);
+      int top = Math.max(0, viewport.top);
+      int right = Math.min(width, viewport.right);
+      int bottom = Math.min(height, viewport.bottom);
+      for (int y = top / size; y * size < bottom; y++) {
+         for (int x = left / size; x * size < right; x++) {
+            tiles.add(getTile(level, x, y));
+         }
+      }
+      return tiles;
+   }
+
+   /**
+    * Return the tile
+    *
+    * @param level
+    * @param x column of the tile in the level
+    * @param y row of the tile in the level
+    * @return
+    */
+   public Tile getTile(int level, int x, int y) {
+      int size = tileSize << level;
+      Rect bounds = new Rect(x * size, y * size, Math.min(width, (x + 1) * size), Math.min(height, (y + 1) * size));
+      return new Tile(level, x, y, bounds, getTileFileName(level, x, y));
+   }
+
+   /**
+    * Decode the tile
+    *
+    * @param tile
+    * @return bitmap or null if the tile was removed from the cache
+    */
+   public Bitmap loadTile(Tile tile) {
+      BitmapFactory.Options options = new BitmapFactory.Options();
+      if (!isPng) {
+         options.inPreferredConfig = Bitmap.Config.RGB_565;
+      }
+      Bitmap bitmap = BitmapFactory.decodeFile(tile.fileName, options);
+      if (bitmap == null) {
+         Log.w("Can't load tile " + tile.fileName);
+         return null;
+      }
+      BitmapCacheIndex.getInstance().touch(tile.fileName);
+      return bitmap;
+   }
+
+   /**
+    * Delete all files of the pyramid
+    */
+   public void delete() {
+      BitmapCacheIndex index = BitmapCacheIndex.getInstance();
+      new File(FileIO.getCacheFileName(name + ".pyr")).delete();
+      for (int level = 0; level < levels; level++) {
+         int columns = getCount(getLevelSize(width, level));
+         int rows = getCount(getLevelSize(height, level));
+         for (int y = 0; y < rows; y++) {
+            for (int x = 0; x < columns; x++) {
+               String fileName = getTileFileName(level, x, y);
+               new File(fileName).delete();
+               index.remove(fileName);
+            }
+         }
+      }
+   }
+
+   // ************************* Private methods ******************************
+
+   /**
+    * The name depends on the full path, size and modification time of the image, so a changed or another file with the same name gets
+    * its own pyramid
+    */
+   private static String getName(String fileName, int tileSize) {
+      File file = new File(fileName);
+      return Md5.getHashString(file.getAbsolutePath() + "|" + file.length() + "|" + file.lastModified()) + "_t" + tileSize;
+   }
+
+   /**
+    * Return true if all tiles are still in the {@link BitmapCacheIndex}
+    */
+   private boolean isComplete() {
+      BitmapCacheIndex index = BitmapCacheIndex.getInstance();
+      for (int level = 0; level < levels; level++) {
+         int columns = getCount(getLevelSize(width, level));
+         int rows = getCount(getLevelSize(height, level));
+         for (int y = 0; y < rows; y++) {
+            for (int x = 0; x < columns; x++) {
+               if (!index.contains(getTileFileName(level, x, y))) {
+                  return false;
+               }
+            }
+         }
+      }
+      return true;
+   }
+
+   private static BitmapTilePyramid open(String name) {
+      File file = new File(FileIO.getCacheFileName(name + ".pyr"));
+      if (!file.exists()) {
+         return null;
+      }
+      DataInputStream in = null;
+      try {
+         in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+         if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+            return null;
+         }
+         int width = in.readInt();
+         int height = in.readInt();
+         int tileSize = in.readInt();
+         boolean isPng = in.readBoolean();
+         return new BitmapTilePyramid(name, width, height, tileSize, isPng);
+      } catch (IOException e) {
+         Log.e("Can't read tile pyramid " + file, e);
+         return null;
+      } finally {
+         if (in != null) {
+            try {
+               in.close();
+            } catch (IOException e) {
+               Log.e(e);
+            }
+         }
+      }
+   }
+
+   /**
+    * The manifest is written after all tiles, so its presence means the complete pyramid
+    */
+   private boolean saveManifest() {
+      String fileName = FileIO.getCacheFileName(name + ".pyr");
+      DataOutputStream out = null;
+      try {
+         out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(fileName)));
+         out.writeInt(MAGIC);
+         out.writeInt(VERSION);
+         out.writeInt(width);
+         out.writeInt(height);
+         out.writeInt(tileSize);
+         out.writeBoolean(isPng);
+         out.close();
+         out = null;
+         return true;
+      } catch (IOException e) {
+         Log.e("Can't save tile pyramid " + fileName, e);
+         return false;
+      } finally {
+         if (out != null) {
+            try {
+               out.close();
+            } catch (IOException e) {
+               Log.e(e);
+            }
+         }
+      }
+   }
+
+   private boolean createTiles(BitmapRegionDecoder decoder) {
+      // Rows of the levels above 0 are collected from two rows of the previous level
+      Bitmap[] rows = new Bitmap[levels];
+      Canvas canvas = new Canvas();
+      Paint paint = new Paint(Paint.FILTER_BITMAP_FLAG);
+      Rect src = new Rect();
+      Rect dst = new Rect();
+      BitmapFactory.Options options = new BitmapFactory.Options();
+      options.inPreferredConfig = isPng ? Bitmap.Config.ARGB_8888 : Bitmap.Config.RGB_565;
+      Bitmap.Config config = options.inPreferredConfig;
+      try {
+         for (int level = 1; level < levels; level++) {
+            rows[level] = Bitmap.createBitmap(getLevelSize(width, level), Math.min(tileSize, getLevelSize(height, level)), config);
+         }
+         int rowsCount = getCount(height);
+         for (int y = 0; y < rowsCount; y++) {
+            // One decode per row, the region decoder of some formats reads the image from the start for every region
+            int rowHeight = Math.min(tileSize, height - y * tileSize);
+            src.set(0, y * tileSize, width, y * tileSize + rowHeight);
+            Bitmap strip = decoder.decodeRegion(src, options);
+            if (strip == null) {
+               return false;
+            }
+            boolean isSaved = saveRowTiles(strip, 0, y, width, rowHeight);
+            if (isSaved && levels > 1) {
+               int top = (y % 2) * tileSize / 2;
+               dst.set(0, top, getLevelSize(width, 1), top + (rowHeight + 1) / 2);
+               canvas.setBitmap(rows[1]);
+               canvas.drawBitmap(strip, null, dst, paint);
+            }
+            strip.recycle();
+            if (!isSaved) {
+               return false;
+            }
+            if (levels > 1 && (y % 2 == 1 || y == rowsCount - 1) && !flushRow(rows, 1, y / 2, canvas, paint, src, dst)) {
+               return false;
+            }
+         }
+         return true;
+      } finally {
+         for (Bitmap row : rows) {
+            if (row != null) {
+               row.recycle();
+            }
+         }
+      }
+   }
+
+   /**
+    * Save tiles of the finished row and downscale it to the row of the next level
+    */
+   private boolean flushRow(Bitmap[] rows, int level, int y, Canvas canvas, Paint paint, Rect src, Rect dst) {
+      Bitmap row = rows[level];
+      int levelWidth = getLevelSize(width, level);
+      int levelHeight = getLevelSize(height, level);
+      int rowHeight = Math.min(tileSize, levelHeight - y * tileSize);
+      if (!saveRowTiles(row, level, y, levelWidth, rowHeight)) {
+         return false;
+      }
+      if (level + 1 < levels) {
+         int top = (y % 2) * tileSize / 2;
+         src.set(0, 0, levelWidth, rowHeight);
+         dst.set(0, top, getLevelSize(width, level + 1), top + (rowHeight + 1) / 2);
+         canvas.setBitmap(rows[level + 1]);
+         canvas.drawBitmap(row, src, dst, paint);
+         int rowsCount = getCount(levelHeight);
+         if ((y % 2 == 1 || y == rowsCount - 1) && !flushRow(rows, level + 1, y / 2, canvas, paint, src, dst)) {
+            return false;
+         }
+      }
+      row.eraseColor(0);
+      return true;
+   }
+
+   /**
+    * Cut the row of the level to tiles and save them
+    */
+   private boolean saveRowTiles(Bitmap row, int level, int y, int levelWidth, int rowHeight) {
+      for (int x = 0; x * tileSize < levelWidth; x++) {
+         int tileWidth = Math.min(tileSize, levelWidth - x * tileSize);
+         Bitmap tile = Bitmap.createBitmap(row, x * tileSize, 0, tileWidth, rowHeight);
+         boolean isSaved = saveTile(tile, level, x, y);
+         if (tile != row) {
+            tile.recycle();
+         }
+         if (!isSaved) {
+            return false;
+         }
+      }
+      return true;
+   }
+
+   private boolean saveTile(Bitmap tile, int level, int x, int y) {
+      String fileName = getTileFileName(level, x, y);
+      OutputStream out = null;
+      try {
+         out = new BufferedOutputStream(new FileOutputStream(fileName));
+         if (!tile.compress(isPng ? Bitmap.CompressFormat.PNG : Bitmap.CompressFormat.JPEG, JPEG_QUALITY, out)) {
+            Log.e("Can't compress tile " + fileName);
+            return false;
+         }
+         out.close();
+         out = null;
+         BitmapCacheIndex.getInstance().put(fileName, new File(fileName).length(), tile.getWidth(), tile.getHeight(),
+               isPng ? "image/png" : "image/jpeg");
+         return true;
+      } catch (IOException e) {
+         Log.e("Can't save tile " + fileName, e);
+         return false;
+      } finally {
+         if (out != null) {
+            try {
+               out.close();
+            } catch (IOException e) {
+               Log.e(e);
+            }
+         }
+      }
+   }
+
+   private String getTileFileName(int level, int x, int y) {
+      return FileIO.getCacheFileName(name + "_" + level + "_" + x + "_" + y + (isPng ? ".png" : ".jpg"));
+   }
+
+   private int getCount(int size) {
+      return (size + tileSize - 1) / tileSize;
+   }
+
+   private static int getLevelSize(int size, int level) {
+      return Math.max(1, (size + (1 << level) - 1) >> level);
+   }
+
+}
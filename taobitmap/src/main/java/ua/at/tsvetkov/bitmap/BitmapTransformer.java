@@ -22,10 +22,13 @@
  ******************************************************************************/
 package ua.at.tsvetkov.bitmap;
 
+import java.io.ByteArrayInputStream;
 import java.io.FileDescriptor;
 import java.io.FileInputStream;
+import java.io.IOException;
 import java.io.InputStream;
 
+import ua.at.tsvetkov.bitmap.BitmapResampler.Kernel;
 import ua.at.tsvetkov.util.Log;
 import android.content.Context;
 import android.graphics.Bitmap;
@@ -34,8 +37,9 @@ import android.graphics.BitmapFactory.Options;
 import android.graphics.Canvas;
 import android.graphics.Matrix;
 import android.graphics.PointF;
+import android.graphics.Rect;
 import android.graphics.RectF;
-import android.util.Base64;
+import android.os.SystemClock;
 
 /**
  * Transform the new Bitmap with given parameters.
@@ -45,9 +49,13 @@ import android.util.Base64;
 public class BitmapTransformer {
 
    private static final int NO_RESOURCE      = -1;
+   /** The preview is this times smaller than the result */
+   private static final int PREVIEW_DIVIDER  = 8;
    // Bitmap data source
    private Bitmap           bitmap           = null;
+   private BitmapHandle     sourceHandle     = null;
    private byte[]           data             = null;
+   private String           encodedString    = null;
    private String           fileName         = null;
    private String           assetsFileName   = null;
    private int              resourceId       = NO_RESOURCE;
@@ -56,6 +64,7 @@ public class BitmapTransformer {
 
    // Bitmap modifiers
    private Options          options          = null;
+   private Options          probe            = null;
 
    private float            rotateAngel      = 0;
    private boolean          isFlipHorizontal = false;
@@ -67,6 +76,14 @@ public class BitmapTransformer {
    private float            height           = -1;
    private boolean          isNeedToResize   = true;
    private boolean          isUseFilter      = true;
+   private Kernel           kernel           = null;
+   private boolean          isParallel       = true;
+   private boolean          isUseExif        = false;
+   private BitmapExif       exif             = null;
+   private boolean          isUseThumbnail   = false;
+   private boolean          isUseRawCache    = false;
+   private boolean          isRawCompressed  = false;
+   private boolean          isDeduplicate    = false;
 
    private Context          context;
    private String           cacheFileName    = null;
@@ -76,6 +93,33 @@ public class BitmapTransformer {
    private float            cropWidth;
    private float            cropHeight;
 
+   private volatile boolean isCancelled      = false;
+   private long             timeToFirstPixel = -1;
+   private long             timeToFinal      = -1;
+
+   /**
+    * Listener of two-phase transformation, see {@link BitmapTransformer#transform(ProgressListener)}
+    */
+   public interface ProgressListener {
+
+      /**
+       * Called when the preview is ready
+       * 
+       * @param preview transformed low resolution bitmap
+       * @param timeToFirstPixel time from the start of transformation in ms
+       */
+      void onPreview(Bitmap preview, long timeToFirstPixel);
+
+      /**
+       * Called when the full result is ready
+       * 
+       * @param bitmap transformed bitmap
+       * @param timeToFinal time from the start of transformation in ms
+       */
+      void onFinal(Bitmap bitmap, long timeToFinal);
+
+   }
+
    private BitmapTransformer(Context context) {
       this.context = context;
    }
@@ -90,15 +134,240 @@ public class BitmapTransformer {
     * @return Bitmap object
     */
    public Bitmap transform() {
+      return transform(null);
+   }
+
+   /**
+    * Transform the new Bitmap with given parameters in two phases. At first a heavily sampled preview (or the thumbnail embedded in EXIF) is
+    * decoded and transformed without filtering and is passed to the listener, then the full result is made. The preview reuses the header
+    * probe and the cache file of the full result. Works only with cache file, otherwise only the full result is passed.
+    * 
+    * @param listener listener of the phases, called in the calling thread, or null
+    * @return Bitmap object
+    */
+   public Bitmap transform(ProgressListener listener) {
+      try {
+         return transformSource(listener);
+      } finally {
+         releaseSource();
+      }
+   }
+
+   /**
+    * Transform the new Bitmap with given parameters and return its handle. The handle of the source is returned with a new reference if the
+    * source is not changed, otherwise the result is owned by the handle and goes to the shared {@link BitmapPool} when the last holder
+    * releases it. The reference to the source handle held by the transformer is released.
+    * 
+    * @return handle with one reference, held by the caller, or null
+    */
+   public BitmapHandle transformHandle() {
+      Bitmap source = bitmap;
+      try {
+         Bitmap result = transformSource(null);
+         if (result == null) {
+            return null;
+         }
+         if (result == source) {
+            return sourceHandle != null ? sourceHandle.acquire() : BitmapHandle.wrap(result);
+         }
+         return BitmapHandle.obtain(result, null);
+      } finally {
+         releaseSource();
+      }
+   }
+
+   /**
+    * Open the source as animated GIF or WebP. Frames are decoded one at a time to two pooled bitmaps, and the size, scaling, crop and flips
+    * are applied to every frame. Frames are scaled without filtering, rotation and EXIF orientation are not applied. Other images are
+    * returned as animation of one frame. The bitmap source is not supported. Close the animation when it is not needed.
+    * 
+    * @return animation or null
+    */
+   public BitmapAnimation transformAnimation() {
+      InputStream in = openSourceStream();
+      if (in == null) {
+         return null;
+      }
+      BitmapAnimation animation = BitmapAnimation.open(in, null);
+      if (animation == null) {
+         return null;
+      }
+      float width = this.width;
+      float height = this.height;
+      if (scaleX != 1 || scaleY != 1) {
+         width = animation.getCanvasWidth() * scaleX;
+         height = animation.getCanvasHeight() * scaleY;
+      } else if (width <= 0 || height <= 0) {
+         width = animation.getCanvasWidth();
+         height = animation.getCanvasHeight();
+      }
+      RectF crop = isNeedToCrop ? new RectF(cropLeft, cropTop, cropLeft + cropWidth, cropTop + cropHeight) : null;
+      animation.setOutput(width, height, crop, isFlipHorizontal, isFlipVertical);
+      return animation;
+   }
+
+   private Bitmap transformSource(ProgressListener listener) {
+      long start = SystemClock.uptimeMillis();
+      timeToFirstPixel = -1;
+      timeToFinal = -1;
       checkDataSource();
+      if (isCancelled) {
+         return null;
+      }
+      String rawCacheKey = getRawCacheKey(cacheFileName);
+      if (rawCacheKey != null) {
+         Bitmap cached = BitmapCaсheIO.loadRawCacheFile(rawCacheKey);
+         if (cached == null && isDeduplicate) {
+            cached = loadDuplicateRawCacheFile();
+         }
+         if (cached != null) {
+            bitmap = cached;
+            return deliverFinal(listener, start);
+         }
+      }
+      checkOrientation();
       checkScaling();
+      if (listener != null) {
+         Bitmap preview = createPreview();
+         if (isCancelled) {
+            return null;
+         }
+         if (preview != null) {
+            timeToFirstPixel = SystemClock.uptimeMillis() - start;
+            listener.onPreview(preview, timeToFirstPixel);
+         }
+      }
       prepareBitmap();
-      transformBitmap();
-      return bitmap;
+      if (isCancelled) {
+         return null;
+      }
+      bitmap = transformBitmap(bitmap, 1, 1, isUseFilter, isParallel);
+      if (isCancelled) {
+         return null;
+      }
+      if (rawCacheKey != null && bitmap != null) {
+         BitmapCaсheIO.saveRawCacheFile(rawCacheKey, bitmap, isRawCompressed);
+      }
+      return deliverFinal(listener, start);
+   }
+
+   /**
+    * Return time from the start of the last transformation to the preview in ms, or -1 if there was no preview.
+    * 
+    * @return
+    */
+   public long getTimeToFirstPixel() {
+      return timeToFirstPixel;
+   }
+
+   /**
+    * Return time from the start to the end of the last transformation in ms, or -1 if it was not finished.
+    * 
+    * @return
+    */
+   public long getTimeToFinal() {
+      return timeToFinal;
+   }
+
+   /**
+    * Cancel the transformation. Work is stopped between the transform stages, so {@link #transform()} will return null as soon as the
+    * current stage is finished.
+    */
+   public void cancel() {
+      isCancelled = true;
+   }
+
+   /**
+    * Return true if transformation was cancelled
+    * 
+    * @return
+    */
+   public boolean isCancelled() {
+      return isCancelled;
    }
 
    // ************************* Private transform methods ******************************
 
+   private InputStream openSourceStream() {
+      try {
+         if (data != null) {
+            return new ByteArrayInputStream(data);
+         } else if (encodedString != null) {
+            return CharSequenceInputStream.openBase64(encodedString);
+         } else if (fileName != null) {
+            return new FileInputStream(fileName);
+         } else if (assetsFileName != null) {
+            return context.getAssets().open(assetsFileName);
+         } else if (inputStream != null) {
+            return inputStream;
+         } else if (resourceId != NO_RESOURCE) {
+            return context.getResources().openRawResource(resourceId);
+         } else if (fileDescriptor != null) {
+            return new FileInputStream(fileDescriptor);
+         }
+      } catch (IOException e) {
+         Log.e("Can't open animation source", e);
+         return null;
+      }
+      Log.e("Animation source must be encoded image data");
+      return null;
+   }
+
+   private void releaseSource() {
+      if (sourceHandle != null) {
+         sourceHandle.release();
+         sourceHandle = null;
+      }
+   }
+
+   private Bitmap deliverFinal(ProgressListener listener, long start) {
+      timeToFinal = SystemClock.uptimeMillis() - start;
+      if (timeToFirstPixel < 0) {
+         timeToFirstPixel = timeToFinal;
+      }
+      if (listener != null && bitmap != null) {
+         listener.onFinal(bitmap, timeToFinal);
+      }
+      return bitmap;
+   }
+
+   /**
+    * Decode the embedded thumbnail or the heavily sampled image and transform it without filtering.
+    */
+   private Bitmap createPreview() {
+      if (cacheFileName == null || probe == null || probe.outWidth <= 0 || probe.outHeight <= 0) {
+         return null;
+      }
+      float previewWidth = Math.max(1, width / PREVIEW_DIVIDER);
+      float previewHeight = Math.max(1, height / PREVIEW_DIVIDER);
+      Bitmap preview = BitmapCaсheIO.decodeThumbnail(cacheFileName, probe, previewWidth, previewHeight);
+      if (preview == null) {
+         Options previewOptions = new Options();
+         previewOptions.outWidth = probe.outWidth;
+         previewOptions.outHeight = probe.outHeight;
+         previewOptions.inSampleSize = BitmapCaсheIO.calculateInSampleSize(previewOptions, previewWidth, previewHeight);
+         if ("image/jpeg".equals(probe.outMimeType)) {
+            previewOptions.inPreferredConfig = Bitmap.Config.RGB_565;
+         }
+         preview = BitmapFactory.decodeFile(cacheFileName, previewOptions);
+      }
+      if (preview == null || isCancelled) {
+         return null;
+      }
+      // The thumbnail may have slightly other proportions, so the factors differ. The crop is given for the oriented image.
+      float factorX = preview.getWidth() / Math.max(1, width);
+      float factorY = preview.getHeight() / Math.max(1, height);
+      if (exif != null && exif.isTransposed()) {
+         float tmp = factorX;
+         factorX = factorY;
+         factorY = tmp;
+      }
+      if (isNeedToCrop && (cropWidth * factorX < 1 || cropHeight * factorY < 1)) {
+         return null;
+      }
+      return transformBitmap(preview, factorX, factorY, false, false);
+   }
+
    private void checkDataSource() {
       if (data != null) { // Source is byte array
          if (isUseCacheFile) {
@@ -106,6 +375,12 @@ public class BitmapTransformer {
          } else {
             bitmap = BitmapFactory.decodeByteArray(data, 0, data.length, options);
          }
+      } else if (encodedString != null) { // Source is Base64-encoded data, decoded while it is read
+         if (isUseCacheFile) {
+            cacheFileName = BitmapCaсheIO.copyEncodedToCacheFile(encodedString);
+         } else {
+            bitmap = BitmapFactory.decodeStream(CharSequenceInputStream.openBase64(encodedString), null, options);
+         }
       } else if (fileName != null) { // Source is file
          if (isUseCacheFile) {
             cacheFileName = BitmapCaсheIO.copyToCaсheFile(fileName);
@@ -154,7 +429,12 @@ public class BitmapTransformer {
       } else if (bitmap != null) { // Source is bitmap
          if (isUseCacheFile) {
             try {
-               cacheFileName = BitmapCaсheIO.copyToCaсheFile(bitmap);
+               // The source is shared with the caller and is not recycled
+               BitmapHandle source = sourceHandle != null ? sourceHandle : BitmapHandle.wrap(bitmap);
+               cacheFileName = BitmapCaсheIO.copyToCaсheFile(source);
+               if (source != sourceHandle) {
+                  source.release();
+               }
             } catch (Exception e) {
                Log.e("Can't load from resource " + resourceId, e);
             }
@@ -164,17 +444,81 @@ public class BitmapTransformer {
       }
    }
 
+   /**
+    * Key of the raw cache file, it describes the source and all transformations
+    */
+   private String getRawCacheKey(String cacheFileName) {
+      if (!isUseRawCache || cacheFileName == null) {
+         return null;
+      }
+      StringBuilder key = new StringBuilder(cacheFileName);
+      key.append('|').append(width).append('x').append(height).append('|').append(scaleX).append('x').append(scaleY);
+      key.append('|').append(rotateAngel).append('|').append(isFlipHorizontal).append('|').append(isFlipVertical);
+      if (isNeedToCrop) {
+         key.append('|').append(cropLeft).append(',').append(cropTop).append(',').append(cropWidth).append(',').append(cropHeight);
+      }
+      key.append('|').append(isUseFilter).append('|').append(kernel).append('|').append(isUseExif).append('|').append(isUseThumbnail);
+      if (options != null) {
+         key.append('|').append(options.inPreferredConfig);
+      }
+      return key.toString();
+   }
+
+   /**
+    * Load the raw cache of a near duplicate source. The result of relative scaling depends on the source size, so only the explicit size is
+    * supported.
+    */
+   private Bitmap loadDuplicateRawCacheFile() {
+      if (scaleX != 1 || scaleY != 1 || width <= 0 || height <= 0) {
+         return null;
+      }
+      for (String duplicate : BitmapHashIndex.getInstance().findDuplicates(cacheFileName, BitmapHashIndex.DEFAULT_DISTANCE)) {
+         Bitmap cached = BitmapCaсheIO.loadRawCacheFile(getRawCacheKey(duplicate));
+         if (cached != null) {
+            return cached;
+         }
+      }
+      return null;
+   }
+
+   private void checkOrientation() {
+      if (!isUseExif) {
+         return;
+      }
+      String exifFileName = cacheFileName != null ? cacheFileName : fileName;
+      if (exifFileName != null) {
+         exif = BitmapExif.read(exifFileName);
+         if (exif.getOrientation() == BitmapExif.ORIENTATION_NORMAL) {
+            exif = null;
+         }
+      }
+   }
+
    private void checkScaling() {
       if ((width <= 0 && height <= 0) && (scaleX == 1 && scaleY == 1)) {
          isNeedToResize = false;
       }
       PointF point = new PointF();
       if (isUseCacheFile) {
-         point = BitmapData.getImageProportions(cacheFileName);
+         // The probe is reused by the decode and the preview. It is a copy, so the options of the caller are not changed.
+         probe = options != null ? BitmapMemoryBudget.copyOptions(options) : new Options();
+         probe.inJustDecodeBounds = true;
+         BitmapFactory.decodeFile(cacheFileName, probe);
+         probe.inJustDecodeBounds = false;
+         if (probe.outWidth > 0 && probe.outHeight > 0) {
+            point = new PointF(probe.outWidth, probe.outHeight);
+         } else {
+            Log.e("Can't decode " + cacheFileName);
+         }
       } else {
          point.x = bitmap.getWidth();
          point.y = bitmap.getHeight();
       }
+      // Size and scaling are given for the oriented image, but the stored image is decoded and scaled
+      boolean isTransposed = exif != null && exif.isTransposed();
+      if (isTransposed) {
+         point = new PointF(point.y, point.x);
+      }
       if (isNeedToResize) {
          if (scaleX != 1 || scaleY != 1) {
             width = point.x * scaleX;
@@ -184,26 +528,93 @@ public class BitmapTransformer {
          width = point.x;
          height = point.y;
       }
+      if (isTransposed) {
+         float tmp = width;
+         width = height;
+         height = tmp;
+      }
    }
 
    private void prepareBitmap() {
       if (cacheFileName != null) {
          if (isNeedToResize) {
-            bitmap = BitmapCaсheIO.decodeSampledBitmapFromFile(cacheFileName, width, height, options);
-            bitmap = Bitmap.createScaledBitmap(bitmap, (int) width, (int) height, isUseFilter);
+            // The probe of checkScaling() is reused, the file header is not read again
+            Bitmap decoded = isUseThumbnail ? BitmapCaсheIO.decodeThumbnail(cacheFileName, probe, width, height) : null;
+            if (decoded == null) {
+               decoded = BitmapCaсheIO.decodeSampledBitmapFromProbedFile(cacheFileName, probe, width, height);
+            }
+            bitmap = scaleBitmap(decoded);
          } else {
             bitmap = BitmapFactory.decodeFile(cacheFileName, options);
          }
       } else {
          if (isNeedToResize) {
-            bitmap = Bitmap.createScaledBitmap(bitmap, (int) width, (int) height, isUseFilter);
+            bitmap = scaleBitmap(bitmap);
          } else {
             // Bitmap already exist, nothing to do
          }
       }
    }
 
-   private void transformBitmap() {
+   private Bitmap scaleBitmap(Bitmap source) {
+      if (kernel != null && isResamplerFit(source)) {
+         return BitmapResampler.scale(source, (int) width, (int) height, kernel);
+      }
+      return Bitmap.createScaledBitmap(source, (int) width, (int) height, isUseFilter);
+   }
+
+   /**
+    * The resampler copies the source and the result to int arrays on the java heap, so it is used only if they fit to the budget
+    */
+   private boolean isResamplerFit(Bitmap source) {
+      long bytes = 4L * source.getWidth() * source.getHeight() + 4L * (long) width * (long) height;
+      if (bytes <= BitmapMemoryBudget.getInstance().getAvailableBytes()) {
+         return true;
+      }
+      Log.w("Not enough memory for the resampler, Bitmap.createScaledBitmap is used");
+      return false;
+   }
+
+   private boolean isLarge(Bitmap source) {
+      return source.getWidth() * source.getHeight() >= BitmapPixels.PARALLEL_THRESHOLD;
+   }
+
+   /**
+    * Crop, flip and rotate the source. The crop area is multiplied by the factors, they are not 1 for the preview, but the crop is never less
+    * than 1px.
+    */
+   private Bitmap transformBitmap(Bitmap bitmap, float factorX, float factorY, boolean isUseFilter, boolean isParallel) {
+      float cropLeft = this.cropLeft * factorX;
+      float cropTop = this.cropTop * factorY;
+      float cropWidth = Math.max(1, this.cropWidth * factorX);
+      float cropHeight = Math.max(1, this.cropHeight * factorY);
+      if (exif != null && isNeedToCrop) {
+         // Crop area is given for the oriented image
+         Rect area = exif.mapToStored(new Rect((int) cropLeft, (int) cropTop, (int) cropLeft + (int) cropWidth, (int) cropTop + (int) cropHeight), bitmap.getWidth(),
+               bitmap.getHeight());
+         cropLeft = area.left;
+         cropTop = area.top;
+         cropWidth = area.width();
+         cropHeight = area.height();
+      }
+      if (BitmapPixels.isAxisAligned(rotateAngel)) {
+         Rect crop;
+         if (isNeedToCrop) {
+            crop = new Rect((int) cropLeft, (int) cropTop, (int) cropLeft + (int) cropWidth, (int) cropTop + (int) cropHeight);
+         } else {
+            crop = new Rect(0, 0, bitmap.getWidth(), bitmap.getHeight());
+         }
+         boolean isParallelBands = isParallel && isLarge(bitmap);
+         if (exif == null) {
+            return BitmapPixels.transform(bitmap, crop, isFlipHorizontal, isFlipVertical, BitmapPixels.normalizeRotation(rotateAngel), isParallelBands);
+         }
+         // Fold EXIF orientation and user flips and rotation to one flip and one rotation
+         boolean isUserFlip = isFlipHorizontal != isFlipVertical;
+         float userRotation = isFlipVertical ? rotateAngel + 180 : rotateAngel;
+         boolean isFlip = exif.isFlipHorizontal() != isUserFlip;
+         float rotation = isUserFlip ? userRotation - exif.getRotation() : userRotation + exif.getRotation();
+         return BitmapPixels.transform(bitmap, crop, isFlip, false, BitmapPixels.normalizeRotation(rotation), isParallelBands);
+      }
       Matrix matrix = new Matrix();
       if (isFlipHorizontal && isFlipVertical) {
          matrix.setScale(-1, -1);
@@ -218,6 +629,13 @@ public class BitmapTransformer {
       if (rotateAngel != 0) {
          matrix.postRotate(rotateAngel);
       }
+      if (exif != null) {
+         // EXIF orientation is applied before user flips and rotation
+         matrix.preRotate(exif.getRotation());
+         if (exif.isFlipHorizontal()) {
+            matrix.preScale(-1, 1);
+         }
+      }
       if (isNeedToCrop) {
          try {
             if (cropLeft + cropWidth > bitmap.getWidth() || cropTop + cropHeight > bitmap.getHeight()) {
@@ -240,8 +658,9 @@ public class BitmapTransformer {
                   + cropHeight, e);
          }
       } else {
-         bitmap = Bitmap.createBitmap(bitmap, 0, 0, (int) width, (int) height, matrix, isUseFilter);
+         bitmap = Bitmap.createBitmap(bitmap, 0, 0, bitmap.getWidth(), bitmap.getHeight(), matrix, isUseFilter);
       }
+      return bitmap;
    }
 
    // *********************** Getters and Setters ************************
@@ -253,13 +672,27 @@ public class BitmapTransformer {
     * @return
     */
    public BitmapTransformer setSourceBitmap(Bitmap bitmap) {
-      if (data != null || assetsFileName != null || fileName != null || inputStream != null || fileDescriptor != null || resourceId != NO_RESOURCE) {
+      if (data != null || encodedString != null || assetsFileName != null || fileName != null || inputStream != null || fileDescriptor != null || resourceId != NO_RESOURCE) {
          throw new IllegalArgumentException("Bitmap data source must be only once.");
       }
       this.bitmap = bitmap;
       return this;
    }
 
+   /**
+    * Set source bitmap shared by the handle. The transformer acquires its own reference and releases it after the transformation, the
+    * reference of the caller is not released. Use {@link #transformHandle()} to get the result.
+    * 
+    * @param handle
+    * @return
+    */
+   public BitmapTransformer setSourceBitmap(BitmapHandle handle) {
+      setSourceBitmap(handle.get());
+      releaseSource();
+      sourceHandle = handle.acquire();
+      return this;
+   }
+
    /**
     * Set as source the specified byte array.
     * 
@@ -267,7 +700,7 @@ public class BitmapTransformer {
     * @return
     */
    public BitmapTransformer setSourceByteArray(byte[] data) {
-      if (bitmap != null || assetsFileName != null || fileName != null || inputStream != null || fileDescriptor != null || resourceId != NO_RESOURCE) {
+      if (bitmap != null || encodedString != null || assetsFileName != null || fileName != null || inputStream != null || fileDescriptor != null || resourceId != NO_RESOURCE) {
          throw new IllegalArgumentException("Bitmap data source must be only once.");
       }
       this.data = data;
@@ -275,20 +708,17 @@ public class BitmapTransformer {
    }
 
    /**
-    * Set as source the Base64-encoded data.
+    * Set as source the Base64-encoded data. The data is decoded chunk by chunk directly to the cache file (or to the decoder), it is never
+    * held in memory as a whole.
     * 
     * @param string
     * @return
     */
    public BitmapTransformer setSourceEncodedString(String string) {
-      if (bitmap != null || assetsFileName != null || fileName != null || inputStream != null || fileDescriptor != null || resourceId != NO_RESOURCE) {
+      if (bitmap != null || data != null || assetsFileName != null || fileName != null || inputStream != null || fileDescriptor != null || resourceId != NO_RESOURCE) {
          throw new IllegalArgumentException("Bitmap data source must be only once.");
       }
-      try {
-         this.data = Base64.decode(string, Base64.DEFAULT);
-      } catch (Exception e) {
-         Log.e("Can't decode source data.", e);
-      }
+      this.encodedString = string;
       return this;
    }
 
@@ -299,7 +729,7 @@ public class BitmapTransformer {
     * @return
     */
    public BitmapTransformer setSourceFile(String fileName) {
-      if (bitmap != null || data != null || assetsFileName != null || inputStream != null || fileDescriptor != null || resourceId != NO_RESOURCE) {
+      if (bitmap != null || data != null || encodedString != null || assetsFileName != null || inputStream != null || fileDescriptor != null || resourceId != NO_RESOURCE) {
          throw new IllegalArgumentException("Bitmap data source must be only once.");
       }
       this.fileName = fileName;
@@ -313,7 +743,7 @@ public class BitmapTransformer {
     * @return
     */
    public BitmapTransformer setSourceFromResourse(int resourceId) {
-      if (bitmap != null || data != null || assetsFileName != null || fileName != null || inputStream != null || fileDescriptor != null) {
+      if (bitmap != null || data != null || encodedString != null || assetsFileName != null || fileName != null || inputStream != null || fileDescriptor != null) {
          throw new IllegalArgumentException("Bitmap data source must be only once.");
       }
       this.resourceId = resourceId;
@@ -327,7 +757,7 @@ public class BitmapTransformer {
     * @return
     */
    public BitmapTransformer setSourceFileDescriptor(FileDescriptor fileDescriptor) {
-      if (bitmap != null || data != null || assetsFileName != null || fileName != null || inputStream != null || resourceId != NO_RESOURCE) {
+      if (bitmap != null || data != null || encodedString != null || assetsFileName != null || fileName != null || inputStream != null || resourceId != NO_RESOURCE) {
          throw new IllegalArgumentException("Bitmap data source must be only once.");
       }
       this.fileDescriptor = fileDescriptor;
@@ -341,7 +771,7 @@ public class BitmapTransformer {
     * @return
     */
    public BitmapTransformer setSourceInputStream(InputStream inputStream) {
-      if (bitmap != null || data != null || assetsFileName != null || fileName != null || fileDescriptor != null || resourceId != NO_RESOURCE) {
+      if (bitmap != null || data != null || encodedString != null || assetsFileName != null || fileName != null || fileDescriptor != null || resourceId != NO_RESOURCE) {
          throw new IllegalArgumentException("Bitmap data source must be only once.");
       }
       this.inputStream = inputStream;
@@ -355,7 +785,7 @@ public class BitmapTransformer {
     * @return
     */
    public BitmapTransformer setSourceFromAssets(String assetsFileName) {
-      if (bitmap != null || data != null || fileName != null || inputStream != null || fileDescriptor != null || resourceId != NO_RESOURCE) {
+      if (bitmap != null || data != null || encodedString != null || fileName != null || inputStream != null || fileDescriptor != null || resourceId != NO_RESOURCE) {
          throw new IllegalArgumentException("Bitmap data source must be only once.");
       }
       this.assetsFileName = assetsFileName;
@@ -460,6 +890,82 @@ public class BitmapTransformer {
       return this;
    }
 
+   /**
+    * Use pure java resampler with given kernel for scaling instead of {@link Bitmap#createScaledBitmap(Bitmap, int, int, boolean)}. It needs
+    * the pixels of the source and the result on the java heap, if they don't fit to the {@link BitmapMemoryBudget} the bitmap is scaled by
+    * Bitmap.createScaledBitmap. Null by default.
+    * 
+    * @param kernel
+    * @return
+    */
+   public BitmapTransformer setResampler(Kernel kernel) {
+      this.kernel = kernel;
+      return this;
+   }
+
+   /**
+    * Process large bitmaps (more than {@link BitmapPixels#PARALLEL_THRESHOLD} pixels) by row bands on all CPU cores. Flips, rotation by
+    * multiple of 90 degrees and crop are always done by {@link BitmapPixels}, scaling is parallel only with the resampler, see
+    * {@link #setResampler(Kernel)}. True by default
+    * 
+    * @param isParallel
+    * @return
+    */
+   public BitmapTransformer setParallel(boolean isParallel) {
+      this.isParallel = isParallel;
+      return this;
+   }
+
+   /**
+    * Read EXIF orientation of JPEG file and show the image correctly oriented. The orientation is folded to the same single transformation,
+    * so it costs nothing but reading of the file header. Size, scaling and crop area are given for the oriented image. False by default
+    * 
+    * @param isUseExif
+    * @return
+    */
+   public BitmapTransformer setUseExifOrientation(boolean isUseExif) {
+      this.isUseExif = isUseExif;
+      return this;
+   }
+
+   /**
+    * Use the thumbnail embedded in EXIF of JPEG file instead of decoding the image if the thumbnail is not smaller than requested size.
+    * Useful for small previews like gallery grid. Works only with cache file. False by default
+    * 
+    * @param isUseThumbnail
+    * @return
+    */
+   public BitmapTransformer setUseEmbeddedThumbnail(boolean isUseThumbnail) {
+      this.isUseThumbnail = isUseThumbnail;
+      return this;
+   }
+
+   /**
+    * Save the transformed bitmap to raw pixels cache file and load it from there next time, see {@link BitmapRawFile}. Loading from raw
+    * cache is a memory copy instead of decoding and transforming. Works only with cache file. False by default
+    * 
+    * @param isUseRawCache
+    * @param isCompressed compress the pixels with fast LZ4 codec
+    * @return
+    */
+   public BitmapTransformer setRawCache(boolean isUseRawCache, boolean isCompressed) {
+      this.isUseRawCache = isUseRawCache;
+      this.isRawCompressed = isCompressed;
+      return this;
+   }
+
+   /**
+    * Reuse the raw cache of a near duplicate source, for example the same photo with other JPEG quality or size, see {@link BitmapHashIndex}.
+    * Works with raw cache and explicit size only, false by default.
+    * 
+    * @param isDeduplicate
+    * @return
+    */
+   public BitmapTransformer setDeduplicate(boolean isDeduplicate) {
+      this.isDeduplicate = isDeduplicate;
+      return this;
+   }
+
    /**
     * Crop transformed bitmap
     * 
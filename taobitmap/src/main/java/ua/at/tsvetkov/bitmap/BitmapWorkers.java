@@ -0,0 +1,156 @@
+/*******************************************************************************
+ * Copyright (c) 2014 Alexandr Tsvetkov.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the The BSD 3-Clause License
+ * which accompanies this distribution, and is available at
+ * http://opensource.org/licenses/BSD-3-Clause
+ *
+ * Contributors:
+ *     Alexandr Tsvetkov - initial API and implementation
+ *
+ * Project:
+ *     TAO Bitmap Utils
+ *
+ * File name:
+ *     BitmapWorkers.java
+ *
+ * License agreement:
+ *
+ * 1. This code is published AS IS. Author is not responsible for any damage that can be
+ *    caused by any application that uses this code.
+ * 2. Author does not give a garantee, that this code is error free.
+ * 3. This code can be used in NON-COMMERCIAL applications AS IS without any special
+ *    permission from author.
+ * 4. This code can be modified without any special permission from author IF AND ONLY IF
+ *    this license agreement will remain unchanged.
+ * 5. SPECIAL PERMISSION for this code usage in COMMERCIAL application SHOULD be obtained
+ *    from author.
+ ******************************************************************************/
+package ua.at.tsvetkov.bitmap;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Shared compute pool for pixel work. Splits the image rows to bands and processes them on all CPU cores. The calling thread takes part in
+ * the work, so band processing never waits for a busy pool and may be safely nested.
+ *
+ * @author A.Tsvetkov 2014 http://tsvetkov.at.ua mailto:al@ukr.net
+ */
+public class BitmapWorkers {
+
+   private static final int       KEEP_ALIVE_SECONDS = 30;
+   private static final int       THREADS            = Runtime.getRuntime().availableProcessors();
+
+   private static ExecutorService pool               = null;
+
+   /**
+    * Band of rows
+    */
+   public interface Band {
+
+      /**
+       * Process rows from (inclusive) to (exclusive)
+       *
+       * @param from
+       * @param to
+       */
+      void run(int from, int to);
+
+   }
+
+   private BitmapWorkers() {
+
+   }
+
+   /**
+    * Return the shared compute pool with one thread per CPU core.
+    *
+    * @return
+    */
+   public static synchronized ExecutorService getPool() {
+      if (pool == null) {
+         ThreadPoolExecutor executor = new ThreadPoolExecutor(THREADS, THREADS, KEEP_ALIVE_SECONDS, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+
+            private final AtomicInteger count = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable runnable) {
+               return new Thread(runnable, "BitmapWorker #" + count.incrementAndGet());
+            }
+         });
+         pool = executor;
+      }
+      return pool;
+   }
+
+   /**
+    * Return count of CPU cores used for band processing.
+    *
+    * @return
+    */
+   public static int getThreadsCount() {
+      return THREADS;
+   }
+
+   /**
+    * Split rows to bands and process them in parallel. Returns when all bands are processed.
+    *
+    * @param rows total rows count
+    * @param minBandRows minimum rows in one band, small images are processed in the calling thread
+    * @param band
+    */
+   public static void runBands(int rows, int minBandRows, final Band band) {
+      int bands = Math.min(THREADS, rows / Math.max(1, minBandRows));
+      if (bands <= 1) {
+         if (rows > 0) {
+            band.run(0, rows);
+         }
+         return;
+      }
+      final int count = bands;
+      final int total = rows;
+      final AtomicInteger next = new AtomicInteger();
+      final CountDownLatch done = new CountDownLatch(count);
+      final AtomicReference<Throwable> error = new AtomicReference<Throwable>();
+      Runnable worker = new Runnable() {
+
+         @Override
+         public void run() {
+            int index;
+            while ((index = next.getAndIncrement()) < count) {
+               try {
+                  band.run(total * index / count, total * (index + 1) / count);
+               } catch (Throwable e) {
+                  error.compareAndSet(null, e);
+               } finally {
+                  done.countDown();
+               }
+            }
+         }
+      };
+      ExecutorService executor = getPool();
+      for (int i = 1; i < count; i++) {
+         executor.execute(worker);
+      }
+      worker.run();
+      try {
+         done.await();
+      } catch (InterruptedException e) {
+         Thread.currentThread().interrupt();
+      }
+      Throwable e = error.get();
+      if (e instanceof RuntimeException) {
+         throw (RuntimeException) e;
+      } else if (e instanceof Error) {
+         throw (Error) e;
+      }
+   }
+
+}
@@ -0,0 +1,109 @@
+/*******************************************************************************
+ * Copyright (c) 2014 Alexandr Tsvetkov.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the The BSD 3-Clause License
+ * which accompanies this distribution, and is available at
+ * http://opensource.org/licenses/BSD-3-Clause
+ *
+ * Contributors:
+ *     Alexandr Tsvetkov - initial API and implementation
+ *
+ * Project:
+ *     TAO Bitmap Utils
+ *
+ * File name:
+ *     CharSequenceInputStream.java
+ *
+ * License agreement:
+ *
+ * 1. This code is published AS IS. Author is not responsible for any damage that can be
+ *    caused by any application that uses this code.
+ * 2. Author does not give a garantee, that this code is error free.
+ * 3. This code can be used in NON-COMMERCIAL applications AS IS without any special
+ *    permission from author.
+ * 4. This code can be modified without any special permission from author IF AND ONLY IF
+ *    this license agreement will remain unchanged.
+ * 5. SPECIAL PERMISSION for this code usage in COMMERCIAL application SHOULD be obtained
+ *    from author.
+ ******************************************************************************/
+package ua.at.tsvetkov.bitmap;
+
+import java.io.InputStream;
+
+import android.util.Base64;
+import android.util.Base64InputStream;
+
+/**
+ * Stream of the characters of ASCII text, like Base64-encoded data. The characters are read directly from the sequence, so the text is
+ * never copied.
+ *
+ * @author A.Tsvetkov 2014 http://tsvetkov.at.ua mailto:al@ukr.net
+ */
+final class CharSequenceInputStream extends InputStream {
+
+   private final CharSequence text;
+   private int                position;
+   private int                mark;
+
+   CharSequenceInputStream(CharSequence text) {
+      this.text = text;
+   }
+
+   /**
+    * Return stream of decoded data of Base64-encoded text. The data is decoded chunk by chunk while it is read.
+    *
+    * @param text
+    * @return
+    */
+   static InputStream openBase64(CharSequence text) {
+      return new Base64InputStream(new CharSequenceInputStream(text), Base64.DEFAULT);
+   }
+
+   @Override
+   public int read() {
+      return position < text.length() ? text.charAt(position++) & 0xFF : -1;
+   }
+
+   @Override
+   public int read(byte[] bytes, int offset, int length) {
+      if (length == 0) {
+         return 0;
+      }
+      int count = Math.min(length, text.length() - position);
+      if (count <= 0) {
+         return -1;
+      }
+      for (int i = 0; i < count; i++) {
+         bytes[offset + i] = (byte) text.charAt(position++);
+      }
+      return count;
+   }
+
+   @Override
+   public long skip(long count) {
+      int skipped = (int) Math.max(0, Math.min(count, text.length() - position));
+      position = position + skipped;
+      return skipped;
+   }
+
+   @Override
+   public int available() {
+      return text.length() - position;
+   }
+
+   @Override
+   public boolean markSupported() {
+      return true;
+   }
+
+   @Override
+   public synchronized void mark(int limit) {
+      mark = position;
+   }
+
+   @Override
+   public synchronized void reset() {
+      position = mark;
+   }
+
+}